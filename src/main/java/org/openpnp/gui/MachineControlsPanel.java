@@ -28,6 +28,8 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
 
 import javax.swing.AbstractAction;
@@ -48,6 +50,10 @@ import org.openpnp.gui.components.CameraPanel;
 import org.openpnp.gui.support.Icons;
 import org.openpnp.gui.support.MessageBoxes;
 import org.openpnp.gui.support.NozzleItem;
+import org.openpnp.machine.reference.PositionSnapshot;
+import org.openpnp.machine.reference.ReferenceDriver;
+import org.openpnp.machine.reference.ReferenceHead;
+import org.openpnp.machine.reference.ReferenceMachine;
 import org.openpnp.model.Configuration;
 import org.openpnp.model.Location;
 import org.openpnp.spi.Camera;
@@ -57,6 +63,7 @@ import org.openpnp.spi.Machine;
 import org.openpnp.spi.MachineListener;
 import org.openpnp.spi.Nozzle;
 import org.openpnp.spi.PasteDispenser;
+import org.openpnp.util.CoalescingMachineListener;
 import org.openpnp.util.MovableUtils;
 import org.openpnp.util.UiUtils;
 
@@ -88,9 +95,16 @@ public class MachineControlsPanel extends JPanel {
 
     private JogControlsPanel jogControlsPanel;
 
+    private static final double maxDroUpdatesPerSecond = 30;
+
     private volatile double savedX = Double.NaN, savedY = Double.NaN, savedZ = Double.NaN,
             savedC = Double.NaN;
 
+    /**
+     * What the DROs were last updated from. See getDroState().
+     */
+    private volatile List<Object> droState;
+
     /**
      * Create the panel.
      */
@@ -162,6 +176,13 @@ public class MachineControlsPanel extends JPanel {
     }
 
     public void updateDros() {
+        // Skip the update if nothing has moved since the last one.
+        List<Object> droState = getDroState();
+        if (droState != null && droState.equals(this.droState)) {
+            return;
+        }
+        this.droState = droState;
+
         Location l = getCurrentLocation();
         if (l == null) {
             return;
@@ -200,6 +221,26 @@ public class MachineControlsPanel extends JPanel {
         textFieldC.setText(String.format(Locale.US, configuration.getLengthDisplayFormat(), c));
     }
 
+    /**
+     * Returns everything the DROs depend on, including the version of the position the driver has
+     * published, or null if the driver doesn't publish its position.
+     */
+    private List<Object> getDroState() {
+        Machine machine = configuration.getMachine();
+        Nozzle nozzle = selectedNozzle;
+        if (!(machine instanceof ReferenceMachine) || nozzle == null
+                || !(nozzle.getHead() instanceof ReferenceHead)) {
+            return null;
+        }
+        ReferenceDriver driver = ((ReferenceMachine) machine).getDriver();
+        PositionSnapshot position = driver.getPosition((ReferenceHead) nozzle.getHead());
+        if (position == null) {
+            return null;
+        }
+        return Arrays.asList(nozzle, position.getVersion(), savedX, savedY, savedZ, savedC,
+                configuration.getSystemUnits(), configuration.getLengthDisplayFormat());
+    }
+
     private void createUi() {
         setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
 
@@ -520,12 +561,19 @@ public class MachineControlsPanel extends JPanel {
         }
     };
 
+    /**
+     * Head activity can be fired many times per second during a job, but the DROs only need to
+     * keep up with what the eye can see.
+     */
+    private MachineListener coalescingMachineListener =
+            new CoalescingMachineListener(machineListener, maxDroUpdatesPerSecond);
+
     private ConfigurationListener configurationListener = new ConfigurationListener.Adapter() {
         @Override
         public void configurationComplete(Configuration configuration) {
             Machine machine = configuration.getMachine();
             if (machine != null) {
-                machine.removeListener(machineListener);
+                machine.removeListener(coalescingMachineListener);
             }
 
             for (Head head : machine.getHeads()) {
@@ -535,7 +583,7 @@ public class MachineControlsPanel extends JPanel {
             }
             setSelectedNozzle(((NozzleItem) comboBoxNozzles.getItemAt(0)).getNozzle());
 
-            machine.addListener(machineListener);
+            machine.addListener(coalescingMachineListener);
 
             updateStartStopButton(machine.isEnabled());
 
@@ -166,7 +166,21 @@ public class CameraView extends JComponent implements CameraListener {
 
     private CameraViewSelectionTextDelegate selectionTextDelegate;
 
-    private ScheduledExecutorService scheduledExecutor;
+    /**
+     * Runs the animations of every CameraView. They are short and only repaint, so one thread is
+     * plenty.
+     */
+    private static final ScheduledExecutorService scheduledExecutor =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "CameraView");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * Marches the selection rectangle while selection is enabled.
+     */
+    private ScheduledFuture<?> selectionAnimation;
 
     private Preferences prefs = Preferences.userNodeForPackage(CameraView.class);
 
@@ -202,23 +216,6 @@ public class CameraView extends JComponent implements CameraListener {
         addMouseMotionListener(mouseMotionListener);
         addComponentListener(componentListener);
 
-        scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
-
-        // TODO: Cancel this when it's not being used instead of spinning,
-        // or maybe create a real thread and wait().
-        scheduledExecutor.scheduleAtFixedRate(new Runnable() {
-            public void run() {
-                if (selectionEnabled && selection != null) {
-                    // Adjust the dash phase so the line marches on the next
-                    // paint
-                    selectionDashPhase -= 1f;
-                    if (selectionDashPhase < 0) {
-                        selectionDashPhase = selectionDashPhaseStart;
-                    }
-                    repaint();
-                }
-            }
-        }, 0, 50, TimeUnit.MILLISECONDS);
     }
 
     public CameraView(int maximumFps) {
@@ -975,6 +972,25 @@ public class CameraView extends JComponent implements CameraListener {
 
     public void setSelectionEnabled(boolean selectionEnabled) {
         this.selectionEnabled = selectionEnabled;
+        if (selectionEnabled && selectionAnimation == null) {
+            selectionAnimation = scheduledExecutor.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    if (selection != null) {
+                        // Adjust the dash phase so the line marches on the next
+                        // paint
+                        selectionDashPhase -= 1f;
+                        if (selectionDashPhase < 0) {
+                            selectionDashPhase = selectionDashPhaseStart;
+                        }
+                        repaint();
+                    }
+                }
+            }, 0, 50, TimeUnit.MILLISECONDS);
+        }
+        else if (!selectionEnabled && selectionAnimation != null) {
+            selectionAnimation.cancel(false);
+            selectionAnimation = null;
+        }
     }
 
     public boolean isShowImageInfo() {
@@ -14,6 +14,7 @@ import org.openpnp.spi.Head;
 import org.openpnp.spi.Machine;
 import org.openpnp.spi.MachineListener;
 import org.openpnp.spi.Nozzle;
+import org.openpnp.util.CoalescingMachineListener;
 import org.openpnp.util.UiUtils;
 
 import javafx.application.Platform;
@@ -185,7 +186,8 @@ public class FxNavigationView extends JFXPanel {
         @Override
         public void configurationComplete(Configuration configuration) throws Exception {
             final Machine machine = configuration.getMachine();
-            machine.addListener(machineListener);
+            // Repositioning at the rate the head reports activity is wasted effort.
+            machine.addListener(new CoalescingMachineListener(machineListener, 30));
             Platform.runLater(new Runnable() {
                 public void run() {
                     for (Camera camera : machine.getCameras()) {
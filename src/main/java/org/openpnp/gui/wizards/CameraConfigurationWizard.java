@@ -27,6 +27,7 @@ import java.util.Locale;
 import javax.swing.AbstractAction;
 import javax.swing.Action;
 import javax.swing.JButton;
+import javax.swing.JComboBox;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
@@ -38,11 +39,14 @@ import org.openpnp.gui.MainFrame;
 import org.openpnp.gui.components.CameraView;
 import org.openpnp.gui.components.ComponentDecorators;
 import org.openpnp.gui.support.AbstractConfigurationWizard;
+import org.openpnp.gui.support.DoubleConverter;
 import org.openpnp.gui.support.LengthConverter;
 import org.openpnp.gui.support.LongConverter;
 import org.openpnp.gui.support.MutableLocationProxy;
 import org.openpnp.model.Configuration;
 import org.openpnp.spi.Camera;
+import org.openpnp.spi.base.AbstractCamera;
+import org.openpnp.spi.base.AbstractCamera.SettleMethod;
 
 import com.jgoodies.forms.layout.ColumnSpec;
 import com.jgoodies.forms.layout.FormLayout;
@@ -125,20 +129,40 @@ public class CameraConfigurationWizard extends AbstractConfigurationWizard {
         panelVision.setLayout(new FormLayout(
                 new ColumnSpec[] {FormSpecs.RELATED_GAP_COLSPEC, FormSpecs.DEFAULT_COLSPEC,
                         FormSpecs.RELATED_GAP_COLSPEC, FormSpecs.DEFAULT_COLSPEC,},
-                new RowSpec[] {FormSpecs.RELATED_GAP_ROWSPEC, FormSpecs.DEFAULT_ROWSPEC,}));
+                new RowSpec[] {FormSpecs.RELATED_GAP_ROWSPEC, FormSpecs.DEFAULT_ROWSPEC,
+                        FormSpecs.RELATED_GAP_ROWSPEC, FormSpecs.DEFAULT_ROWSPEC,
+                        FormSpecs.RELATED_GAP_ROWSPEC, FormSpecs.DEFAULT_ROWSPEC,}));
+
+        lblSettleMethod = new JLabel("Settle Method");
+        panelVision.add(lblSettleMethod, "2, 2, right, default");
+
+        settleMethod = new JComboBox(SettleMethod.values());
+        panelVision.add(settleMethod, "4, 2, fill, default");
 
         lblSettleTimems = new JLabel("Settle Time (ms)");
-        panelVision.add(lblSettleTimems, "2, 2, right, default");
+        lblSettleTimems.setToolTipText(
+                "The time to wait, or with Adaptive the longest time to wait, before capturing.");
+        panelVision.add(lblSettleTimems, "2, 4, right, default");
 
         textFieldSettleTime = new JTextField();
-        panelVision.add(textFieldSettleTime, "4, 2, fill, default");
+        panelVision.add(textFieldSettleTime, "4, 4, fill, default");
         textFieldSettleTime.setColumns(10);
+
+        lblSettleThreshold = new JLabel("Settle Threshold");
+        lblSettleThreshold.setToolTipText(
+                "With Adaptive, the mean difference between two frames that counts as settled.");
+        panelVision.add(lblSettleThreshold, "2, 6, right, default");
+
+        textFieldSettleThreshold = new JTextField();
+        panelVision.add(textFieldSettleThreshold, "4, 6, fill, default");
+        textFieldSettleThreshold.setColumns(10);
     }
 
     @Override
     public void createBindings() {
         LengthConverter lengthConverter = new LengthConverter();
         LongConverter longConverter = new LongConverter();
+        DoubleConverter doubleConverter = new DoubleConverter("%f");
 
         MutableLocationProxy unitsPerPixel = new MutableLocationProxy();
         bind(UpdateStrategy.READ_WRITE, camera, "unitsPerPixel", unitsPerPixel, "location");
@@ -146,6 +170,15 @@ public class CameraConfigurationWizard extends AbstractConfigurationWizard {
         addWrappedBinding(unitsPerPixel, "lengthY", textFieldUppY, "text", lengthConverter);
 
         addWrappedBinding(camera, "settleTimeMs", textFieldSettleTime, "text", longConverter);
+        if (camera instanceof AbstractCamera) {
+            addWrappedBinding(camera, "settleMethod", settleMethod, "selectedItem");
+            addWrappedBinding(camera, "settleThreshold", textFieldSettleThreshold, "text",
+                    doubleConverter);
+        }
+        else {
+            settleMethod.setEnabled(false);
+            textFieldSettleThreshold.setEnabled(false);
+        }
 
         ComponentDecorators.decorateWithAutoSelectAndLengthConversion(textFieldUppX);
         ComponentDecorators.decorateWithAutoSelectAndLengthConversion(textFieldUppY);
@@ -153,6 +186,7 @@ public class CameraConfigurationWizard extends AbstractConfigurationWizard {
         ComponentDecorators.decorateWithAutoSelect(textFieldWidth);
         ComponentDecorators.decorateWithAutoSelect(textFieldHeight);
         ComponentDecorators.decorateWithAutoSelect(textFieldSettleTime);
+        ComponentDecorators.decorateWithAutoSelect(textFieldSettleThreshold);
     }
 
     private Action measureAction = new AbstractAction("Measure") {
@@ -203,4 +237,8 @@ public class CameraConfigurationWizard extends AbstractConfigurationWizard {
     private JPanel panelVision;
     private JLabel lblSettleTimems;
     private JTextField textFieldSettleTime;
+    private JLabel lblSettleMethod;
+    private JComboBox settleMethod;
+    private JLabel lblSettleThreshold;
+    private JTextField textFieldSettleThreshold;
 }
@@ -6,7 +6,6 @@ import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 
 import javax.swing.Action;
 
@@ -370,6 +369,7 @@ public class OpenBuildsDriver extends AbstractSerialPortDriver implements Runnab
     public synchronized void disconnect() {
         disconnectRequested = true;
         connected = false;
+        stopReadLine();
 
         try {
             if (readerThread != null && readerThread.isAlive()) {
@@ -437,11 +437,10 @@ public class OpenBuildsDriver extends AbstractSerialPortDriver implements Runnab
             try {
                 line = readLine().trim();
             }
-            catch (TimeoutException ex) {
-                continue;
-            }
             catch (IOException e) {
-                logger.error("Read error", e);
+                if (!disconnectRequested) {
+                    logger.error("Read error", e);
+                }
                 return;
             }
             line = line.trim();
@@ -0,0 +1,95 @@
+package org.openpnp.machine.reference;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the preview captures of all cameras on a small shared pool of threads, instead of each
+ * camera keeping a thread of its own that sleeps between frames. See
+ * ReferenceCamera.getPreviewPeriodMs().
+ */
+public class CaptureScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(CaptureScheduler.class);
+
+    private static final CaptureScheduler instance = new CaptureScheduler(3);
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    public static CaptureScheduler get() {
+        return instance;
+    }
+
+    private CaptureScheduler(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        executor = new ScheduledThreadPoolExecutor(threads, runnable -> {
+            Thread thread = new Thread(runnable, "CaptureScheduler " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Runs the task now and then repeatedly, waiting periodMs between the end of one run and the
+     * start of the next, like the capture loops this replaces. The period is read again before
+     * each wait, so it may change while the task is scheduled. Exceptions from the task are
+     * logged and don't stop it.
+     */
+    public Schedule schedule(String name, Runnable task, LongSupplier periodMs) {
+        Schedule schedule = new Schedule(name, task, periodMs);
+        schedule.next(0);
+        return schedule;
+    }
+
+    public class Schedule implements Runnable {
+        private final String name;
+        private final Runnable task;
+        private final LongSupplier periodMs;
+        private boolean cancelled;
+        private ScheduledFuture<?> future;
+
+        private Schedule(String name, Runnable task, LongSupplier periodMs) {
+            this.name = name;
+            this.task = task;
+            this.periodMs = periodMs;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+            }
+            try {
+                task.run();
+            }
+            catch (Exception e) {
+                logger.warn("{} capture failed", name, e);
+            }
+            next(Math.max(1, periodMs.getAsLong()));
+        }
+
+        private synchronized void next(long delayMs) {
+            if (!cancelled) {
+                future = executor.schedule(this, delayMs, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Stops the task. A run that has already started is allowed to finish.
+         */
+        public synchronized void cancel() {
+            cancelled = true;
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+    }
+}
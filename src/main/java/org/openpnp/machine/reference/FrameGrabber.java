@@ -0,0 +1,239 @@
+package org.openpnp.machine.reference;
+
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.Mat;
+import org.openpnp.model.Location;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Grabs frames from a camera continuously on a background thread into a small ring of Mats that
+ * are allocated once and reused. Each frame is tagged with the time its grab began and where the
+ * camera was at that time, so a caller can take the latest frame without waiting on the device,
+ * or wait for the first frame that was grabbed after some point in time, such as the end of a
+ * move.
+ *
+ * The thread is the only reader of the device, so callers don't contend with each other or with
+ * a preview for it.
+ */
+public class FrameGrabber implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(FrameGrabber.class);
+
+    public interface Source {
+        /**
+         * Reads the next frame from the device into the given Mat, which may be reused from an
+         * earlier frame. Blocks until the frame is available.
+         *
+         * @return false if no frame could be read.
+         */
+        public boolean grab(Mat mat) throws Exception;
+
+        /**
+         * The Location of the camera right now.
+         */
+        public Location getLocation() throws Exception;
+    }
+
+    public static class Frame {
+        private final Mat mat;
+        private final long timestamp;
+        private final Location location;
+
+        public Frame(Mat mat, long timestamp, Location location) {
+            this.mat = mat;
+            this.timestamp = timestamp;
+            this.location = location;
+        }
+
+        /**
+         * The image, which the caller owns and must release.
+         */
+        public Mat getMat() {
+            return mat;
+        }
+
+        /**
+         * The System.nanoTime() at which the grab of this frame began.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * The Location of the camera when the grab of this frame began, or null if it was not
+         * known.
+         */
+        public Location getLocation() {
+            return location;
+        }
+    }
+
+    private static class Slot {
+        final Mat mat = new Mat();
+        long sequence = -1;
+        long timestamp;
+        Location location;
+    }
+
+    private final String name;
+    private final Source source;
+    private final Slot[] slots;
+
+    /**
+     * Sequence number of the latest complete frame, or -1 before the first. Guarded by this.
+     */
+    private long latest = -1;
+
+    private Thread thread;
+
+    /**
+     * @param name Used to name the thread.
+     * @param source Where frames come from.
+     * @param size Number of frames in the ring. Three is enough for a reader to copy the latest
+     *        frame while the next one is grabbed.
+     */
+    public FrameGrabber(String name, Source source, int size) {
+        this.name = name;
+        this.source = source;
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(this, "FrameGrabber " + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the thread and waits for it to finish the frame it is grabbing.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = this.thread;
+            this.thread = null;
+        }
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        try {
+            thread.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Releases the frames. The grabber must be stopped.
+     */
+    public void release() {
+        for (Slot slot : slots) {
+            synchronized (slot) {
+                slot.mat.release();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        long sequence = 0;
+        while (!Thread.interrupted()) {
+            Slot slot = slots[(int) (sequence % slots.length)];
+            boolean grabbed = false;
+            synchronized (slot) {
+                // The slot's old frame is about to be overwritten.
+                slot.sequence = -1;
+                long timestamp = System.nanoTime();
+                Location location = null;
+                try {
+                    location = source.getLocation();
+                }
+                catch (Exception e) {
+                    // The camera may not be fully configured yet, the frame is still useful.
+                }
+                try {
+                    grabbed = source.grab(slot.mat);
+                }
+                catch (Exception e) {
+                    logger.warn("{} grab failed", name, e);
+                }
+                if (grabbed) {
+                    slot.sequence = sequence;
+                    slot.timestamp = timestamp;
+                    slot.location = location;
+                }
+            }
+            if (!grabbed) {
+                // Don't spin on a device that has gone away.
+                try {
+                    Thread.sleep(100);
+                }
+                catch (InterruptedException e) {
+                    break;
+                }
+                continue;
+            }
+            synchronized (this) {
+                latest = sequence;
+                notifyAll();
+            }
+            sequence++;
+        }
+    }
+
+    /**
+     * Returns a copy of the latest frame, waiting up to timeoutMs only if there has not been one
+     * yet.
+     *
+     * @return the frame, or null if none arrived in time.
+     */
+    public Frame getLatestFrame(long timeoutMs) throws InterruptedException {
+        return getFrame(true, 0, timeoutMs);
+    }
+
+    /**
+     * Returns a copy of the first frame whose grab began after the given System.nanoTime(),
+     * waiting up to timeoutMs for it to arrive. If a newer frame is already available the latest
+     * one is returned immediately.
+     *
+     * @return the frame, or null if none arrived in time.
+     */
+    public Frame getFrame(long newerThan, long timeoutMs) throws InterruptedException {
+        return getFrame(false, newerThan, timeoutMs);
+    }
+
+    private Frame getFrame(boolean any, long newerThan, long timeoutMs)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        long sequence = -1;
+        while (true) {
+            synchronized (this) {
+                while (latest == sequence || latest < 0) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return null;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+                sequence = latest;
+            }
+            Slot slot = slots[(int) (sequence % slots.length)];
+            synchronized (slot) {
+                // The grabber may have lapped us while we waited for the slot, in which case
+                // there is a newer frame to look at.
+                if (slot.sequence == sequence && (any || slot.timestamp - newerThan > 0)) {
+                    return new Frame(slot.mat.clone(), slot.timestamp, slot.location);
+                }
+            }
+        }
+    }
+}
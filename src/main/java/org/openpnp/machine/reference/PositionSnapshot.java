@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2011 Jason von Nieda <jason@vonnieda.org>
+ * 
+ * This file is part of OpenPnP.
+ * 
+ * OpenPnP is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * OpenPnP is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with OpenPnP. If not, see
+ * <http://www.gnu.org/licenses/>.
+ * 
+ * For more information about OpenPnP visit http://openpnp.org
+ */
+
+package org.openpnp.machine.reference;
+
+import org.openpnp.model.LengthUnit;
+import org.openpnp.model.Location;
+
+/**
+ * An immutable record of where a driver has put a Head's axes, which the driver publishes each
+ * time they change. Since a snapshot never changes it can be read from any thread without
+ * locking and its coordinates are always consistent with each other.
+ * 
+ * Each snapshot a driver publishes has a version one higher than the one before, so a reader
+ * that remembers the version it last saw can tell whether anything has moved since.
+ */
+public final class PositionSnapshot {
+    private final long version;
+
+    private final Location location;
+
+    public PositionSnapshot(long version, LengthUnit units, double x, double y, double z,
+            double rotation) {
+        this.version = version;
+        this.location = new Location(units, x, y, z, rotation);
+    }
+
+    /**
+     * Returns a snapshot of the given coordinates with the next version after previous, or the
+     * first version if previous is null.
+     */
+    public static PositionSnapshot next(PositionSnapshot previous, LengthUnit units, double x,
+            double y, double z, double rotation) {
+        return new PositionSnapshot(previous == null ? 1 : previous.version + 1, units, x, y, z,
+                rotation);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the position of the Head's axes, in the driver's units. Location is immutable, so
+     * the same object is returned every time.
+     */
+    public Location getLocation() {
+        return location;
+    }
+
+    @Override
+    public String toString() {
+        return "PositionSnapshot [version=" + version + ", location=" + location + "]";
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2011 Jason von Nieda <jason@vonnieda.org>
+ * 
+ * This file is part of OpenPnP.
+ * 
+ * OpenPnP is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * OpenPnP is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with OpenPnP. If not, see
+ * <http://www.gnu.org/licenses/>.
+ * 
+ * For more information about OpenPnP visit http://openpnp.org
+ */
+
+package org.openpnp.machine.reference;
+
+import java.util.concurrent.Future;
+
+import org.openpnp.model.Location;
+
+/**
+ * A ReferenceDriver that can also start operations without waiting for them to complete, so that
+ * the caller can do other work, such as vision processing or planning, while the machine moves.
+ * 
+ * Operations are performed in the order they are started, whether they are started with one of
+ * the methods here or with the blocking methods of ReferenceDriver. Each returned Future
+ * completes when the blocking version of the operation would have returned, and fails with the
+ * exception it would have thrown. Since that doesn't necessarily mean the machine has stopped,
+ * callers that need the machine to be still, such as a camera about to capture, should call
+ * waitForCompletion().
+ * 
+ * The Location returned by getLocation() only reflects operations that have been performed, so
+ * callers should wait for their moves before relying on it.
+ */
+public interface ReferenceAsyncDriver extends ReferenceDriver {
+    public Future<Void> moveToAsync(ReferenceHeadMountable hm, Location location, double speed);
+
+    public Future<Void> pickAsync(ReferenceNozzle nozzle);
+
+    public Future<Void> placeAsync(ReferenceNozzle nozzle);
+
+    public Future<Void> actuateAsync(ReferenceActuator actuator, boolean on);
+
+    public Future<Void> actuateAsync(ReferenceActuator actuator, double value);
+
+    /**
+     * Blocks until every operation started so far has been performed and all motion on the
+     * machine has stopped. For G-code controllers this is typically an M400 or equivalent.
+     * 
+     * @throws Exception
+     */
+    public void waitForCompletion() throws Exception;
+}
@@ -21,6 +21,7 @@ package org.openpnp.machine.reference;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
@@ -29,6 +30,7 @@ import org.opencv.core.Point;
 import org.opencv.core.Rect;
 import org.opencv.core.RotatedRect;
 import org.opencv.imgproc.Imgproc;
+import org.openpnp.CameraListener;
 import org.openpnp.ConfigurationListener;
 import org.openpnp.model.Configuration;
 import org.openpnp.model.Length;
@@ -36,6 +38,7 @@ import org.openpnp.model.LengthUnit;
 import org.openpnp.model.Location;
 import org.openpnp.spi.base.AbstractCamera;
 import org.openpnp.util.OpenCvUtils;
+import org.openpnp.vision.CameraTransform;
 import org.openpnp.vision.LensCalibration;
 import org.openpnp.vision.LensCalibration.LensModel;
 import org.openpnp.vision.LensCalibration.Pattern;
@@ -88,8 +91,30 @@ public abstract class ReferenceCamera extends AbstractCamera implements Referenc
     private CalibrationCallback calibrationCallback;
     private int calibrationCountGoal = 25;
 
-    private Mat undistortionMap1;
-    private Mat undistortionMap2;
+    /**
+     * How long a capture waits for the FrameGrabber to deliver a frame before giving up.
+     */
+    private static final long grabberTimeoutMs = 2000;
+
+    /**
+     * The combined crop, undistortion, rotation, offset and flip for the current settings. Replaced
+     * by getTransform() when any of them change.
+     */
+    private volatile CameraTransform transform;
+
+    /**
+     * Grabs frames in the background for cameras that call startGrabber().
+     */
+    private volatile FrameGrabber grabber;
+
+    /**
+     * Number of vision captures and settles in progress, during which preview frames are skipped.
+     */
+    private final AtomicInteger visionCaptures = new AtomicInteger();
+
+    private final Object previewLock = new Object();
+
+    private CaptureScheduler.Schedule preview;
 
     protected ReferenceMachine machine;
     protected ReferenceDriver driver;
@@ -117,6 +142,30 @@ public abstract class ReferenceCamera extends AbstractCamera implements Referenc
         this.headOffsets = headOffsets;
     }
 
+    /**
+     * Before settling, wait for the driver to finish any moves it has been given, since a driver
+     * that streams moves or performs them in the background may return before the machine has
+     * stopped. See ReferenceAsyncDriver.
+     */
+    @Override
+    public void settle() {
+        visionCaptures.incrementAndGet();
+        try {
+            if (driver instanceof ReferenceAsyncDriver) {
+                try {
+                    ((ReferenceAsyncDriver) driver).waitForCompletion();
+                }
+                catch (Exception e) {
+                    logger.error("Error waiting for motion to complete before capture.", e);
+                }
+            }
+            super.settle();
+        }
+        finally {
+            visionCaptures.decrementAndGet();
+        }
+    }
+
     @Override
     public void moveTo(Location location, double speed) throws Exception {
         logger.debug("moveTo({}, {})", new Object[] {location, speed});
@@ -190,36 +239,258 @@ public abstract class ReferenceCamera extends AbstractCamera implements Referenc
         this.cropHeight = cropHeight;
     }
 
-    protected BufferedImage transformImage(BufferedImage image) {
-        Mat mat = OpenCvUtils.toMat(image);
-        
-        mat = crop(mat);
+    /**
+     * Starts grabbing untransformed frames in the background from the given Source. After this
+     * captureMat() and the settle methods wait for the first frame grabbed after they were
+     * called, so vision never sees a frame from before the last move, while the preview takes the
+     * latest frame without waiting on the device. Restarts the grabber if it is already running.
+     */
+    protected void startGrabber(FrameGrabber.Source source) {
+        stopGrabber();
+        FrameGrabber grabber = new FrameGrabber(getName(), source, 3);
+        grabber.start();
+        this.grabber = grabber;
+    }
+
+    protected void stopGrabber() {
+        FrameGrabber grabber = this.grabber;
+        this.grabber = null;
+        if (grabber != null) {
+            grabber.stop();
+            grabber.release();
+        }
+    }
 
-        mat = calibrate(mat);
+    /**
+     * Returns the first frame grabbed after the given System.nanoTime(), transformed, along with
+     * when it was grabbed and where the camera was at the time. Waits for the frame if needed.
+     * 
+     * @return the frame, whose Mat the caller must release, or null if the camera isn't grabbing
+     *         frames in the background or no frame arrived in time.
+     */
+    public FrameGrabber.Frame captureFrame(long newerThan) {
+        return captureFrame(false, newerThan);
+    }
 
-        mat = undistort(mat);
+    private FrameGrabber.Frame captureFrame(boolean latest, long newerThan) {
+        FrameGrabber grabber = this.grabber;
+        if (grabber == null) {
+            return null;
+        }
+        try {
+            FrameGrabber.Frame frame = latest ? grabber.getLatestFrame(grabberTimeoutMs)
+                    : grabber.getFrame(newerThan, grabberTimeoutMs);
+            if (frame == null) {
+                return null;
+            }
+            return new FrameGrabber.Frame(transformMat(frame.getMat()), frame.getTimestamp(),
+                    frame.getLocation());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
 
-        // apply affine transformations
-        mat = rotate(mat, rotation);
+    /**
+     * With the grabber running, waits for a frame grabbed after this call, since the latest
+     * frame may be the same one the last call returned.
+     */
+    @Override
+    protected Mat captureNextMat() {
+        if (grabber == null) {
+            return super.captureNextMat();
+        }
+        FrameGrabber.Frame frame = captureFrame(System.nanoTime());
+        return frame == null ? null : frame.getMat();
+    }
+
+    @Override
+    public Mat captureMat() {
+        visionCaptures.incrementAndGet();
+        try {
+            if (grabber == null) {
+                return super.captureMat();
+            }
+            // The latest frame may have been grabbed before the last move finished.
+            FrameGrabber.Frame frame = captureFrame(System.nanoTime());
+            return frame == null ? null : frame.getMat();
+        }
+        finally {
+            visionCaptures.decrementAndGet();
+        }
+    }
 
-        mat = offset(mat, offsetX, offsetY);
+    @Override
+    public Mat settleAndCaptureMat() {
+        visionCaptures.incrementAndGet();
+        try {
+            if (grabber == null) {
+                return super.settleAndCaptureMat();
+            }
+            settle();
+            FrameGrabber.Frame frame = captureFrame(System.nanoTime());
+            return frame == null ? null : frame.getMat();
+        }
+        finally {
+            visionCaptures.decrementAndGet();
+        }
+    }
 
-        if (flipX || flipY) {
-            int flipCode;
-            if (flipX && flipY) {
-                flipCode = -1;
+    @Override
+    public BufferedImage settleAndCapture() {
+        visionCaptures.incrementAndGet();
+        try {
+            if (grabber == null) {
+                return super.settleAndCapture();
             }
-            else {
-                flipCode = flipX ? 0 : 1;
+            Mat mat = settleAndCaptureMat();
+            if (mat == null) {
+                return null;
             }
-            Core.flip(mat, mat, flipCode);
+            BufferedImage image = OpenCvUtils.toBufferedImage(mat);
+            mat.release();
+            return image;
+        }
+        finally {
+            visionCaptures.decrementAndGet();
+        }
+    }
+
+    /**
+     * The time between preview frames for cameras that need to be asked for them, or 0 for
+     * cameras that deliver frames to their listeners themselves. While the camera has listeners,
+     * capture() is called on the shared CaptureScheduler with this period and the frames are
+     * sent to the listeners.
+     */
+    protected long getPreviewPeriodMs() {
+        return 0;
+    }
+
+    @Override
+    public void startContinuousCapture(CameraListener listener, int maximumFps) {
+        super.startContinuousCapture(listener, maximumFps);
+        synchronized (previewLock) {
+            if (preview == null && getPreviewPeriodMs() > 0) {
+                preview = CaptureScheduler.get().schedule(getName(), this::previewFrame,
+                        this::getPreviewPeriodMs);
+            }
+        }
+    }
+
+    /**
+     * Stops the preview when the last listener is removed, so cameras nobody is watching are not
+     * captured from.
+     */
+    @Override
+    public void stopContinuousCapture(CameraListener listener) {
+        super.stopContinuousCapture(listener);
+        if (listeners.isEmpty()) {
+            stopPreview();
         }
-        
+    }
+
+    protected void stopPreview() {
+        synchronized (previewLock) {
+            if (preview != null) {
+                preview.cancel();
+                preview = null;
+            }
+        }
+    }
+
+    /**
+     * Captures and sends a preview frame, unless vision is capturing from the camera, in which
+     * case the frame is skipped so the preview doesn't compete with vision for the device.
+     */
+    private void previewFrame() {
+        if (visionCaptures.get() > 0) {
+            return;
+        }
+        BufferedImage image = capturePreview();
+        if (image != null) {
+            broadcastCapture(image);
+        }
+    }
+
+    /**
+     * The preview doesn't care when a frame was grabbed, so with the grabber running it takes the
+     * latest frame without waiting for a new one.
+     */
+    private BufferedImage capturePreview() {
+        if (grabber == null) {
+            return capture();
+        }
+        FrameGrabber.Frame frame = captureFrame(true, 0);
+        if (frame == null) {
+            return null;
+        }
+        BufferedImage image = OpenCvUtils.toBufferedImage(frame.getMat());
+        frame.getMat().release();
+        return image;
+    }
+
+    protected BufferedImage transformImage(BufferedImage image) {
+        Mat mat = transformMat(OpenCvUtils.toMat(image));
         image = OpenCvUtils.toBufferedImage(mat);
         mat.release();
         return image;
     }
-    
+
+    /**
+     * Same as transformImage(), for cameras that capture into a Mat. The given Mat is released
+     * or returned, and the caller must release the result.
+     */
+    protected Mat transformMat(Mat mat) {
+        if (calibrating) {
+            // Calibration has to see the cropped image before it is rotated, so take it one step
+            // at a time. Undistortion is always off while calibrating.
+            mat = crop(mat);
+
+            mat = calibrate(mat);
+
+            // apply affine transformations
+            mat = rotate(mat, rotation);
+
+            mat = offset(mat, offsetX, offsetY);
+
+            mat = flip(mat);
+        }
+        else {
+            CameraTransform transform = getTransform();
+            if (!transform.isIdentity()) {
+                Mat dst = transform.apply(mat);
+                mat.release();
+                mat = dst;
+            }
+        }
+        return mat;
+    }
+
+    /**
+     * Returns the CameraTransform for the current settings, creating a new one if they have
+     * changed since the last frame.
+     */
+    private CameraTransform getTransform() {
+        Mat cameraMatrix = null;
+        Mat distortionCoefficients = null;
+        if (calibration.isEnabled()) {
+            cameraMatrix = calibration.getCameraMatrixMat();
+            distortionCoefficients = calibration.getDistortionCoefficientsMat();
+        }
+        CameraTransform transform = this.transform;
+        if (transform == null || !transform.matches(cropWidth, cropHeight, cameraMatrix,
+                distortionCoefficients, rotation, offsetX, offsetY, flipX, flipY)) {
+            if (transform != null) {
+                transform.release();
+            }
+            transform = new CameraTransform(cropWidth, cropHeight, cameraMatrix,
+                    distortionCoefficients, rotation, offsetX, offsetY, flipX, flipY);
+            this.transform = transform;
+        }
+        return transform;
+    }
+
     private Mat crop(Mat mat) {
         if (cropWidth != 0 || cropHeight != 0) {
             Rect roi = new Rect(
@@ -284,27 +555,18 @@ public abstract class ReferenceCamera extends AbstractCamera implements Referenc
         return dst;
     }
 
-    private Mat undistort(Mat mat) {
-        if (!calibration.isEnabled()) {
-            return mat;
-        }
-
-        if (undistortionMap1 == null || undistortionMap2 == null) {
-            undistortionMap1 = new Mat();
-            undistortionMap2 = new Mat();
-            Mat rectification = Mat.eye(3, 3, CvType.CV_32F);
-            Imgproc.initUndistortRectifyMap(calibration.getCameraMatrixMat(),
-                    calibration.getDistortionCoefficientsMat(), rectification,
-                    calibration.getCameraMatrixMat(), mat.size(), CvType.CV_32FC1, undistortionMap1,
-                    undistortionMap2);
-            rectification.release();
+    private Mat flip(Mat mat) {
+        if (flipX || flipY) {
+            int flipCode;
+            if (flipX && flipY) {
+                flipCode = -1;
+            }
+            else {
+                flipCode = flipX ? 0 : 1;
+            }
+            Core.flip(mat, mat, flipCode);
         }
-
-        Mat dst = mat.clone();
-        Imgproc.remap(mat, dst, undistortionMap1, undistortionMap2, Imgproc.INTER_LINEAR);
-        mat.release();
-
-        return dst;
+        return mat;
     }
 
     private Mat calibrate(Mat mat) {
@@ -382,7 +644,9 @@ public abstract class ReferenceCamera extends AbstractCamera implements Referenc
     }
 
     @Override
-    public void close() throws IOException {}
+    public void close() throws IOException {
+        stopPreview();
+    }
 
     public interface CalibrationCallback {
         public void callback(int progressCurrent, int progressMax, boolean complete);
@@ -69,6 +69,42 @@ public interface ReferenceDriver extends WizardConfigurable, PropertySheetHolder
      */
     public Location getLocation(ReferenceHeadMountable hm);
 
+    /**
+     * Returns the most recent PositionSnapshot the driver has published for the Head, or null if
+     * the driver doesn't publish them. This never blocks, so it is safe to call from any thread,
+     * such as the UI's, while the machine is moving.
+     * 
+     * @param head
+     * @return
+     */
+    public PositionSnapshot getPosition(ReferenceHead head);
+
+    /**
+     * Moves every HeadMountable on the Head to it's safe Z. Drivers that can raise all of the Z
+     * axes with a single command should do so, since this is called before nearly every move.
+     * Drivers that can't can call ReferenceHead.moveEachToSafeZ(this, speed), which moves each
+     * HeadMountable in turn with this driver.
+     * 
+     * @param head
+     * @param speed
+     * @throws Exception
+     */
+    public void moveToSafeZ(ReferenceHead head, double speed) throws Exception;
+
+    /**
+     * Same as moveToSafeZ(), except that the next command for the Head is known to be a move in X
+     * and Y, so the driver may leave the end of the retract to be finished by that move. See
+     * Head.moveToSafeZBeforeTravel().
+     * 
+     * @param head
+     * @param speed
+     * @throws Exception
+     */
+    public default void moveToSafeZBeforeTravel(ReferenceHead head, double speed)
+            throws Exception {
+        moveToSafeZ(head, speed);
+    }
+
     /**
      * Causes the nozzle to apply vacuum and any other operation that it uses for picking up a part
      * that it is resting on.
@@ -28,6 +28,12 @@ import org.openpnp.gui.support.PropertySheetWizardAdapter;
 import org.openpnp.gui.support.Wizard;
 import org.openpnp.machine.reference.wizards.ReferenceHeadConfigurationWizard;
 import org.openpnp.model.Configuration;
+import org.openpnp.model.Length;
+import org.openpnp.model.Location;
+import org.openpnp.spi.Actuator;
+import org.openpnp.spi.Camera;
+import org.openpnp.spi.Nozzle;
+import org.openpnp.spi.PasteDispenser;
 import org.openpnp.spi.PropertySheetHolder;
 import org.openpnp.spi.base.AbstractHead;
 import org.openpnp.spi.base.SimplePropertySheetHolder;
@@ -40,6 +46,12 @@ public class ReferenceHead extends AbstractHead {
     protected ReferenceMachine machine;
     protected ReferenceDriver driver;
 
+    /**
+     * The lowest Z that clears everything the nozzles may pass over, or null if that is not known.
+     * This is not saved with the configuration; the job processor sets it while a job is running.
+     */
+    protected volatile Length travelFloor;
+
     public ReferenceHead() {
         Configuration.get().addListener(new ConfigurationListener.Adapter() {
             @Override
@@ -91,7 +103,75 @@ public class ReferenceHead extends AbstractHead {
     @Override
     public void moveToSafeZ(double speed) throws Exception {
         logger.debug("{}.moveToSafeZ({})", getName(), speed);
-        super.moveToSafeZ(speed);
+        driver.moveToSafeZ(this, speed);
+        machine.fireMachineHeadActivity(this);
+    }
+
+    @Override
+    public void moveToSafeZBeforeTravel(double speed) throws Exception {
+        logger.debug("{}.moveToSafeZBeforeTravel({})", getName(), speed);
+        driver.moveToSafeZBeforeTravel(this, speed);
+        machine.fireMachineHeadActivity(this);
+    }
+
+    /**
+     * Moves each HeadMountable to it's safe Z one at a time with the given driver. This is the
+     * fallback for drivers that can't move all of them with a single command.
+     * 
+     * The moves are sent straight to the given driver instead of through the HeadMountables,
+     * which would send them to the machine's driver. A driver that is a GcodeDriver sub-driver is
+     * called from the primary driver while it waits, so going back through the primary would
+     * deadlock.
+     * 
+     * @param driver
+     * @param speed
+     * @throws Exception
+     */
+    public void moveEachToSafeZ(ReferenceDriver driver, double speed) throws Exception {
+        for (Nozzle nozzle : nozzles) {
+            if (nozzle instanceof ReferenceNozzle) {
+                ReferenceNozzle referenceNozzle = (ReferenceNozzle) nozzle;
+                // As in ReferenceNozzle.moveToSafeZ(), a part on the nozzle limits the speed.
+                double nozzleSpeed = speed;
+                if (referenceNozzle.getPart() != null) {
+                    nozzleSpeed = referenceNozzle.getPart().getSpeed() * speed;
+                }
+                moveToSafeZ(driver, referenceNozzle, referenceNozzle.getTravelZ(), nozzleSpeed);
+            }
+        }
+        for (Camera camera : cameras) {
+            if (camera instanceof ReferenceCamera) {
+                ReferenceCamera referenceCamera = (ReferenceCamera) camera;
+                moveToSafeZ(driver, referenceCamera, referenceCamera.getSafeZ(), speed);
+            }
+        }
+        for (Actuator actuator : actuators) {
+            if (actuator instanceof ReferenceActuator) {
+                ReferenceActuator referenceActuator = (ReferenceActuator) actuator;
+                moveToSafeZ(driver, referenceActuator, referenceActuator.getSafeZ(), speed);
+            }
+        }
+        for (PasteDispenser dispenser : pasteDispensers) {
+            if (dispenser instanceof ReferencePasteDispenser) {
+                ReferencePasteDispenser referenceDispenser = (ReferencePasteDispenser) dispenser;
+                moveToSafeZ(driver, referenceDispenser, referenceDispenser.getSafeZ(), speed);
+            }
+        }
+    }
+
+    private static void moveToSafeZ(ReferenceDriver driver, ReferenceHeadMountable hm,
+            Length safeZ, double speed) throws Exception {
+        Location location = new Location(safeZ.getUnits(), Double.NaN, Double.NaN,
+                safeZ.getValue(), Double.NaN);
+        driver.moveTo(hm, location, speed);
+    }
+
+    public Length getTravelFloor() {
+        return travelFloor;
+    }
+
+    public void setTravelFloor(Length travelFloor) {
+        this.travelFloor = travelFloor;
     }
 
     @Override
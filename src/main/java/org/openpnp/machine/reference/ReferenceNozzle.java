@@ -194,7 +194,7 @@ public class ReferenceNozzle extends AbstractNozzle implements ReferenceHeadMoun
             speed = part.getSpeed() * speed;
         }
         logger.debug("{}.moveToSafeZ({})", new Object[] {getName(), speed});
-        Length safeZ = this.safeZ.convertToUnits(getLocation().getUnits());
+        Length safeZ = getTravelZ().convertToUnits(getLocation().getUnits());
         Location l = new Location(getLocation().getUnits(), Double.NaN, Double.NaN,
                 safeZ.getValue(), Double.NaN);
         driver.moveTo(this, l, speed);
@@ -311,6 +311,24 @@ public class ReferenceNozzle extends AbstractNozzle implements ReferenceHeadMoun
         this.safeZ = safeZ;
     }
 
+    /**
+     * Returns the Z that moveToSafeZ() moves to. This is the configured Safe Z unless the head has
+     * a travel floor, in which case it is the floor plus the height of the part on the nozzle, if
+     * any, but never higher than Safe Z. See ReferenceHead.getTravelFloor().
+     */
+    public Length getTravelZ() {
+        Length travelFloor = head == null ? null : ((ReferenceHead) head).getTravelFloor();
+        if (travelFloor == null) {
+            return safeZ;
+        }
+        LengthUnit units = safeZ.getUnits();
+        double z = travelFloor.convertToUnits(units).getValue();
+        if (part != null) {
+            z += part.getHeight().convertToUnits(units).getValue();
+        }
+        return new Length(Math.min(z, safeZ.getValue()), units);
+    }
+
     @Override
     public void moveTo(Location location) throws Exception {
         moveTo(location, getHead().getMachine().getSpeed());
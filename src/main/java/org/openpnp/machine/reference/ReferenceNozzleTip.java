@@ -319,6 +319,7 @@ public class ReferenceNozzleTip extends AbstractNozzleTip {
         private Location findCircle() throws Exception {
             Camera camera = VisionUtils.getBottomVisionCamera();
             pipeline.setCamera(camera);
+            pipeline.setRetainAllImages(false);
             pipeline.process();
             Location location;
             Object result = pipeline.getResult("result").model;
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2011 Jason von Nieda <jason@vonnieda.org>
+ *
+ * This file is part of OpenPnP.
+ *
+ * OpenPnP is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenPnP is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with OpenPnP. If not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * For more information about OpenPnP visit http://openpnp.org
+ */
+
+package org.openpnp.machine.reference;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openpnp.machine.reference.ReferencePnpJobProcessor.JobPlacement;
+import org.openpnp.machine.reference.ReferencePnpJobProcessor.PlannedPlacement;
+import org.openpnp.model.Part;
+import org.openpnp.spi.Nozzle;
+import org.openpnp.spi.NozzleTip;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A planner that minimizes nozzle tip changes over the whole job instead of cycle by cycle.
+ *
+ * When the job starts the pending placements are partitioned by the set of nozzle / nozzle tip
+ * pairs that can handle them. From those groups we choose the smallest set of nozzle tips to load
+ * that covers every placement, counting the tips that are already loaded as free. This is a
+ * minimum hitting set problem, solved exactly with a small branch and bound search since the
+ * number of nozzles and nozzle tips is small.
+ *
+ * While the job runs, each Nozzle only uses its scheduled tips, keeps its current tip as long as
+ * there is pending work for it, and never goes back to a tip it has unloaded. That way every
+ * scheduled tip is loaded at most once and the job performs exactly the estimated number of
+ * changes. Cycles are then planned as usual by ReferencePnpJobPlanner within those limits.
+ */
+public class ReferenceNozzleTipBatchPlanner extends ReferencePnpJobPlanner {
+    private static final Logger logger =
+            LoggerFactory.getLogger(ReferenceNozzleTipBatchPlanner.class);
+
+    /**
+     * Upper limit on the number of search nodes for the schedule. If it is reached the best
+     * schedule found so far, at worst the greedy one, is used.
+     */
+    private static final int MAX_NODES = 1000000;
+
+    private Map<Nozzle, Set<NozzleTip>> scheduledNozzleTips = new HashMap<>();
+
+    private Map<Nozzle, Set<NozzleTip>> unloadedNozzleTips = new HashMap<>();
+
+    private Map<Nozzle, NozzleTip> lastNozzleTips = new HashMap<>();
+
+    private Map<Nozzle, List<NozzleTip>> allowedNozzleTips = new HashMap<>();
+
+    private int estimatedNozzleTipChanges;
+
+    public ReferenceNozzleTipBatchPlanner(List<Nozzle> nozzles, List<JobPlacement> jobPlacements) {
+        schedule(nozzles, jobPlacements);
+    }
+
+    /**
+     * Returns the number of nozzle tip changes the schedule calls for, as of when it was last
+     * computed.
+     */
+    public int getEstimatedNozzleTipChanges() {
+        return estimatedNozzleTipChanges;
+    }
+
+    @Override
+    public List<PlannedPlacement> plan(List<Nozzle> nozzles, List<JobPlacement> jobPlacements) {
+        // Notice any tips that have been unloaded since the last cycle. They are done for this
+        // job.
+        for (Nozzle nozzle : nozzles) {
+            NozzleTip lastNozzleTip = lastNozzleTips.get(nozzle);
+            if (lastNozzleTip != null && lastNozzleTip != nozzle.getNozzleTip()) {
+                unloadedNozzleTips.get(nozzle).add(lastNozzleTip);
+            }
+            lastNozzleTips.put(nozzle, nozzle.getNozzleTip());
+        }
+
+        updateAllowedNozzleTips(nozzles, jobPlacements);
+        List<PlannedPlacement> plannedPlacements = super.plan(nozzles, jobPlacements);
+        if (plannedPlacements.isEmpty() && !jobPlacements.isEmpty()) {
+            // Something has changed underneath us, such as the nozzle tips being changed by hand.
+            // Start over from the current state.
+            logger.debug("No placements possible with the current schedule, rescheduling.");
+            schedule(nozzles, jobPlacements);
+            updateAllowedNozzleTips(nozzles, jobPlacements);
+            plannedPlacements = super.plan(nozzles, jobPlacements);
+        }
+        return plannedPlacements;
+    }
+
+    @Override
+    protected List<NozzleTip> getNozzleTips(Nozzle nozzle) {
+        List<NozzleTip> nozzleTips = allowedNozzleTips.get(nozzle);
+        return nozzleTips == null ? nozzle.getNozzleTips() : nozzleTips;
+    }
+
+    /**
+     * A Nozzle that has pending work for its loaded tip may only use that tip. Otherwise it may
+     * use any of its scheduled tips that it has not already unloaded.
+     */
+    private void updateAllowedNozzleTips(List<Nozzle> nozzles, List<JobPlacement> jobPlacements) {
+        allowedNozzleTips.clear();
+        for (Nozzle nozzle : nozzles) {
+            Set<NozzleTip> scheduled = scheduledNozzleTips.get(nozzle);
+            NozzleTip nozzleTip = nozzle.getNozzleTip();
+            if (nozzleTip != null && scheduled.contains(nozzleTip)
+                    && jobPlacements.stream().anyMatch(
+                            jobPlacement -> nozzleTip.canHandle(jobPlacement.placement.getPart()))) {
+                List<NozzleTip> nozzleTips = new ArrayList<>();
+                nozzleTips.add(nozzleTip);
+                allowedNozzleTips.put(nozzle, nozzleTips);
+                continue;
+            }
+            List<NozzleTip> nozzleTips = new ArrayList<>(scheduled);
+            nozzleTips.remove(nozzleTip);
+            nozzleTips.removeAll(unloadedNozzleTips.get(nozzle));
+            allowedNozzleTips.put(nozzle, nozzleTips);
+        }
+    }
+
+    private void schedule(List<Nozzle> nozzles, List<JobPlacement> jobPlacements) {
+        // Every nozzle / nozzle tip pair gets an index. Loaded tips cost nothing.
+        List<Nozzle> pairNozzles = new ArrayList<>();
+        List<NozzleTip> pairNozzleTips = new ArrayList<>();
+        BitSet loaded = new BitSet();
+        for (Nozzle nozzle : nozzles) {
+            for (NozzleTip nozzleTip : nozzle.getNozzleTips()) {
+                if (nozzleTip == nozzle.getNozzleTip()) {
+                    loaded.set(pairNozzles.size());
+                }
+                pairNozzles.add(nozzle);
+                pairNozzleTips.add(nozzleTip);
+            }
+        }
+
+        // Group the placements by the pairs that can handle them. Groups that a loaded tip
+        // already handles need nothing more.
+        Map<Part, BitSet> groupsByPart = new HashMap<>();
+        Set<BitSet> groups = new LinkedHashSet<>();
+        for (JobPlacement jobPlacement : jobPlacements) {
+            Part part = jobPlacement.placement.getPart();
+            BitSet group = groupsByPart.get(part);
+            if (group == null) {
+                group = new BitSet();
+                for (int i = 0; i < pairNozzleTips.size(); i++) {
+                    if (pairNozzleTips.get(i).canHandle(part)) {
+                        group.set(i);
+                    }
+                }
+                groupsByPart.put(part, group);
+            }
+            if (!group.isEmpty() && !group.intersects(loaded)) {
+                groups.add(group);
+            }
+        }
+
+        HittingSet hittingSet = new HittingSet(new ArrayList<>(groups));
+        hittingSet.search(new BitSet(), 0);
+        if (hittingSet.nodes > MAX_NODES) {
+            logger.warn("Nozzle tip schedule search limit reached, using best schedule found.");
+        }
+        BitSet chosen = hittingSet.best;
+        chosen.or(loaded);
+
+        scheduledNozzleTips.clear();
+        unloadedNozzleTips.clear();
+        lastNozzleTips.clear();
+        for (Nozzle nozzle : nozzles) {
+            scheduledNozzleTips.put(nozzle, new LinkedHashSet<>());
+            unloadedNozzleTips.put(nozzle, new HashSet<>());
+            lastNozzleTips.put(nozzle, nozzle.getNozzleTip());
+        }
+        for (int i = chosen.nextSetBit(0); i >= 0; i = chosen.nextSetBit(i + 1)) {
+            scheduledNozzleTips.get(pairNozzles.get(i)).add(pairNozzleTips.get(i));
+        }
+        estimatedNozzleTipChanges = hittingSet.bestSize;
+        logger.debug("Scheduled nozzle tips {}, {} changes", scheduledNozzleTips,
+                estimatedNozzleTipChanges);
+    }
+
+    /**
+     * Finds the smallest set of pairs that contains at least one pair from every group.
+     */
+    private static class HittingSet {
+        final List<BitSet> groups;
+        BitSet best;
+        int bestSize;
+        int nodes;
+
+        HittingSet(List<BitSet> groups) {
+            this.groups = groups;
+            // Start with a greedy solution so that the search always has an answer and a good
+            // bound to prune against.
+            best = greedy();
+            bestSize = best.cardinality();
+        }
+
+        void search(BitSet chosen, int size) {
+            if (++nodes > MAX_NODES) {
+                return;
+            }
+            // Branch on the uncovered group with the fewest pairs, and bound using a set of
+            // uncovered groups that share no pairs, since each of them needs its own pair.
+            BitSet branch = null;
+            int lowerBound = 0;
+            BitSet disjoint = new BitSet();
+            for (BitSet group : groups) {
+                if (group.intersects(chosen)) {
+                    continue;
+                }
+                if (branch == null || group.cardinality() < branch.cardinality()) {
+                    branch = group;
+                }
+                if (!group.intersects(disjoint)) {
+                    disjoint.or(group);
+                    lowerBound++;
+                }
+            }
+            if (branch == null) {
+                if (size < bestSize) {
+                    best = (BitSet) chosen.clone();
+                    bestSize = size;
+                }
+                return;
+            }
+            if (size + lowerBound >= bestSize) {
+                return;
+            }
+            for (int i = branch.nextSetBit(0); i >= 0; i = branch.nextSetBit(i + 1)) {
+                chosen.set(i);
+                search(chosen, size + 1);
+                chosen.clear(i);
+            }
+        }
+
+        BitSet greedy() {
+            BitSet chosen = new BitSet();
+            while (true) {
+                Map<Integer, Integer> counts = new HashMap<>();
+                for (BitSet group : groups) {
+                    if (group.intersects(chosen)) {
+                        continue;
+                    }
+                    for (int i = group.nextSetBit(0); i >= 0; i = group.nextSetBit(i + 1)) {
+                        counts.put(i, counts.getOrDefault(i, 0) + 1);
+                    }
+                }
+                if (counts.isEmpty()) {
+                    return chosen;
+                }
+                int bestPair = -1;
+                for (Map.Entry<Integer, Integer> entry : counts.entrySet()) {
+                    if (bestPair == -1 || entry.getValue() > counts.get(bestPair)) {
+                        bestPair = entry.getKey();
+                    }
+                }
+                chosen.set(bestPair);
+            }
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2011 Jason von Nieda <jason@vonnieda.org>
+ *
+ * This file is part of OpenPnP.
+ *
+ * OpenPnP is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenPnP is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with OpenPnP. If not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * For more information about OpenPnP visit http://openpnp.org
+ */
+
+package org.openpnp.machine.reference;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openpnp.machine.reference.ReferencePnpJobProcessor.JobPlacement;
+import org.openpnp.machine.reference.ReferencePnpJobProcessor.PlannedPlacement;
+import org.openpnp.machine.reference.ReferencePnpJobProcessor.PnpJobPlanner;
+import org.openpnp.model.Part;
+import org.openpnp.spi.Nozzle;
+import org.openpnp.spi.NozzleTip;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Plans a single cycle by assigning at most one JobPlacement to each Nozzle. The result is the
+ * same one the original cartesian product planner produced: the solution with the fewest empty
+ * nozzles, then the fewest nozzle tip changes, and of those the first one in nozzle order and
+ * JobPlacement order. It is found with a branch and bound search instead of enumerating every
+ * combination, so it runs in bounded time and memory regardless of the size of the job.
+ *
+ * Description of the planner:
+ *
+ * 1. Build a profile for each Part: which Nozzles can handle it at all and which Nozzles can
+ * handle it with the currently loaded NozzleTip. JobPlacements with the same profile are
+ * interchangeable as far as the cost of a solution is concerned.
+ *
+ * 2. Keep only the first N JobPlacements of each profile, where N is the number of Nozzles. The
+ * other Nozzles can use at most N - 1 of them, so the first choice for any Nozzle is always among
+ * the first N.
+ *
+ * 3. Search the remaining candidates depth first, one Nozzle at a time, in the same order as the
+ * cartesian product. A branch is pruned as soon as an optimistic estimate of its nulls and nozzle
+ * changes can no longer beat the best solution found so far.
+ */
+public class ReferencePnpJobPlanner implements PnpJobPlanner {
+    private static final Logger logger = LoggerFactory.getLogger(ReferencePnpJobPlanner.class);
+
+    /**
+     * Upper limit on the number of search nodes visited for one cycle. The bound is tight enough
+     * that real jobs never get close to this, but if it is ever reached the best solution found so
+     * far is used rather than stalling the job.
+     */
+    private static final int MAX_NODES = 1000000;
+
+    @Override
+    public List<PlannedPlacement> plan(List<Nozzle> nozzles, List<JobPlacement> jobPlacements) {
+        int nozzleCount = nozzles.size();
+
+        // 1. Profile each distinct Part. Bit 2i is set if nozzle i can handle the part with
+        // any of it's tips, bit 2i + 1 if it can handle it without a nozzle tip change.
+        Map<Part, BitSet> profiles = new HashMap<>();
+        Map<BitSet, Integer> profileCounts = new HashMap<>();
+        List<JobPlacement> candidates = new ArrayList<>();
+        for (JobPlacement jobPlacement : jobPlacements) {
+            Part part = jobPlacement.placement.getPart();
+            BitSet profile = profiles.get(part);
+            if (profile == null) {
+                profile = createProfile(nozzles, part);
+                profiles.put(part, profile);
+            }
+            if (profile.isEmpty()) {
+                continue;
+            }
+            // 2. Only the first N of each profile can ever be part of the chosen solution.
+            int count = profileCounts.getOrDefault(profile, 0);
+            if (count >= nozzleCount) {
+                continue;
+            }
+            profileCounts.put(profile, count + 1);
+            candidates.add(jobPlacement);
+        }
+
+        // Build the per Nozzle candidate lists, as indexes into candidates, along with the
+        // nozzle change cost of each.
+        int[][] options = new int[nozzleCount][];
+        int[][] costs = new int[nozzleCount][];
+        for (int i = 0; i < nozzleCount; i++) {
+            List<Integer> indexes = new ArrayList<>();
+            for (int j = 0; j < candidates.size(); j++) {
+                if (profiles.get(candidates.get(j).placement.getPart()).get(2 * i)) {
+                    indexes.add(j);
+                }
+            }
+            options[i] = new int[indexes.size()];
+            costs[i] = new int[indexes.size()];
+            for (int j = 0; j < indexes.size(); j++) {
+                int index = indexes.get(j);
+                options[i][j] = index;
+                costs[i][j] =
+                        profiles.get(candidates.get(index).placement.getPart()).get(2 * i + 1) ? 0
+                                : 1;
+            }
+        }
+
+        // 3. Search.
+        Search search = new Search(options, costs, candidates.size());
+        search.search(0, 0, 0);
+        if (search.nodes > MAX_NODES) {
+            logger.warn("Planner search limit reached, using best solution found so far.");
+        }
+
+        List<PlannedPlacement> plannedPlacements = new ArrayList<>();
+        for (int i = 0; i < nozzleCount; i++) {
+            int choice = search.best[i];
+            if (choice == -1) {
+                continue;
+            }
+            Nozzle nozzle = nozzles.get(i);
+            JobPlacement jobPlacement = candidates.get(choice);
+            PlannedPlacement plannedPlacement = new PlannedPlacement(nozzle, jobPlacement);
+            plannedPlacement.nozzleTip = findNozzleTip(nozzle, jobPlacement.placement.getPart());
+            plannedPlacements.add(plannedPlacement);
+        }
+        return plannedPlacements;
+    }
+
+    /**
+     * Returns the NozzleTips the planner may use on the given Nozzle. By default this is all of
+     * the Nozzle's tips. Subclasses can override this to restrict which tips are considered.
+     * 
+     * @param nozzle
+     * @return
+     */
+    protected List<NozzleTip> getNozzleTips(Nozzle nozzle) {
+        return nozzle.getNozzleTips();
+    }
+
+    /**
+     * Returns the NozzleTip the Nozzle should use for the Part: the loaded one if it is allowed
+     * and can handle the Part, otherwise the first allowed one that can.
+     */
+    private NozzleTip findNozzleTip(Nozzle nozzle, Part part) {
+        List<NozzleTip> nozzleTips = getNozzleTips(nozzle);
+        NozzleTip nozzleTip = nozzle.getNozzleTip();
+        if (nozzleTip != null && nozzleTips.contains(nozzleTip) && nozzleTip.canHandle(part)) {
+            return nozzleTip;
+        }
+        for (NozzleTip nt : nozzleTips) {
+            if (nt.canHandle(part)) {
+                return nt;
+            }
+        }
+        return null;
+    }
+
+    private BitSet createProfile(List<Nozzle> nozzles, Part part) {
+        BitSet profile = new BitSet(nozzles.size() * 2);
+        for (int i = 0; i < nozzles.size(); i++) {
+            Nozzle nozzle = nozzles.get(i);
+            List<NozzleTip> nozzleTips = getNozzleTips(nozzle);
+            if (!nozzleTips.stream().anyMatch(nozzleTip -> nozzleTip.canHandle(part))) {
+                continue;
+            }
+            profile.set(2 * i);
+            // A Nozzle with no NozzleTip needs a change no matter what it's assigned, including
+            // nothing, so it costs the same for every solution and we count it as zero.
+            NozzleTip nozzleTip = nozzle.getNozzleTip();
+            if (nozzleTip == null
+                    || (nozzleTips.contains(nozzleTip) && nozzleTip.canHandle(part))) {
+                profile.set(2 * i + 1);
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * Depth first branch and bound over the candidate lists. Solutions are visited in the same
+     * order as the cartesian product, with "no placement" last for each Nozzle, and only a
+     * strictly better solution replaces the current best. That preserves the tie breaking of the
+     * original sort, which was stable.
+     */
+    private static class Search {
+        final int[][] options;
+        final int[][] costs;
+        final boolean[] used;
+        final int[] current;
+        int[] best;
+        int bestNulls = Integer.MAX_VALUE;
+        int bestChanges = Integer.MAX_VALUE;
+        int nodes;
+
+        Search(int[][] options, int[][] costs, int candidateCount) {
+            this.options = options;
+            this.costs = costs;
+            this.used = new boolean[candidateCount];
+            this.current = new int[options.length];
+            this.best = new int[options.length];
+        }
+
+        void search(int depth, int nulls, int changes) {
+            if (++nodes > MAX_NODES && bestNulls != Integer.MAX_VALUE) {
+                return;
+            }
+            if (depth == options.length) {
+                if (isBetter(nulls, changes)) {
+                    bestNulls = nulls;
+                    bestChanges = changes;
+                    best = current.clone();
+                }
+                return;
+            }
+            // Optimistic estimate of the remaining nozzles, ignoring conflicts between them.
+            int boundNulls = nulls;
+            int boundChanges = changes;
+            for (int i = depth; i < options.length; i++) {
+                int cost = -1;
+                for (int j = 0; j < options[i].length; j++) {
+                    if (used[options[i][j]]) {
+                        continue;
+                    }
+                    if (costs[i][j] == 0) {
+                        cost = 0;
+                        break;
+                    }
+                    cost = 1;
+                }
+                if (cost == -1) {
+                    boundNulls++;
+                }
+                else {
+                    boundChanges += cost;
+                }
+            }
+            if (!isBetter(boundNulls, boundChanges)) {
+                return;
+            }
+            for (int j = 0; j < options[depth].length; j++) {
+                int option = options[depth][j];
+                if (used[option]) {
+                    continue;
+                }
+                used[option] = true;
+                current[depth] = option;
+                search(depth + 1, nulls, changes + costs[depth][j]);
+                used[option] = false;
+            }
+            current[depth] = -1;
+            search(depth + 1, nulls + 1, changes);
+        }
+
+        boolean isBetter(int nulls, int changes) {
+            return nulls < bestNulls || (nulls == bestNulls && changes < bestChanges);
+        }
+    }
+}
@@ -20,14 +20,17 @@
 package org.openpnp.machine.reference;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import org.openpnp.gui.support.Wizard;
 import org.openpnp.machine.reference.ReferencePnpJobProcessor.JobPlacement.Status;
@@ -35,10 +38,12 @@ import org.openpnp.machine.reference.wizards.ReferencePnpJobProcessorConfigurati
 import org.openpnp.model.BoardLocation;
 import org.openpnp.model.Configuration;
 import org.openpnp.model.Job;
+import org.openpnp.model.Length;
 import org.openpnp.model.LengthUnit;
 import org.openpnp.model.Location;
 import org.openpnp.model.Part;
 import org.openpnp.model.Placement;
+import org.openpnp.spi.Camera;
 import org.openpnp.spi.Feeder;
 import org.openpnp.spi.FiducialLocator;
 import org.openpnp.spi.Head;
@@ -46,11 +51,13 @@ import org.openpnp.spi.Machine;
 import org.openpnp.spi.Nozzle;
 import org.openpnp.spi.NozzleTip;
 import org.openpnp.spi.base.AbstractPnpJobProcessor;
-import org.openpnp.util.Collect;
 import org.openpnp.util.FiniteStateMachine;
+import org.openpnp.util.ForkJoin;
 import org.openpnp.util.MovableUtils;
+import org.openpnp.util.TravellingSalesman;
 import org.openpnp.util.Utils2D;
 import org.simpleframework.xml.Attribute;
+import org.simpleframework.xml.Element;
 import org.simpleframework.xml.Root;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -62,6 +69,7 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
         PreFlight,
         FiducialCheck,
         Plan,
+        PreFeed,
         ChangeNozzleTip,
         Feed,
         Pick,
@@ -111,9 +119,15 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
     public static class PlannedPlacement {
         public final JobPlacement jobPlacement;
         public final Nozzle nozzle;
+        public NozzleTip nozzleTip;
         public Feeder feeder;
         public Location alignmentOffsets;
         public boolean fed;
+        /**
+         * Set when a background feed from this Feeder failed, which used up its retries.
+         */
+        public Feeder failedFeeder;
+        public boolean idleFeedAttempted;
         public boolean stepComplete;
 
         public PlannedPlacement(Nozzle nozzle, JobPlacement jobPlacement) {
@@ -127,13 +141,125 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
         }
     }
 
+    /**
+     * How a Feeder is chosen when more than one enabled Feeder is serving the same Part.
+     */
+    public enum FeederSelection {
+        /**
+         * Always use the first Feeder, in machine order, until it is disabled.
+         */
+        First,
+        /**
+         * Take turns between the Feeders so that they run out at about the same time.
+         */
+        RoundRobin,
+        /**
+         * Use the Feeder whose pick location is nearest to the Nozzle.
+         */
+        Nearest
+    }
+
+    /**
+     * A PnpJobPlanner decides which of the pending JobPlacements each Nozzle will work on during
+     * the next cycle. Nozzles that are not given a placement are left out of the result.
+     */
+    public interface PnpJobPlanner {
+        List<PlannedPlacement> plan(List<Nozzle> nozzles, List<JobPlacement> jobPlacements);
+    }
+
     private static final Logger logger = LoggerFactory.getLogger(ReferencePnpJobProcessor.class);
 
     @Attribute(required = false)
     protected boolean parkWhenComplete = false;
 
+    /**
+     * If enabled, the placements in each cycle are picked and placed in the order that minimizes
+     * head travel instead of in nozzle order.
+     */
+    @Attribute(required = false)
+    protected boolean optimizeTravel = true;
+
+    /**
+     * Maximum time spent optimizing the pick or place order of a single cycle.
+     */
+    @Attribute(required = false)
+    protected int travelOptimizationMilliseconds = 10;
+
+    /**
+     * If enabled, nozzle tip changes are planned for the whole job instead of cycle by cycle,
+     * using the fewest changes possible. See ReferenceNozzleTipBatchPlanner.
+     */
+    @Attribute(required = false)
+    protected boolean batchNozzleTips = false;
+
+    /**
+     * If enabled, feeders are fed ahead of time as soon as a cycle is planned instead of right
+     * before each pick. See doPreFeed().
+     */
+    @Attribute(required = false)
+    protected boolean preFeed = false;
+
+    @Attribute(required = false)
+    protected FeederSelection feederSelection = FeederSelection.First;
+
+    /**
+     * If enabled, nozzles only retract high enough to clear the tallest thing the job knows about,
+     * plus safeZClearance, instead of all the way to their Safe Z. See setTravelFloorEnabled().
+     */
+    @Attribute(required = false)
+    protected boolean dynamicSafeZ = false;
+
+    /**
+     * Clearance kept above the tallest known obstacle when dynamicSafeZ is enabled. This has to
+     * cover anything the job doesn't know the height of, such as feeder hardware next to the pick
+     * locations.
+     */
+    @Element(required = false)
+    protected Length safeZClearance = new Length(2, LengthUnit.Millimeters);
+
     private FiniteStateMachine<State, Message> fsm = new FiniteStateMachine<>(State.Uninitialized);
 
+    /**
+     * Z, in millimeters, of the top of the tallest obstacle the job knows about, or NaN if
+     * dynamicSafeZ is off or the obstacles could not all be determined.
+     */
+    private double obstacleZ = Double.NaN;
+
+    /**
+     * Runs background feeds and pre-feeds. See Feeder.canFeedInBackground().
+     */
+    private final ExecutorService feedExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "ReferencePnpJobProcessor Feed");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Forks a child FiniteStateMachine for each PlannedPlacement in the cycle and joins them
+     * before placing. See doFeedPickAndAlign().
+     */
+    private ForkJoin<PlannedPlacement, State, Message> cycle = new ForkJoin<>(
+            this::createPlacementStateMachine, State.Place, Message.Next,
+            new ForkJoin.Scheduler<PlannedPlacement, State>() {
+                @Override
+                public int getPhase(State state) {
+                    // Feed and pick each placement before moving on to the next one, then align
+                    // them all.
+                    return state == State.Align ? 1 : 0;
+                }
+
+                @Override
+                public FiniteStateMachine.Task getBackgroundTask(PlannedPlacement plannedPlacement,
+                        State state) {
+                    return getBackgroundFeedTask(plannedPlacement, state);
+                }
+
+                @Override
+                public FiniteStateMachine.Task getIdleTask() {
+                    return getIdleFeedTask();
+                }
+            }, feedExecutor);
+
     protected Job job;
 
     protected Machine machine;
@@ -146,6 +272,34 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
 
     protected Map<BoardLocation, Location> boardLocationFiducialOverrides = new HashMap<>();
 
+    /**
+     * Feeders that have been fed ahead of time and are holding a part for the next placement that
+     * uses them. The Future completes when the feed does, and fails if the feed failed.
+     */
+    protected Map<Feeder, Future<?>> primedFeeders = new HashMap<>();
+
+    /**
+     * The index of the next Feeder to use for each Part when using FeederSelection.RoundRobin.
+     */
+    protected Map<Part, Integer> feederRoundRobin = new HashMap<>();
+
+    /**
+     * Number of parts picked from each Feeder during the current job.
+     */
+    protected Map<Feeder, Integer> feederPickCounts = new HashMap<>();
+
+    protected PnpJobPlanner planner = new ReferencePnpJobPlanner();
+
+    /**
+     * Estimated head travel, in millimeters, saved by travel optimization during the current job.
+     */
+    protected double estimatedTravelSaved;
+
+    /**
+     * Number of nozzle tip changes performed during the current job.
+     */
+    protected int nozzleTipChanges;
+
     public ReferencePnpJobProcessor() {
         fsm.add(State.Uninitialized, Message.Initialize, State.PreFlight, this::doInitialize);
 
@@ -157,33 +311,26 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
         fsm.add(State.FiducialCheck, Message.Skip, State.Plan, Message.Next);
         fsm.add(State.FiducialCheck, Message.Abort, State.Cleanup, Message.Next);
 
-        fsm.add(State.Plan, Message.Next, State.ChangeNozzleTip, this::doPlan, Message.Next);
+        fsm.add(State.Plan, Message.Next, State.PreFeed, this::doPlan, Message.Next);
         fsm.add(State.Plan, Message.Abort, State.Cleanup, Message.Next);
         fsm.add(State.Plan, Message.Complete, State.Cleanup, Message.Next);
 
+        fsm.add(State.PreFeed, Message.Next, State.ChangeNozzleTip, this::doPreFeed,
+                Message.Next);
+        fsm.add(State.PreFeed, Message.Abort, State.Cleanup, Message.Next);
+
         fsm.add(State.ChangeNozzleTip, Message.Next, State.Feed, this::doChangeNozzleTip,
                 Message.Next);
         fsm.add(State.ChangeNozzleTip, Message.Skip, State.ChangeNozzleTip, this::doSkip,
                 Message.Next);
         fsm.add(State.ChangeNozzleTip, Message.Abort, State.Cleanup, Message.Next);
 
-        fsm.add(State.Feed, Message.Next, State.Align, this::doFeedAndPick, Message.Next);
+        // Feed, Pick and Align are performed by a child FSM per PlannedPlacement. See
+        // doFeedPickAndAlign() and createPlacementStateMachine().
+        fsm.add(State.Feed, Message.Next, State.Place, this::doFeedPickAndAlign, Message.Next);
         fsm.add(State.Feed, Message.Skip, State.Feed, this::doSkip, Message.Next);
         fsm.add(State.Feed, Message.Abort, State.Cleanup, Message.Next);
 
-        // TODO: See notes on doFeedAndPick()
-        // fsm.add(State.Feed, Message.Next, State.Pick, this::doFeed, Message.Next);
-        // fsm.add(State.Feed, Message.Skip, State.Feed, this::doSkip, Message.Next);
-        // fsm.add(State.Feed, Message.Abort, State.Cleanup, Message.Next);
-        //
-        // fsm.add(State.Pick, Message.Next, State.Align, this::doPick, Message.Next);
-        // fsm.add(State.Pick, Message.Skip, State.Pick, this::doSkip, Message.Next);
-        // fsm.add(State.Pick, Message.Abort, State.Cleanup, Message.Next);
-
-        fsm.add(State.Align, Message.Next, State.Place, this::doAlign, Message.Next);
-        fsm.add(State.Align, Message.Skip, State.Align, this::doSkip, Message.Next);
-        fsm.add(State.Align, Message.Abort, State.Cleanup, Message.Next);
-
         fsm.add(State.Place, Message.Next, State.Plan, this::doPlace);
         fsm.add(State.Place, Message.Skip, State.Place, this::doSkip, Message.Next);
         fsm.add(State.Place, Message.Abort, State.Cleanup, Message.Next);
@@ -199,7 +346,15 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
     }
 
     public synchronized boolean next() throws Exception {
-        fsm.send(Message.Next);
+        // The travel floor is only in effect while the job is moving the machine, so that manual
+        // moves while the job is paused use the configured Safe Z.
+        setTravelFloorEnabled(true);
+        try {
+            fsm.send(Message.Next);
+        }
+        finally {
+            setTravelFloorEnabled(false);
+        }
 
         if (fsm.getState() == State.Stopped) {
             /*
@@ -264,6 +419,12 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
         this.head = this.machine.getDefaultHead();
         this.jobPlacements.clear();
         this.boardLocationFiducialOverrides.clear();
+        this.primedFeeders.clear();
+        this.feederRoundRobin.clear();
+        this.feederPickCounts.clear();
+        this.estimatedTravelSaved = 0;
+        this.nozzleTipChanges = 0;
+        this.obstacleZ = Double.NaN;
 
         fireTextStatus("Checking job for setup errors.");
 
@@ -315,6 +476,21 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
         head.moveToSafeZ();
         // Discard any currently picked parts
         discardAll(head);
+
+        if (dynamicSafeZ) {
+            findObstacles();
+        }
+
+        if (batchNozzleTips) {
+            ReferenceNozzleTipBatchPlanner batchPlanner =
+                    new ReferenceNozzleTipBatchPlanner(head.getNozzles(), jobPlacements);
+            fireTextStatus("Job requires an estimated %d nozzle tip changes.",
+                    batchPlanner.getEstimatedNozzleTipChanges());
+            planner = batchPlanner;
+        }
+        else {
+            planner = new ReferencePnpJobPlanner();
+        }
     }
 
     protected void doFiducialCheck() throws Exception {
@@ -335,23 +511,9 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
     }
 
     /**
-     * Description of the planner:
-     * 
-     * 1. Create a List<List<JobPlacement>> where each List<JobPlacement> is a List of JobPlacements
-     * that the corresponding (in order) Nozzle can handle in Nozzle order.
-     * 
-     * In addition, each List<JobPlacement> contains one instance of null which represents a
-     * solution where that Nozzle does not perform a placement.
-     * 
-     * 2. Create the Cartesian product of all of the List<JobPlacement>. The resulting List<List
-     * <JobPlacement>> represents possible solutions for a single cycle with each JobPlacement
-     * corresponding to a Nozzle.
-     * 
-     * 3. Filter out any solutions where the same JobPlacement is represented more than once. We
-     * don't want more than one Nozzle trying to place the same Placement.
-     * 
-     * 4. Sort the solutions by fewest nulls followed by fewest nozzle changes. The result is that
-     * we prefer solutions that use more nozzles in a cycle and require fewer nozzle changes.
+     * Plan the next cycle. The pending placements are sorted by part height and handed to the
+     * PnpJobPlanner, which decides which placement each Nozzle will work on. See
+     * ReferencePnpJobPlanner for a description of the default planner.
      * 
      * Note: TODO: Originally planned to have this sort by part height but that went out the window
      * during development. Need to think about how to best combine the height requirement with the
@@ -373,41 +535,76 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
             return;
         }
 
-        // Create a List of Lists of JobPlacements that each Nozzle can handle, including
-        // one instance of null per Nozzle. The null indicates a possible "no solution"
-        // for that Nozzle.
-        List<List<JobPlacement>> solutions = head.getNozzles().stream().map(nozzle -> {
-            return Stream.concat(jobPlacements.stream().filter(jobPlacement -> {
-                return nozzleCanHandle(nozzle, jobPlacement.placement.getPart());
-            }), Stream.of((JobPlacement) null)).collect(Collectors.toList());
-        }).collect(Collectors.toList());
+        // Ask the planner for a solution and mark the chosen placements as in progress.
+        for (PlannedPlacement plannedPlacement : planner.plan(head.getNozzles(), jobPlacements)) {
+            plannedPlacement.jobPlacement.status = Status.Processing;
+            plannedPlacements.add(plannedPlacement);
+        }
 
-        // Get the cartesian product of those Lists
-        List<JobPlacement> result = Collect.cartesianProduct(solutions).stream()
-                // Filter out any results that contains the same JobPlacement more than once
-                .filter(list -> {
-                    return new HashSet<JobPlacement>(list).size() == list.size();
-                })
-                // Sort by the solutions that contain the fewest nulls followed by the
-                // solutions that require the fewest nozzle changes.
-                .sorted(byFewestNulls.thenComparing(byFewestNozzleChanges))
-                // And return the top result.
-                .findFirst().orElse(null);
-
-        // Now we have a solution, so apply it to the nozzles and plan the placements.
-        for (Nozzle nozzle : head.getNozzles()) {
-            // The solution is in Nozzle order, so grab the next one.
-            JobPlacement jobPlacement = result.remove(0);
-            if (jobPlacement == null) {
-                continue;
-            }
-            jobPlacement.status = Status.Processing;
-            plannedPlacements.add(new PlannedPlacement(nozzle, jobPlacement));
+        if (optimizeTravel) {
+            sequencePicks();
         }
 
         logger.debug("Planned placements {}", plannedPlacements);
     }
 
+    /**
+     * Order the picks to minimize head travel between feeders. If a pick location can't be
+     * found the nozzle order is kept, and the error is left for doFeed() where the placement can
+     * be retried or skipped.
+     */
+    protected void sequencePicks() {
+        Map<PlannedPlacement, Location> pickLocations = new HashMap<>();
+        for (PlannedPlacement plannedPlacement : plannedPlacements) {
+            try {
+                Feeder feeder = getFeeder(plannedPlacement);
+                pickLocations.put(plannedPlacement,
+                        getHeadLocation(plannedPlacement.nozzle, feeder.getPickLocation()));
+            }
+            catch (Exception e) {
+                logger.debug("No pick location for {}, keeping nozzle order: {}",
+                        plannedPlacement, e.getMessage());
+                return;
+            }
+        }
+        sequence(pickLocations);
+    }
+
+    /**
+     * Prime the feeders for the cycle that was just planned. Feeders that don't need the head are
+     * fed in the background right away, so they are working while nozzle tips are changed and
+     * earlier parts are picked. Only the first placement that uses a feeder can be primed, since
+     * feeding again would advance past the part that placement is going to pick. Feeders that
+     * need the head, such as drag feeders, are fed before the head waits for a background feed.
+     * See getIdleFeedTask().
+     */
+    protected void doPreFeed() throws Exception {
+        if (!preFeed) {
+            return;
+        }
+        Set<Feeder> feeders = new HashSet<>();
+        for (PlannedPlacement plannedPlacement : plannedPlacements) {
+            Part part = plannedPlacement.jobPlacement.placement.getPart();
+            Feeder feeder;
+            try {
+                feeder = getFeeder(plannedPlacement);
+            }
+            catch (Exception e) {
+                continue;
+            }
+            if (!feeders.add(feeder) || !feeder.canFeedInBackground()
+                    || primedFeeders.containsKey(feeder)) {
+                continue;
+            }
+            Nozzle nozzle = plannedPlacement.nozzle;
+            logger.debug("Pre-feed {} from {} with {}.", new Object[] {part, feeder, nozzle});
+            primedFeeders.put(feeder, feedExecutor.submit(() -> {
+                retry(1 + feeder.getRetryCount(), () -> feeder.feed(nozzle));
+                return null;
+            }));
+        }
+    }
+
     protected void doChangeNozzleTip() throws Exception {
         for (PlannedPlacement plannedPlacement : plannedPlacements) {
             if (plannedPlacement.stepComplete) {
@@ -426,14 +623,27 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
                 continue;
             }
 
-            fireTextStatus("Changing nozzle tip on nozzle %s.", nozzle.getId());
+            nozzleTipChanges++;
+            fireTextStatus("Changing nozzle tip on nozzle %s (%d nozzle tip changes this job).",
+                    nozzle.getId(), nozzleTipChanges);
 
-            // Otherwise find a compatible tip and load it
-            NozzleTip nozzleTip = findNozzleTip(nozzle, part);
+            // Otherwise load the tip the planner chose, or find a compatible one
+            NozzleTip nozzleTip = plannedPlacement.nozzleTip;
+            if (nozzleTip == null) {
+                nozzleTip = findNozzleTip(nozzle, part);
+            }
             logger.debug("Change nozzle tip on {} from {} to {}",
                     new Object[] {nozzle, nozzle.getNozzleTip(), nozzleTip});
-            nozzle.unloadNozzleTip();
-            nozzle.loadNozzleTip(nozzleTip);
+            // The nozzle tip changer is not part of the obstacle model, so change tips at the
+            // configured Safe Z.
+            setTravelFloorEnabled(false);
+            try {
+                nozzle.unloadNozzleTip();
+                nozzle.loadNozzleTip(nozzleTip);
+            }
+            finally {
+                setTravelFloorEnabled(true);
+            }
 
             // Mark this step as complete
             plannedPlacement.stepComplete = true;
@@ -442,115 +652,291 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
         clearStepComplete();
     }
 
-    /*
-     * TODO: This method is a compromise due to time constraints. Below, there is doFeed and doPick,
-     * which were intended to be used in sequence. I realized too late that I had made an error in
-     * designing the FSM and for multiple nozzles it was doing feed, feed, pick, pick instead of
-     * feed, pick, feed, pick. The latter is correct while the former is useless. Since I need to
-     * release this feature before Maker Faire I've decided to just combine the methods to get this
-     * done.
-     * 
-     * The whole FSM system needs to be reconsidered. There are two main things to consider: 1.
-     * current FSM cannot handle transitions within action methods. If it could then we could have
-     * doFeed process one PlannedPlacement, continue to Pick and then have Pick either loop back to
-     * Feed if there are more PlannedPlacements or continue to Align if not. I don't love this idea
-     * because it makes the FSM non-deterministic and thus harder to reason about.
+    /**
+     * Fork a child FiniteStateMachine for each PlannedPlacement, which feeds, picks and aligns
+     * it, and join them before placing. Steps that move the head run one at a time on this thread
+     * in a fixed order: feed and pick for each placement in turn, then align each one. Feeds
+     * that don't need the head are started in the background as early as possible, so that a
+     * feeder can be advancing for one nozzle while another nozzle is picking.
      * 
-     * 2. An ideal system would treat each step that required actions for multiple PlannedPlacements
-     * as their own FSM, producing a hierarchy of FSMs. I've also seen this idea referred to as
-     * "fork and join" FSMs and I have brainstormed this type of system a bit in the image at:
-     * https://imgur.com/a/63Y1t
+     * If a step fails the children keep their states, so calling this again, or skipping the
+     * failed placement, continues where it stopped.
      */
-    protected void doFeedAndPick() throws Exception {
+    protected void doFeedPickAndAlign() throws Exception {
+        cycle.join(plannedPlacements);
+
+        // Order the places to minimize head travel over the boards.
+        Map<PlannedPlacement, Location> placeLocations = new HashMap<>();
         for (PlannedPlacement plannedPlacement : plannedPlacements) {
-            if (plannedPlacement.stepComplete) {
+            placeLocations.put(plannedPlacement, getHeadLocation(plannedPlacement.nozzle,
+                    getPlacementLocation(plannedPlacement.jobPlacement)));
+        }
+        sequence(placeLocations);
+    }
+
+    /**
+     * Creates the child FiniteStateMachine that takes a single PlannedPlacement from Feed
+     * through Pick and Align. It finishes in the Place state, where the parent takes over.
+     */
+    protected FiniteStateMachine<State, Message> createPlacementStateMachine(
+            PlannedPlacement plannedPlacement) {
+        FiniteStateMachine<State, Message> fsm = new FiniteStateMachine<>(State.Feed);
+        fsm.add(State.Feed, Message.Next, State.Pick, () -> doFeed(plannedPlacement));
+        fsm.add(State.Pick, Message.Next, State.Align, () -> doPick(plannedPlacement));
+        fsm.add(State.Align, Message.Next, State.Place, () -> doAlign(plannedPlacement));
+        return fsm;
+    }
+
+    /**
+     * Returns a task that feeds the PlannedPlacement in the background, or null if it can't be
+     * done right now. That is the case if the feeder needs the head, or if an earlier placement in
+     * the cycle is still waiting to pick from the same feeder, since feeding again would advance
+     * past the part it is going to pick.
+     */
+    protected FiniteStateMachine.Task getBackgroundFeedTask(PlannedPlacement plannedPlacement,
+            State state) {
+        if (state != State.Feed || plannedPlacement.fed) {
+            return null;
+        }
+        Part part = plannedPlacement.jobPlacement.placement.getPart();
+        Feeder feeder;
+        try {
+            feeder = getFeeder(plannedPlacement);
+        }
+        catch (Exception e) {
+            return null;
+        }
+        if (!feeder.canFeedInBackground() || primedFeeders.containsKey(feeder)
+                || isFeederPending(plannedPlacement, feeder)) {
+            return null;
+        }
+        Nozzle nozzle = plannedPlacement.nozzle;
+        return () -> {
+            logger.debug("Background Feed {} from {} with {}.",
+                    new Object[] {part, feeder, nozzle});
+            try {
+                retry(1 + feeder.getRetryCount(), () -> feeder.feed(nozzle));
+            }
+            catch (Exception e) {
+                plannedPlacement.failedFeeder = feeder;
+                throw e;
+            }
+            plannedPlacement.feeder = feeder;
+            plannedPlacement.fed = true;
+        };
+    }
+
+    /**
+     * Returns a task that feeds the next placement in the cycle whose feeder needs the head, for
+     * the ForkJoin to run before it waits for a background feed. Each placement is offered only
+     * once, so a failed feed is left for its own Feed step. Returns null if pre-feed is disabled
+     * or there is nothing to feed.
+     */
+    protected FiniteStateMachine.Task getIdleFeedTask() {
+        if (!preFeed) {
+            return null;
+        }
+        for (PlannedPlacement plannedPlacement : plannedPlacements) {
+            if (cycle.getState(plannedPlacement) != State.Feed || plannedPlacement.fed
+                    || plannedPlacement.idleFeedAttempted) {
                 continue;
             }
-            Nozzle nozzle = plannedPlacement.nozzle;
-            JobPlacement jobPlacement = plannedPlacement.jobPlacement;
-            Placement placement = jobPlacement.placement;
-            Part part = placement.getPart();
+            Feeder feeder;
+            try {
+                feeder = getFeeder(plannedPlacement);
+            }
+            catch (Exception e) {
+                continue;
+            }
+            if (feeder.canFeedInBackground() || primedFeeders.containsKey(feeder)
+                    || isFeederPending(plannedPlacement, feeder)) {
+                continue;
+            }
+            return () -> {
+                plannedPlacement.idleFeedAttempted = true;
+                doFeed(plannedPlacement);
+            };
+        }
+        return null;
+    }
 
-            if (!plannedPlacement.fed) {
-                while (true) {
-                    // Find a compatible, enabled feeder
-                    Feeder feeder = findFeeder(machine, part);
-                    plannedPlacement.feeder = feeder;
+    /**
+     * Returns the Feeder the PlannedPlacement will be fed from. It is chosen with selectFeeder()
+     * the first time and then kept for as long as it stays enabled, so that every step of the
+     * cycle agrees on which Feeder is used.
+     */
+    protected Feeder getFeeder(PlannedPlacement plannedPlacement) throws Exception {
+        Part part = plannedPlacement.jobPlacement.placement.getPart();
+        Feeder feeder = plannedPlacement.feeder;
+        if (feeder == null || !feeder.isEnabled() || feeder.getPart() != part) {
+            feeder = selectFeeder(plannedPlacement.nozzle, part);
+            plannedPlacement.feeder = feeder;
+        }
+        return feeder;
+    }
 
-                    // Feed the part
+    /**
+     * Choose one of the enabled Feeders serving the Part according to feederSelection.
+     * 
+     * @throws Exception If there is no enabled Feeder serving the Part.
+     */
+    protected Feeder selectFeeder(Nozzle nozzle, Part part) throws Exception {
+        List<Feeder> feeders = findFeeders(machine, part);
+        switch (feederSelection) {
+            case RoundRobin: {
+                int index = feederRoundRobin.getOrDefault(part, 0) % feeders.size();
+                feederRoundRobin.put(part, index + 1);
+                return feeders.get(index);
+            }
+            case Nearest: {
+                Location location = nozzle.getLocation();
+                Feeder nearest = feeders.get(0);
+                double nearestDistance = Double.MAX_VALUE;
+                for (Feeder feeder : feeders) {
+                    double distance;
                     try {
-                        // Try to feed the part. If it fails, retry the specified number of times
-                        // before
-                        // giving up.
-                        retry(1 + feeder.getRetryCount(), () -> {
-                            fireTextStatus("Feeding %s from %s for %s.", part.getId(),
-                                    feeder.getName(), placement.getId());
-                            logger.debug("Attempt Feed {} from {} with {}.",
-                                    new Object[] {part, feeder, nozzle});
-
-                            feeder.feed(nozzle);
-
-                            logger.debug("Fed {} from {} with {}.",
-                                    new Object[] {part, feeder, nozzle});
-                        });
-
-                        break;
+                        distance = location.getLinearDistanceTo(feeder.getPickLocation());
                     }
                     catch (Exception e) {
-                        logger.debug("Feed {} from {} with {} failed!",
-                                new Object[] {part, feeder, nozzle});
-                        // If the feed fails, disable the feeder and continue. If there are no
-                        // more valid feeders the findFeeder() call above will throw and exit the
-                        // loop.
-                        feeder.setEnabled(false);
+                        continue;
+                    }
+                    if (distance < nearestDistance) {
+                        nearest = feeder;
+                        nearestDistance = distance;
                     }
                 }
-                plannedPlacement.fed = true;
+                return nearest;
             }
+            default:
+                return feeders.get(0);
+        }
+    }
 
-            // Get the feeder that was used to feed
-            Feeder feeder = plannedPlacement.feeder;
+    /**
+     * Returns true if an earlier placement in the cycle is still waiting to pick from the given
+     * Feeder. Feeding for the given placement before then would advance past that part.
+     */
+    protected boolean isFeederPending(PlannedPlacement plannedPlacement, Feeder feeder) {
+        for (PlannedPlacement earlier : plannedPlacements) {
+            if (earlier == plannedPlacement) {
+                break;
+            }
+            State earlierState = cycle.getState(earlier);
+            if ((earlierState == State.Feed || earlierState == State.Pick)
+                    && earlier.feeder == feeder) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-            // Move to the pick location
-            MovableUtils.moveToLocationAtSafeZ(nozzle, feeder.getPickLocation());
+    protected void doFeed(PlannedPlacement plannedPlacement) throws Exception {
+        if (plannedPlacement.fed) {
+            logger.debug("Already fed {} from {}.", plannedPlacement, plannedPlacement.feeder);
+            return;
+        }
+        Nozzle nozzle = plannedPlacement.nozzle;
+        JobPlacement jobPlacement = plannedPlacement.jobPlacement;
+        Placement placement = jobPlacement.placement;
+        Part part = placement.getPart();
+
+        // A failed background feed already used up the feeder's retries, so don't retry it
+        // again here.
+        if (plannedPlacement.failedFeeder != null) {
+            logger.warn("Background feed {} from {} failed, disabling it.", part,
+                    plannedPlacement.failedFeeder);
+            plannedPlacement.failedFeeder.setEnabled(false);
+            plannedPlacement.failedFeeder = null;
+        }
 
-            fireTextStatus("Picking %s from %s for %s.", part.getId(), feeder.getName(),
-                    placement.getId());
+        // If the feeder was primed, use the part it is holding. If priming failed it also used
+        // up the feeder's retries, so disable it and feed from the next one here.
+        Feeder primedFeeder = getFeeder(plannedPlacement);
+        Future<?> primed = primedFeeders.remove(primedFeeder);
+        if (primed != null) {
+            try {
+                primed.get();
+                plannedPlacement.feeder = primedFeeder;
+                plannedPlacement.fed = true;
+                logger.debug("Using pre-fed {} from {}.", part, primedFeeder);
+                return;
+            }
+            catch (ExecutionException e) {
+                logger.warn("Pre-feed {} from {} failed, disabling it.", part, primedFeeder,
+                        e.getCause());
+                primedFeeder.setEnabled(false);
+            }
+        }
 
-            // Pick
-            nozzle.pick(part);
+        while (true) {
+            // Find a compatible, enabled feeder
+            Feeder feeder = getFeeder(plannedPlacement);
 
-            // Retract
-            nozzle.moveToSafeZ();
+            // Feed the part
+            try {
+                // Try to feed the part. If it fails, retry the specified number of times before
+                // giving up.
+                retry(1 + feeder.getRetryCount(), () -> {
+                    fireTextStatus("Feeding %s from %s for %s.", part.getId(), feeder.getName(),
+                            placement.getId());
+                    logger.debug("Attempt Feed {} from {} with {}.",
+                            new Object[] {part, feeder, nozzle});
 
-            logger.debug("Pick {} from {} with {}", new Object[] {part, feeder, nozzle});
+                    feeder.feed(nozzle);
 
-            plannedPlacement.stepComplete = true;
-        }
+                    logger.debug("Fed {} from {} with {}.", new Object[] {part, feeder, nozzle});
+                });
 
-        clearStepComplete();
+                break;
+            }
+            catch (Exception e) {
+                logger.debug("Feed {} from {} with {} failed!",
+                        new Object[] {part, feeder, nozzle});
+                // If the feed fails, disable the feeder and continue. If there are no more valid
+                // feeders the getFeeder() call above will throw and exit the loop.
+                feeder.setEnabled(false);
+            }
+        }
+        plannedPlacement.fed = true;
     }
 
-    protected void doAlign() throws Exception {
-        for (PlannedPlacement plannedPlacement : plannedPlacements) {
-            if (plannedPlacement.stepComplete) {
-                continue;
-            }
-            Nozzle nozzle = plannedPlacement.nozzle;
-            JobPlacement jobPlacement = plannedPlacement.jobPlacement;
-            Placement placement = jobPlacement.placement;
-            Part part = placement.getPart();
+    protected void doPick(PlannedPlacement plannedPlacement) throws Exception {
+        Nozzle nozzle = plannedPlacement.nozzle;
+        JobPlacement jobPlacement = plannedPlacement.jobPlacement;
+        Placement placement = jobPlacement.placement;
+        Part part = placement.getPart();
 
-            fireTextStatus("Aligning %s for %s.", part.getId(), placement.getId());
-            Location alignmentOffsets = machine.getPartAlignment().findOffsets(part, nozzle);
-            plannedPlacement.alignmentOffsets = alignmentOffsets;
+        // Get the feeder that was used to feed
+        Feeder feeder = plannedPlacement.feeder;
 
-            logger.debug("Align {} with {}", part, nozzle);
+        // Move to the pick location
+        MovableUtils.moveToLocationAtSafeZ(nozzle, feeder.getPickLocation());
 
-            plannedPlacement.stepComplete = true;
-        }
+        fireTextStatus("Picking %s from %s for %s.", part.getId(), feeder.getName(),
+                placement.getId());
 
-        clearStepComplete();
+        // Pick
+        nozzle.pick(part);
+        feederPickCounts.put(feeder, feederPickCounts.getOrDefault(feeder, 0) + 1);
+        addObstacle(nozzle.getLocation());
+
+        // Retract
+        nozzle.moveToSafeZ();
+
+        logger.debug("Pick {} from {} with {}", new Object[] {part, feeder, nozzle});
+    }
+
+    protected void doAlign(PlannedPlacement plannedPlacement) throws Exception {
+        Nozzle nozzle = plannedPlacement.nozzle;
+        JobPlacement jobPlacement = plannedPlacement.jobPlacement;
+        Placement placement = jobPlacement.placement;
+        Part part = placement.getPart();
+
+        fireTextStatus("Aligning %s for %s.", part.getId(), placement.getId());
+        Location alignmentOffsets = machine.getPartAlignment().findOffsets(part, nozzle);
+        plannedPlacement.alignmentOffsets = alignmentOffsets;
+
+        logger.debug("Align {} with {}", part, nozzle);
     }
 
     protected void doPlace() throws Exception {
@@ -562,17 +948,7 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
             JobPlacement jobPlacement = plannedPlacement.jobPlacement;
             Placement placement = jobPlacement.placement;
             Part part = placement.getPart();
-            BoardLocation boardLocation = plannedPlacement.jobPlacement.boardLocation;
-
-            // Check if there is a fiducial override for the board location and if so, use it.
-            if (boardLocationFiducialOverrides.containsKey(boardLocation)) {
-                BoardLocation boardLocation2 = new BoardLocation(boardLocation.getBoard());
-                boardLocation2.setSide(boardLocation.getSide());
-                boardLocation2.setLocation(boardLocationFiducialOverrides.get(boardLocation));
-                boardLocation = boardLocation2;
-            }
-            Location placementLocation =
-                    Utils2D.calculateBoardPlacementLocation(boardLocation, placement.getLocation());
+            Location placementLocation = getPlacementLocation(jobPlacement);
 
             // If there are alignment offsets update the placement location with them
             if (plannedPlacement.alignmentOffsets != null) {
@@ -614,6 +990,7 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
 
             // Place the part
             nozzle.place();
+            addObstacle(placementLocation);
 
             // Retract
             nozzle.moveToSafeZ();
@@ -632,6 +1009,25 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
     protected void doCleanup() throws Exception {
         fireTextStatus("Cleaning up.");
 
+        if (optimizeTravel) {
+            logger.info("Travel optimization saved an estimated {} mm of head travel.",
+                    String.format("%.1f", estimatedTravelSaved));
+        }
+        logger.info("Job performed {} nozzle tip changes.", nozzleTipChanges);
+        logger.info("Feeder pick counts {}", feederPickCounts);
+
+        // Let any pre-feeds that are still running finish before moving the machine. Parts left
+        // in primed feeders are not tracked across jobs.
+        for (Future<?> primed : primedFeeders.values()) {
+            try {
+                primed.get();
+            }
+            catch (ExecutionException e) {
+                logger.debug("Pre-feed failed.", e.getCause());
+            }
+        }
+        primedFeeders.clear();
+
         // Safe Z the machine
         head.moveToSafeZ();
         
@@ -653,13 +1049,22 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
 
     /**
      * Discard the picked part, if any. Remove the currently processing PlannedPlacement from the
-     * list and mark the JobPlacement as Skipped.
+     * list and mark the JobPlacement as Skipped. The currently processing PlannedPlacement is the
+     * one whose child FSM failed, if any, or otherwise the first one that hasn't completed the
+     * current step.
      * 
      * @throws Exception
      */
     protected void doSkip() throws Exception {
-        if (plannedPlacements.size() > 0) {
-            PlannedPlacement plannedPlacement = plannedPlacements.remove(0);
+        PlannedPlacement plannedPlacement = cycle.getFailed();
+        if (plannedPlacement == null || !plannedPlacements.contains(plannedPlacement)) {
+            plannedPlacement = plannedPlacements.stream()
+                    .filter(p -> !p.stepComplete)
+                    .findFirst()
+                    .orElse(null);
+        }
+        if (plannedPlacement != null) {
+            plannedPlacements.remove(plannedPlacement);
             JobPlacement jobPlacement = plannedPlacement.jobPlacement;
             Nozzle nozzle = plannedPlacement.nozzle;
             discard(nozzle);
@@ -668,12 +1073,142 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
         }
     }
 
+    /**
+     * Find the top of everything the nozzles may pass over that the job knows about: the boards,
+     * the parts already on them, every feeder's pick location, the fixed cameras and the discard
+     * location. Parts are added as they are placed. If any of these can't be determined the travel
+     * floor stays off for this job.
+     */
+    protected void findObstacles() {
+        try {
+            for (BoardLocation boardLocation : job.getBoardLocations()) {
+                if (!boardLocation.isEnabled()) {
+                    continue;
+                }
+                addObstacle(boardLocation.getLocation());
+                for (Placement placement : boardLocation.getBoard().getPlacements()) {
+                    // Placements the job will place are added as they are placed. Anything else
+                    // with a part is assumed to already be on the board.
+                    if (placement.getType() == Placement.Type.Place
+                            || placement.getSide() != boardLocation.getSide()
+                            || placement.getPart() == null) {
+                        continue;
+                    }
+                    Part part = placement.getPart();
+                    addObstacle(Utils2D.calculateBoardPlacementLocation(boardLocation,
+                            placement.getLocation()).add(new Location(part.getHeight().getUnits(),
+                                    0, 0, part.getHeight().getValue(), 0)));
+                }
+            }
+            for (Feeder feeder : machine.getFeeders()) {
+                addObstacle(feeder.getPickLocation());
+            }
+            for (Camera camera : machine.getCameras()) {
+                addObstacle(camera.getLocation());
+            }
+            addObstacle(machine.getDiscardLocation());
+            logger.debug("Dynamic Safe Z obstacle height {} mm", obstacleZ);
+        }
+        catch (Exception e) {
+            logger.warn("Unable to determine obstacle heights, using Safe Z for this job.", e);
+            obstacleZ = Double.NaN;
+        }
+    }
+
+    /**
+     * Raise the obstacle height to include the given Location, such as the top of a part that was
+     * just placed.
+     */
+    protected void addObstacle(Location location) {
+        if (!dynamicSafeZ || location == null) {
+            return;
+        }
+        double z = location.convertToUnits(LengthUnit.Millimeters).getZ();
+        if (Double.isNaN(obstacleZ) || z > obstacleZ) {
+            obstacleZ = z;
+            setTravelFloorEnabled(true);
+        }
+    }
+
+    /**
+     * Publish the travel floor, the obstacle height plus safeZClearance, to the head, or clear
+     * it. See ReferenceNozzle.getTravelZ().
+     */
+    protected void setTravelFloorEnabled(boolean enabled) {
+        if (!(head instanceof ReferenceHead)) {
+            return;
+        }
+        Length travelFloor = null;
+        if (enabled && dynamicSafeZ && !Double.isNaN(obstacleZ)) {
+            travelFloor = new Length(obstacleZ
+                    + safeZClearance.convertToUnits(LengthUnit.Millimeters).getValue(),
+                    LengthUnit.Millimeters);
+        }
+        ((ReferenceHead) head).setTravelFloor(travelFloor);
+    }
+
     protected void clearStepComplete() {
         for (PlannedPlacement plannedPlacement : plannedPlacements) {
             plannedPlacement.stepComplete = false;
         }
     }
 
+    /**
+     * Reorder plannedPlacements so that visiting each of the given head locations, starting from
+     * the current head position, covers the least distance. The original order is kept unless the
+     * new one is shorter.
+     * 
+     * @param locations The head location, as returned by getHeadLocation(), to visit for each
+     *        PlannedPlacement.
+     */
+    protected void sequence(Map<PlannedPlacement, Location> locations) {
+        if (!optimizeTravel || plannedPlacements.size() < 2) {
+            return;
+        }
+        Nozzle nozzle = plannedPlacements.get(0).nozzle;
+        Location startLocation = getHeadLocation(nozzle, nozzle.getLocation());
+        TravellingSalesman<PlannedPlacement> tsp =
+                new TravellingSalesman<>(plannedPlacements, locations::get, startLocation);
+        List<PlannedPlacement> solution = tsp.solve(travelOptimizationMilliseconds);
+        double saved = tsp.getDistance(plannedPlacements) - tsp.getDistance(solution);
+        if (saved <= 0) {
+            return;
+        }
+        logger.debug("Sequenced {}, saving {} mm", solution, saved);
+        estimatedTravelSaved += saved;
+        plannedPlacements.clear();
+        plannedPlacements.addAll(solution);
+    }
+
+    /**
+     * Returns the location of the head when the given Nozzle is at the given location, in
+     * millimeters.
+     */
+    protected static Location getHeadLocation(Nozzle nozzle, Location location) {
+        if (nozzle instanceof ReferenceHeadMountable) {
+            location = location.subtract(((ReferenceHeadMountable) nozzle).getHeadOffsets());
+        }
+        return location.convertToUnits(LengthUnit.Millimeters);
+    }
+
+    /**
+     * Returns the machine location of the JobPlacement, taking into account any fiducial
+     * corrections for it's board.
+     */
+    protected Location getPlacementLocation(JobPlacement jobPlacement) {
+        BoardLocation boardLocation = jobPlacement.boardLocation;
+
+        // Check if there is a fiducial override for the board location and if so, use it.
+        if (boardLocationFiducialOverrides.containsKey(boardLocation)) {
+            BoardLocation boardLocation2 = new BoardLocation(boardLocation.getBoard());
+            boardLocation2.setSide(boardLocation.getSide());
+            boardLocation2.setLocation(boardLocationFiducialOverrides.get(boardLocation));
+            boardLocation = boardLocation2;
+        }
+        return Utils2D.calculateBoardPlacementLocation(boardLocation,
+                jobPlacement.placement.getLocation());
+    }
+
     protected List<JobPlacement> getPendingJobPlacements() {
         return this.jobPlacements.stream().filter((jobPlacement) -> {
             return jobPlacement.status == Status.Pending;
@@ -697,31 +1232,89 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
         this.parkWhenComplete = parkWhenComplete;
     }
 
-    // Sort a List<JobPlacement> by the number of nulls it contains in ascending order.
-    Comparator<List<JobPlacement>> byFewestNulls = (a, b) -> {
-        return Collections.frequency(a, null) - Collections.frequency(b, null);
-    };
-
-    // Sort a List<JobPlacement> by the number of nozzle changes it will require in
-    // descending order.
-    Comparator<List<JobPlacement>> byFewestNozzleChanges = (a, b) -> {
-        int countA = 0, countB = 0;
-        for (int i = 0; i < head.getNozzles().size(); i++) {
-            Nozzle nozzle = head.getNozzles().get(i);
-            JobPlacement jpA = a.get(i);
-            JobPlacement jpB = b.get(i);
-            if (nozzle.getNozzleTip() == null) {
-                countA++;
-                countB++;
-                continue;
-            }
-            if (jpA != null && !nozzle.getNozzleTip().canHandle(jpA.placement.getPart())) {
-                countA++;
-            }
-            if (jpB != null && !nozzle.getNozzleTip().canHandle(jpB.placement.getPart())) {
-                countB++;
-            }
-        }
-        return countA - countB;
-    };
+    public boolean isOptimizeTravel() {
+        return optimizeTravel;
+    }
+
+    public void setOptimizeTravel(boolean optimizeTravel) {
+        this.optimizeTravel = optimizeTravel;
+    }
+
+    public int getTravelOptimizationMilliseconds() {
+        return travelOptimizationMilliseconds;
+    }
+
+    public void setTravelOptimizationMilliseconds(int travelOptimizationMilliseconds) {
+        this.travelOptimizationMilliseconds = travelOptimizationMilliseconds;
+    }
+
+    public double getEstimatedTravelSaved() {
+        return estimatedTravelSaved;
+    }
+
+    public boolean isBatchNozzleTips() {
+        return batchNozzleTips;
+    }
+
+    public void setBatchNozzleTips(boolean batchNozzleTips) {
+        this.batchNozzleTips = batchNozzleTips;
+    }
+
+    public boolean isPreFeed() {
+        return preFeed;
+    }
+
+    public void setPreFeed(boolean preFeed) {
+        this.preFeed = preFeed;
+    }
+
+    public FeederSelection getFeederSelection() {
+        return feederSelection;
+    }
+
+    public void setFeederSelection(FeederSelection feederSelection) {
+        this.feederSelection = feederSelection;
+    }
+
+    public boolean isDynamicSafeZ() {
+        return dynamicSafeZ;
+    }
+
+    public void setDynamicSafeZ(boolean dynamicSafeZ) {
+        this.dynamicSafeZ = dynamicSafeZ;
+    }
+
+    public Length getSafeZClearance() {
+        return safeZClearance;
+    }
+
+    public void setSafeZClearance(Length safeZClearance) {
+        this.safeZClearance = safeZClearance;
+    }
+
+    /**
+     * Returns the Z, in millimeters, of the tallest obstacle known to the current job, or NaN if
+     * there is none. See dynamicSafeZ.
+     */
+    public double getObstacleZ() {
+        return obstacleZ;
+    }
+
+    /**
+     * Returns the number of parts picked from the Feeder during the current job.
+     */
+    public int getFeederPickCount(Feeder feeder) {
+        return feederPickCounts.getOrDefault(feeder, 0);
+    }
+
+    /**
+     * Returns the feeders that are currently primed, or being primed, for an upcoming placement.
+     */
+    public Set<Feeder> getPrimedFeeders() {
+        return new HashSet<>(primedFeeders.keySet());
+    }
+
+    public int getNozzleTipChanges() {
+        return nozzleTipChanges;
+    }
 }
@@ -19,7 +19,6 @@
 
 package org.openpnp.machine.reference.camera;
 
-import org.openpnp.CameraListener;
 import org.openpnp.gui.support.PropertySheetWizardAdapter;
 import org.openpnp.gui.support.Wizard;
 import org.openpnp.gui.wizards.CameraConfigurationWizard;
@@ -41,7 +40,7 @@ import java.awt.image.BufferedImage;
 import java.beans.PropertyChangeSupport;
 import java.net.URL;
 
-public class HttpCamera extends ReferenceCamera implements Runnable {
+public class HttpCamera extends ReferenceCamera {
     private final static Logger logger = LoggerFactory.getLogger(HttpCamera.class);
 
     private PropertyChangeSupport pcs = new PropertyChangeSupport(this);
@@ -60,8 +59,6 @@ public class HttpCamera extends ReferenceCamera implements Runnable {
 
     private BufferedImage source;
 
-    private Thread thread;
-
     public HttpCamera() {
         unitsPerPixel = new Location(LengthUnit.Inches, 0.04233, 0.04233, 0, 0);
     }
@@ -72,40 +69,6 @@ public class HttpCamera extends ReferenceCamera implements Runnable {
         setSourceUrl(sourceUrl);
     }
 
-    @Override
-    public synchronized void startContinuousCapture(CameraListener listener, int maximumFps) {
-        start();
-        super.startContinuousCapture(listener, maximumFps);
-    }
-
-    @Override
-    public synchronized void stopContinuousCapture(CameraListener listener) {
-        super.stopContinuousCapture(listener);
-        if (listeners.size() == 0) {
-            stop();
-        }
-    }
-
-    private synchronized void stop() {
-        if (thread != null && thread.isAlive()) {
-            thread.interrupt();
-            try {
-                thread.join();
-            }
-            catch (Exception e) {
-
-            }
-            thread = null;
-        }
-    }
-
-    private synchronized void start() {
-        if (thread == null) {
-            thread = new Thread(this);
-            thread.start();
-        }
-    }
-
     public String getSourceUrl() {
         return sourceUrl;
     }
@@ -114,7 +77,6 @@ public class HttpCamera extends ReferenceCamera implements Runnable {
         String oldValue = this.sourceUrl;
         this.sourceUrl = sourceUrl;
         pcs.firePropertyChange("sourceUrl", oldValue, sourceUrl);
-        initialize();
     }
     public int getRefreshInterval() {
         return refreshInterval;
@@ -151,26 +113,9 @@ public class HttpCamera extends ReferenceCamera implements Runnable {
         return transformImage(frame);
     }
 
-    private synchronized void initialize() throws Exception {
-        stop();
-
-        if (listeners.size() > 0) {
-            start();
-        }
-    }
-
-
-    public void run() {
-        while (!Thread.interrupted()) {
-            BufferedImage frame = capture();
-            broadcastCapture(frame);
-            try {
-                Thread.sleep(refreshInterval);
-            }
-            catch (InterruptedException e) {
-                return;
-            }
-        }
+    @Override
+    protected long getPreviewPeriodMs() {
+        return refreshInterval;
     }
 
     @Override
@@ -27,7 +27,6 @@ import java.net.URL;
 import javax.imageio.ImageIO;
 import javax.swing.Action;
 
-import org.openpnp.CameraListener;
 import org.openpnp.gui.support.PropertySheetWizardAdapter;
 import org.openpnp.gui.support.Wizard;
 import org.openpnp.gui.wizards.CameraConfigurationWizard;
@@ -42,7 +41,7 @@ import org.simpleframework.xml.core.Commit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class ImageCamera extends ReferenceCamera implements Runnable {
+public class ImageCamera extends ReferenceCamera {
     private final static Logger logger = LoggerFactory.getLogger(ImageCamera.class);
 
     private PropertyChangeSupport pcs = new PropertyChangeSupport(this);
@@ -61,8 +60,6 @@ public class ImageCamera extends ReferenceCamera implements Runnable {
 
     private BufferedImage source;
 
-    private Thread thread;
-
     public ImageCamera() {
         unitsPerPixel = new Location(LengthUnit.Inches, 0.04233, 0.04233, 0, 0);
     }
@@ -73,40 +70,6 @@ public class ImageCamera extends ReferenceCamera implements Runnable {
         setSourceUri(sourceUri);
     }
 
-    @Override
-    public synchronized void startContinuousCapture(CameraListener listener, int maximumFps) {
-        start();
-        super.startContinuousCapture(listener, maximumFps);
-    }
-
-    @Override
-    public synchronized void stopContinuousCapture(CameraListener listener) {
-        super.stopContinuousCapture(listener);
-        if (listeners.size() == 0) {
-            stop();
-        }
-    }
-
-    private synchronized void stop() {
-        if (thread != null && thread.isAlive()) {
-            thread.interrupt();
-            try {
-                thread.join();
-            }
-            catch (Exception e) {
-
-            }
-            thread = null;
-        }
-    }
-
-    private synchronized void start() {
-        if (thread == null) {
-            thread = new Thread(this);
-            thread.start();
-        }
-    }
-
     public String getSourceUri() {
         return sourceUri;
     }
@@ -146,8 +109,6 @@ public class ImageCamera extends ReferenceCamera implements Runnable {
     }
 
     private synchronized void initialize() throws Exception {
-        stop();
-
         if (sourceUri.startsWith("classpath://")) {
             source = ImageIO.read(getClass().getClassLoader()
                     .getResourceAsStream(sourceUri.substring("classpath://".length())));
@@ -155,24 +116,11 @@ public class ImageCamera extends ReferenceCamera implements Runnable {
         else {
             source = ImageIO.read(new URL(sourceUri));
         }
-
-        if (listeners.size() > 0) {
-            start();
-        }
     }
 
-
-    public void run() {
-        while (!Thread.interrupted()) {
-            BufferedImage frame = capture();
-            broadcastCapture(frame);
-            try {
-                Thread.sleep(1000 / fps);
-            }
-            catch (InterruptedException e) {
-                return;
-            }
-        }
+    @Override
+    protected long getPreviewPeriodMs() {
+        return 1000 / fps;
     }
 
     @Override
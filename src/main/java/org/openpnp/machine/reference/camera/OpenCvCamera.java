@@ -31,8 +31,10 @@ import org.openpnp.CameraListener;
 import org.openpnp.gui.support.PropertySheetWizardAdapter;
 import org.openpnp.gui.support.Wizard;
 import org.openpnp.gui.wizards.CameraConfigurationWizard;
+import org.openpnp.machine.reference.FrameGrabber;
 import org.openpnp.machine.reference.ReferenceCamera;
 import org.openpnp.machine.reference.camera.wizards.OpenCvCameraConfigurationWizard;
+import org.openpnp.model.Location;
 import org.openpnp.spi.PropertySheetHolder;
 import org.openpnp.util.OpenCvUtils;
 import org.simpleframework.xml.Attribute;
@@ -40,7 +42,7 @@ import org.simpleframework.xml.Attribute;
 /**
  * A Camera implementation based on the OpenCV FrameGrabbers.
  */
-public class OpenCvCamera extends ReferenceCamera implements Runnable {
+public class OpenCvCamera extends ReferenceCamera {
     static {
         nu.pattern.OpenCV.loadShared();
         System.loadLibrary(org.opencv.core.Core.NATIVE_LIBRARY_NAME);
@@ -57,23 +59,19 @@ public class OpenCvCamera extends ReferenceCamera implements Runnable {
     private int fps = 24;
 
     private VideoCapture fg = new VideoCapture();
-    private Thread thread;
+    private volatile boolean open;
     private boolean dirty = false;
 
     public OpenCvCamera() {}
 
     @Override
-    public synchronized BufferedImage capture() {
-        if (thread == null) {
-            setDeviceIndex(deviceIndex);
+    public BufferedImage capture() {
+        Mat mat = captureMat();
+        if (mat == null) {
+            return null;
         }
-        Mat mat = new Mat();
         try {
-            if (!fg.read(mat)) {
-                return null;
-            }
-            BufferedImage img = OpenCvUtils.toBufferedImage(mat);
-            return transformImage(img);
+            return OpenCvUtils.toBufferedImage(mat);
         }
         catch (Exception e) {
             return null;
@@ -83,50 +81,62 @@ public class OpenCvCamera extends ReferenceCamera implements Runnable {
         }
     }
 
+    /**
+     * Returns the next frame from the FrameGrabber, opening the device first if needed.
+     */
+    @Override
+    public Mat captureMat() {
+        openIfNeeded();
+        return super.captureMat();
+    }
+
+    @Override
+    public Mat settleAndCaptureMat() {
+        openIfNeeded();
+        return super.settleAndCaptureMat();
+    }
+
+    @Override
+    public BufferedImage settleAndCapture() {
+        openIfNeeded();
+        return super.settleAndCapture();
+    }
+
     @Override
     public synchronized void startContinuousCapture(CameraListener listener, int maximumFps) {
-        if (thread == null) {
-            setDeviceIndex(deviceIndex);
-        }
+        openIfNeeded();
         super.startContinuousCapture(listener, maximumFps);
     }
 
-    public void run() {
-        while (!Thread.interrupted()) {
-            try {
-                BufferedImage image = capture();
-                if (image != null) {
-                    broadcastCapture(image);
+    /**
+     * Only locks when the device isn't open, so captures don't wait on each other once it is.
+     */
+    private void openIfNeeded() {
+        if (!open) {
+            synchronized (this) {
+                if (!open) {
+                    setDeviceIndex(deviceIndex);
                 }
             }
-            catch (Exception e) {
-                e.printStackTrace();
-            }
-            try {
-                Thread.sleep(1000 / fps);
-            }
-            catch (InterruptedException e) {
-                break;
-            }
         }
     }
 
+    /**
+     * The FrameGrabber reads the device, so the preview only has to pick up the latest frame.
+     */
+    @Override
+    protected long getPreviewPeriodMs() {
+        return 1000 / fps;
+    }
+
     public int getDeviceIndex() {
         return deviceIndex;
     }
 
     public synchronized void setDeviceIndex(int deviceIndex) {
         this.deviceIndex = deviceIndex;
-        if (thread != null) {
-            thread.interrupt();
-            try {
-                thread.join();
-            }
-            catch (Exception e) {
-                e.printStackTrace();
-            }
-            thread = null;
-        }
+        open = false;
+        stopGrabber();
         try {
             setDirty(false);
             width = null;
@@ -143,8 +153,18 @@ public class OpenCvCamera extends ReferenceCamera implements Runnable {
             e.printStackTrace();
             return;
         }
-        thread = new Thread(this);
-        thread.start();
+        startGrabber(new FrameGrabber.Source() {
+            @Override
+            public boolean grab(Mat mat) throws Exception {
+                return fg.read(mat);
+            }
+
+            @Override
+            public Location getLocation() throws Exception {
+                return OpenCvCamera.this.getLocation();
+            }
+        });
+        open = true;
     }
 
     public int getPreferredWidth() {
@@ -213,15 +233,7 @@ public class OpenCvCamera extends ReferenceCamera implements Runnable {
     @Override
     public void close() throws IOException {
         super.close();
-        if (thread != null) {
-            thread.interrupt();
-            try {
-                thread.join();
-            }
-            catch (Exception e) {
-
-            }
-        }
+        stopGrabber();
         if (fg.isOpened()) {
             fg.release();
         }
@@ -14,7 +14,6 @@ import java.util.Random;
 
 import javax.swing.Action;
 
-import org.openpnp.CameraListener;
 import org.openpnp.ConfigurationListener;
 import org.openpnp.gui.support.PropertySheetWizardAdapter;
 import org.openpnp.gui.support.Wizard;
@@ -39,7 +38,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 @Root
-public class SimulatedUpCamera extends ReferenceCamera implements Runnable {
+public class SimulatedUpCamera extends ReferenceCamera {
     private final static Logger logger = LoggerFactory.getLogger(SimulatedUpCamera.class);
 
     protected int width = 640;
@@ -48,8 +47,6 @@ public class SimulatedUpCamera extends ReferenceCamera implements Runnable {
 
     protected int fps = 10;
 
-    private Thread thread;
-
     private Map<Nozzle, Part> nozzleParts = new HashMap<>();
 
     private Location offsets = new Location(LengthUnit.Millimeters);
@@ -161,50 +158,8 @@ public class SimulatedUpCamera extends ReferenceCamera implements Runnable {
     }
 
     @Override
-    public synchronized void startContinuousCapture(CameraListener listener, int maximumFps) {
-        start();
-        super.startContinuousCapture(listener, maximumFps);
-    }
-
-    @Override
-    public synchronized void stopContinuousCapture(CameraListener listener) {
-        super.stopContinuousCapture(listener);
-        if (listeners.size() == 0) {
-            stop();
-        }
-    }
-
-    private synchronized void stop() {
-        if (thread != null && thread.isAlive()) {
-            thread.interrupt();
-            try {
-                thread.join();
-            }
-            catch (Exception e) {
-
-            }
-            thread = null;
-        }
-    }
-
-    private synchronized void start() {
-        if (thread == null) {
-            thread = new Thread(this);
-            thread.start();
-        }
-    }
-
-    public void run() {
-        while (!Thread.interrupted()) {
-            BufferedImage frame = capture();
-            broadcastCapture(frame);
-            try {
-                Thread.sleep(1000 / fps);
-            }
-            catch (InterruptedException e) {
-                return;
-            }
-        }
+    protected long getPreviewPeriodMs() {
+        return 1000 / fps;
     }
 
     @Override
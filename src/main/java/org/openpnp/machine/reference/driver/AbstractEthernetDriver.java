@@ -6,6 +6,8 @@ import java.io.IOException;
 import javax.swing.Icon;
 
 import org.openpnp.machine.reference.ReferenceDriver;
+import org.openpnp.machine.reference.PositionSnapshot;
+import org.openpnp.machine.reference.ReferenceHead;
 import org.openpnp.machine.reference.ReferencePasteDispenser;
 import org.openpnp.model.Location;
 import org.simpleframework.xml.Attribute;
@@ -51,6 +53,16 @@ public abstract class AbstractEthernetDriver implements ReferenceDriver, Closeab
         // without breaking every driver in the wild.
     }
 
+    @Override
+    public void moveToSafeZ(ReferenceHead head, double speed) throws Exception {
+        head.moveEachToSafeZ(this, speed);
+    }
+
+    @Override
+    public PositionSnapshot getPosition(ReferenceHead head) {
+        return null;
+    }
+
     @Override
     public void close() throws IOException {
         try {
@@ -1,19 +1,28 @@
 package org.openpnp.machine.reference.driver;
 
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.concurrent.TimeoutException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.swing.Action;
 import javax.swing.Icon;
 
 import org.openpnp.gui.support.PropertySheetWizardAdapter;
 import org.openpnp.gui.support.Wizard;
+import org.openpnp.machine.reference.PositionSnapshot;
 import org.openpnp.machine.reference.ReferenceDriver;
+import org.openpnp.machine.reference.ReferenceHead;
 import org.openpnp.machine.reference.ReferencePasteDispenser;
 import org.openpnp.machine.reference.driver.wizards.AbstractSerialPortDriverConfigurationWizard;
+import org.openpnp.model.LengthUnit;
 import org.openpnp.model.Location;
 import org.openpnp.spi.PropertySheetHolder;
 import org.openpnp.spi.PropertySheetHolder.PropertySheet;
@@ -24,39 +33,134 @@ import org.slf4j.LoggerFactory;
 import jssc.SerialPort;
 import jssc.SerialPortException;
 import jssc.SerialPortList;
-import jssc.SerialPortTimeoutException;
 
 /**
  * A base class for basic SerialPort based Drivers. Includes functions for connecting,
  * disconnecting, reading and sending lines.
+ * 
+ * Instead of a serial port the port name may also name a VirtualController, as in virtual:grbl,
+ * or a controller on a TCP socket, as in tcp:localhost:8000. Subclasses see no difference: they
+ * write to output and read with readLine() either way.
  */
 public abstract class AbstractSerialPortDriver implements ReferenceDriver, Closeable {
     private static final Logger logger = LoggerFactory.getLogger(AbstractSerialPortDriver.class);
 
+    private static final String TCP_PREFIX = "tcp:";
+
     @Attribute(required = false)
     protected String portName;
     @Attribute(required = false)
     protected int baud = 115200;
 
     protected SerialPort serialPort;
-    protected SerialInputStream input;
     protected OutputStream output;
 
+    private VirtualController virtualController;
+
+    private Socket socket;
+
+    /**
+     * Queued after the last line when no more will arrive, because of a disconnect or a read
+     * error. Compared by identity, so it can't be confused with a line that was received.
+     */
+    private static final String END_OF_INPUT = new String("");
+
+    /**
+     * Complete lines received from the serial port, oldest first. See readLine().
+     */
+    private final LinkedTransferQueue<String> receivedLines = new LinkedTransferQueue<>();
+
+    private volatile IOException readError;
+
+    /**
+     * The latest position published with publishPosition(). See getPosition().
+     */
+    private final AtomicReference<PositionSnapshot> position = new AtomicReference<>();
+
     protected synchronized void connect() throws Exception {
         disconnect();
+        receivedLines.clear();
+        readError = null;
+        if (portName != null && portName.startsWith(VirtualController.PORT_PREFIX)) {
+            virtualController = new VirtualController(VirtualController.getDialect(portName));
+            output = virtualController.connect(receivedLines::offer);
+            return;
+        }
+        if (portName != null && portName.startsWith(TCP_PREFIX)) {
+            connectSocket();
+            return;
+        }
         serialPort = new SerialPort(portName);
         serialPort.openPort();
         serialPort.setParams(baud, SerialPort.DATABITS_8, SerialPort.STOPBITS_1,
                 SerialPort.PARITY_NONE, false, false);
-        input = new SerialInputStream(serialPort);
-        input.setTimeout(500);
         output = new SerialOutputStream(serialPort);
+
+        // Incoming data is read in bulk as soon as the port reports it and assembled into lines
+        // for readLine(), instead of being polled for one byte at a time.
+        SerialPort port = serialPort;
+        LineAssembler lineAssembler = new LineAssembler(receivedLines::offer);
+        serialPort.addEventListener(event -> {
+            if (!event.isRXCHAR() || event.getEventValue() <= 0) {
+                return;
+            }
+            try {
+                lineAssembler.append(port.readBytes(event.getEventValue()));
+            }
+            catch (SerialPortException e) {
+                readError = new IOException(e);
+                stopReadLine();
+            }
+        }, SerialPort.MASK_RXCHAR);
+    }
+
+    private void connectSocket() throws IOException {
+        String address = portName.substring(TCP_PREFIX.length());
+        int colon = address.lastIndexOf(':');
+        if (colon == -1) {
+            throw new IOException("Expected " + TCP_PREFIX + "host:port, got " + portName);
+        }
+        socket = new Socket(address.substring(0, colon),
+                Integer.parseInt(address.substring(colon + 1)));
+        socket.setTcpNoDelay(true);
+        output = socket.getOutputStream();
+
+        Socket s = socket;
+        Thread thread = new Thread(() -> {
+            LineAssembler lineAssembler = new LineAssembler(receivedLines::offer);
+            byte[] buffer = new byte[4096];
+            try {
+                InputStream in = s.getInputStream();
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    lineAssembler.append(buffer, 0, count);
+                }
+            }
+            catch (IOException e) {
+                if (!s.isClosed()) {
+                    readError = e;
+                }
+            }
+            stopReadLine();
+        }, getClass().getSimpleName() + " " + portName);
+        thread.setDaemon(true);
+        thread.start();
     }
 
     protected synchronized void disconnect() throws Exception {
+        stopReadLine();
+        if (virtualController != null) {
+            virtualController.close();
+            virtualController = null;
+            output = null;
+        }
+        if (socket != null) {
+            socket.close();
+            socket = null;
+            output = null;
+        }
         if (serialPort != null && serialPort.isOpened()) {
             serialPort.closePort();
-            input = null;
             output = null;
             serialPort = null;
         }
@@ -69,42 +173,70 @@ public abstract class AbstractSerialPortDriver implements ReferenceDriver, Close
         // without breaking every driver in the wild.
     }
 
+    @Override
+    public void moveToSafeZ(ReferenceHead head, double speed) throws Exception {
+        head.moveEachToSafeZ(this, speed);
+    }
+
+    /**
+     * Returns the position last published with publishPosition(), which is the same for every
+     * Head since these drivers only have one set of axes, or null if none has been published.
+     */
+    @Override
+    public PositionSnapshot getPosition(ReferenceHead head) {
+        return position.get();
+    }
+
+    /**
+     * Publish the position of the axes as a new PositionSnapshot. Drivers that track their
+     * position should call this whenever it changes.
+     */
+    protected void publishPosition(LengthUnit units, double x, double y, double z, double c) {
+        position.updateAndGet(p -> PositionSnapshot.next(p, units, x, y, z, c));
+    }
+
     public String[] getPortNames() {
-        return SerialPortList.getPortNames();
+        List<String> portNames = new ArrayList<>(Arrays.asList(SerialPortList.getPortNames()));
+        portNames.addAll(Arrays.asList(VirtualController.getPortNames()));
+        return portNames.toArray(new String[] {});
     }
 
     /**
-     * Read a line from the serial port. Blocks for the default timeout. If the read times out a
-     * TimeoutException is thrown. Any other failure to read results in an IOExeption;
+     * Read a line from the serial port. Blocks until a line arrives. Once the lines received
+     * before stopReadLine() have been read, or the port fails, an IOException is thrown instead.
+     * 
+     * Lines are assembled as data arrives from the port, so this only waits for the next
+     * complete line and never touches the port itself.
      * 
      * @return
-     * @throws TimeoutException
      * @throws IOException
      */
-    protected String readLine() throws TimeoutException, IOException {
-        StringBuffer line = new StringBuffer();
-        while (true) {
-            try {
-                int ch = input.read();
-                if (ch == -1) {
-                    return null;
-                }
-                else if (ch == '\n' || ch == '\r') {
-                    if (line.length() > 0) {
-                        return line.toString();
-                    }
-                }
-                else {
-                    line.append((char) ch);
-                }
-            }
-            catch (IOException ex) {
-                if (ex.getCause() instanceof SerialPortTimeoutException) {
-                    throw new TimeoutException(ex.getMessage());
-                }
-                throw ex;
-            }
+    protected String readLine() throws IOException {
+        String line;
+        try {
+            line = receivedLines.take();
         }
+        catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        if (line != END_OF_INPUT) {
+            return line;
+        }
+        // Leave it for the next call too.
+        receivedLines.offer(END_OF_INPUT);
+        if (readError != null) {
+            throw readError;
+        }
+        throw new EOFException("No more input from " + portName);
+    }
+
+    /**
+     * Makes readLine() throw once the lines already received have been read, so that a reader
+     * thread blocked in it wakes up. Subclasses call this before waiting for their reader thread
+     * to finish when disconnecting. connect() starts over with no lines.
+     */
+    protected void stopReadLine() {
+        receivedLines.offer(END_OF_INPUT);
     }
 
     @Override
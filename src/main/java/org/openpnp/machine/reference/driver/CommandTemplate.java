@@ -0,0 +1,156 @@
+package org.openpnp.machine.reference.driver;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Formatter;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A command containing variables in the format {Name:Format}, as used by GcodeDriver. The command
+ * is parsed once when the template is created, so rendering it is a single pass over the parts
+ * of the command with no pattern matching.
+ *
+ * The result is the same as calling GcodeDriver.substituteVariable() once for each variable:
+ * Format is optional and defaults to %s, a null value is rendered as "" and variables that are
+ * not given a value are left in the command as is.
+ */
+public class CommandTemplate {
+    private static final Pattern variablePattern = Pattern.compile("\\{(\\w+)(?::(.+?))?\\}");
+
+    private final String command;
+
+    /**
+     * The text before each variable, followed by the text after the last one.
+     */
+    private final String[] literals;
+
+    private final String[] names;
+
+    /**
+     * The original text of each variable, used when it is not given a value.
+     */
+    private final String[] variables;
+
+    private final String[] formats;
+
+    /**
+     * For formats of the form %.Nf, N. Otherwise -1.
+     */
+    private final int[] fixedPrecisions;
+
+    private final StringBuilder sb = new StringBuilder();
+
+    private final Formatter formatter = new Formatter(sb, (Locale) null);
+
+    public CommandTemplate(String command) {
+        this.command = command;
+        List<String> literals = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        List<String> variables = new ArrayList<>();
+        List<String> formats = new ArrayList<>();
+        if (command != null) {
+            Matcher matcher = variablePattern.matcher(command);
+            int end = 0;
+            while (matcher.find()) {
+                literals.add(command.substring(end, matcher.start()));
+                names.add(matcher.group(1));
+                variables.add(matcher.group());
+                formats.add(matcher.group(2) == null ? "%s" : matcher.group(2));
+                end = matcher.end();
+            }
+            literals.add(command.substring(end));
+        }
+        this.literals = literals.toArray(new String[] {});
+        this.names = names.toArray(new String[] {});
+        this.variables = variables.toArray(new String[] {});
+        this.formats = formats.toArray(new String[] {});
+        this.fixedPrecisions = new int[this.formats.length];
+        for (int i = 0; i < this.formats.length; i++) {
+            fixedPrecisions[i] = getFixedPrecision(this.formats[i]);
+        }
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    /**
+     * Render the command with the given variables, which are given as name, value pairs. Returns
+     * null if the command is null.
+     *
+     * @param variables Alternating variable names and values, such as "X", 10.0, "Y", null.
+     * @return
+     */
+    public synchronized String render(Object... variables) {
+        if (command == null) {
+            return null;
+        }
+        sb.setLength(0);
+        for (int i = 0; i < names.length; i++) {
+            sb.append(literals[i]);
+            int index = indexOf(variables, names[i]);
+            if (index == -1) {
+                sb.append(this.variables[i]);
+                continue;
+            }
+            Object value = variables[index + 1];
+            if (value == null) {
+                continue;
+            }
+            if (formats[i].equals("%s")) {
+                sb.append(value);
+            }
+            else if (fixedPrecisions[i] != -1 && value instanceof Double) {
+                appendFixed((Double) value, fixedPrecisions[i]);
+            }
+            else {
+                formatter.format(formats[i], value);
+            }
+        }
+        sb.append(literals[names.length]);
+        return sb.toString();
+    }
+
+    private static int indexOf(Object[] variables, String name) {
+        for (int i = 0; i < variables.length - 1; i += 2) {
+            if (name.equals(variables[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Appends the value the same way %.Nf does, which rounds the shortest decimal representation
+     * of the value half up and keeps the sign of values that round to zero.
+     */
+    private void appendFixed(double value, int precision) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            formatter.format("%." + precision + "f", value);
+            return;
+        }
+        String s = new BigDecimal(Double.toString(value)).setScale(precision, RoundingMode.HALF_UP)
+                .toPlainString();
+        if ((value < 0 || (value == 0 && 1 / value < 0)) && s.charAt(0) != '-') {
+            sb.append('-');
+        }
+        sb.append(s);
+    }
+
+    private static int getFixedPrecision(String format) {
+        if (format.length() == 4 && format.charAt(0) == '%' && format.charAt(1) == '.'
+                && Character.isDigit(format.charAt(2)) && format.charAt(3) == 'f') {
+            return format.charAt(2) - '0';
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return command;
+    }
+}
@@ -0,0 +1,86 @@
+package org.openpnp.machine.reference.driver;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.openpnp.util.FiniteStateMachine.Task;
+
+/**
+ * Performs a driver's operations one at a time, in the order they are submitted, on a thread of
+ * it's own. Operations can be submitted without waiting for them, or run and waited for, which
+ * keeps the blocking and non-blocking methods of a ReferenceAsyncDriver in order with each other.
+ */
+public class DriverQueue {
+    private final String name;
+
+    /**
+     * Created when the first task is submitted, so that a queue that has been shut down can be
+     * used again.
+     */
+    private ExecutorService executor;
+
+    private volatile Thread thread;
+
+    public DriverQueue(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Queue the task and return a Future that completes when it has run.
+     */
+    public synchronized Future<Void> submit(Task task) {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                this.thread = thread;
+                return thread;
+            });
+        }
+        return executor.submit(() -> {
+            task.task();
+            return null;
+        });
+    }
+
+    /**
+     * Let the tasks already queued finish and then stop the thread. Drivers call this when they
+     * are closed. A task submitted afterwards starts a new thread.
+     */
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Queue the task and wait for it to run, throwing any exception it throws. If called from a
+     * task the new task is run immediately, since waiting for it would never finish.
+     */
+    public void run(Task task) throws Exception {
+        if (Thread.currentThread() == thread) {
+            task.task();
+            return;
+        }
+        await(submit(task));
+    }
+
+    /**
+     * Wait for the Future and throw the exception the task threw, if any, instead of an
+     * ExecutionException.
+     */
+    public static void await(Future<?> future) throws Exception {
+        try {
+            future.get();
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
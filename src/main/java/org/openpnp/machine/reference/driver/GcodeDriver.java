@@ -2,15 +2,18 @@ package org.openpnp.machine.reference.driver;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.Locale;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedTransferQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+import org.openpnp.machine.reference.PositionSnapshot;
 import org.openpnp.machine.reference.ReferenceActuator;
+import org.openpnp.machine.reference.ReferenceAsyncDriver;
 import org.openpnp.machine.reference.ReferenceDriver;
 import org.openpnp.machine.reference.ReferenceHead;
 import org.openpnp.machine.reference.ReferenceHeadMountable;
@@ -22,13 +25,15 @@ import org.openpnp.model.Named;
 import org.openpnp.spi.Nozzle;
 import org.openpnp.spi.PropertySheetHolder;
 import org.openpnp.spi.base.SimplePropertySheetHolder;
+import org.openpnp.util.FiniteStateMachine.Task;
 import org.simpleframework.xml.Attribute;
 import org.simpleframework.xml.Element;
 import org.simpleframework.xml.ElementList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class GcodeDriver extends AbstractSerialPortDriver implements Runnable {
+public class GcodeDriver extends AbstractSerialPortDriver
+        implements ReferenceAsyncDriver, Runnable {
     private static final Logger logger = LoggerFactory.getLogger(GcodeDriver.class);
 
     @Attribute(required = false)
@@ -43,9 +48,44 @@ public class GcodeDriver extends AbstractSerialPortDriver implements Runnable {
     @Element(required = false)
     protected Location homeLocation = new Location(units, 0, 0, 0, 0);
 
+    /**
+     * If greater than zero, moving the head to safe Z ahead of a travel move only raises Z until it
+     * is this distance below safe Z, in driver units. The rest of the retract is sent with the
+     * travel move so that the controller can start moving X and Y while Z finishes rising. A plain
+     * move to safe Z, such as from the jog controls or at the end of a job, always raises Z all
+     * the way.
+     */
+    @Attribute(required = false)
+    protected double safeZBlendHeight = 0;
+
+    /**
+     * Maximum number of commands sent to the controller without waiting for them to be confirmed.
+     * The default of 1 waits for each command before sending the next. Higher values keep the
+     * controller's planner fed during a series of moves. See streamCommand().
+     */
+    @Attribute(required = false)
+    protected int maxCommandsInFlight = 1;
+
+    /**
+     * If greater than zero, the size of the controller's receive buffer in bytes. Moves are then
+     * streamed as long as the unconfirmed commands, including their line endings, fit in the
+     * buffer, as recommended for Grbl, and maxCommandsInFlight is ignored.
+     */
+    @Attribute(required = false)
+    protected int rxBufferSize = 0;
+
     @Element(required = false)
     protected String commandConfirmRegex = null;
 
+    /**
+     * Sent before anything that needs the machine to actually be stopped at the commanded
+     * position, such as a pick, a camera capture or waitForCompletion(). The controller must not
+     * confirm it until all motion is complete, for instance M400 on Marlin or G4 P0 on Grbl. If
+     * not set, only the confirmations of the moves are waited for.
+     */
+    @Element(required = false)
+    protected String motionCompleteCommand = null;
+
     @Element(required = false)
     protected String connectCommand = null;
 
@@ -85,15 +125,54 @@ public class GcodeDriver extends AbstractSerialPortDriver implements Runnable {
     protected List<ReferenceDriver> subDrivers = new ArrayList<>();
 
     protected double x, y, z, c;
+
+    /**
+     * The safe Z that the next travel move should finish raising to, or NaN if none. It is not
+     * published as the position until it is sent. See safeZBlendHeight.
+     */
+    private double pendingSafeZ = Double.NaN;
+    private ReferenceHeadMountable pendingSafeZHm;
     private Thread readerThread;
     private boolean disconnectRequested;
     private boolean connected;
-    private LinkedBlockingQueue<String> responseQueue = new LinkedBlockingQueue<>();
+    private LinkedTransferQueue<String> responseQueue = new LinkedTransferQueue<>();
+    private Object commandLock = new Object();
+
+    /**
+     * Performs the moves and other machine operations in order. See ReferenceAsyncDriver.
+     */
+    private DriverQueue queue = new DriverQueue("GcodeDriver");
+
+    /**
+     * Parsed commands, by command text. See getTemplate().
+     */
+    private Map<String, CommandTemplate> templates = new ConcurrentHashMap<>();
+    private CommandTemplate nullTemplate = new CommandTemplate(null);
+
+    /**
+     * Commands that have been streamed but not yet confirmed, oldest first. Guarded by
+     * commandLock.
+     */
+    private LinkedList<String> commandsInFlight = new LinkedList<>();
+    private int bytesInFlight;
+
+    /**
+     * True if moves have been sent since the last time we waited for motion to complete.
+     */
+    private boolean motionPending;
+
+    /**
+     * The queue and latency of each sub-driver. See withSubDrivers().
+     */
+    private Map<ReferenceDriver, SubDriver> subDriverQueues = new ConcurrentHashMap<>();
 
     public synchronized void connect() throws Exception {
         super.connect();
 
         connected = false;
+        commandsInFlight.clear();
+        bytesInFlight = 0;
+        motionPending = false;
         readerThread = new Thread(this);
         readerThread.start();
 
@@ -138,26 +217,32 @@ public class GcodeDriver extends AbstractSerialPortDriver implements Runnable {
 
     @Override
     public void home(ReferenceHead head) throws Exception {
-        // Home is sent with an infinite timeout since it's tough to tell how long it will
-        // take.
-        String command = homeCommand;
-        command = substituteVariable(command, "Id", head.getId());
-        command = substituteVariable(command, "Name", head.getName());
-        sendGcode(command, -1);
-
-        x = homeLocation.getX();
-        y = homeLocation.getY();
-        z = homeLocation.getZ();
-        c = homeLocation.getRotation();
-        
-        for (ReferenceDriver driver : subDrivers) {
-            driver.home(head);
-        }
+        queue.run(() -> doHome(head));
+    }
+
+    protected void doHome(ReferenceHead head) throws Exception {
+        withSubDrivers("home", driver -> driver.home(head), () -> {
+            // Home is sent with an infinite timeout since it's tough to tell how long it will
+            // take.
+            String command = getTemplate(homeCommand).render("Id", head.getId(), "Name",
+                    head.getName());
+            sendGcode(command, -1);
+
+            x = homeLocation.getX();
+            y = homeLocation.getY();
+            z = homeLocation.getZ();
+            c = homeLocation.getRotation();
+            pendingSafeZ = Double.NaN;
+            publishPosition();
+        });
     }
 
     @Override
     public Location getLocation(ReferenceHeadMountable hm) {
-        Location location = new Location(units, x, y, z, c).add(hm.getHeadOffsets());
+        // Nothing has been published until the first move, so we're still at 0, 0, 0, 0.
+        PositionSnapshot position = getPosition(null);
+        Location location = position == null ? new Location(units) : position.getLocation();
+        location = location.add(hm.getHeadOffsets());
         if (!(hm instanceof Nozzle)) {
             location = location.derive(null, null, 0d, null);
         }
@@ -165,121 +250,337 @@ public class GcodeDriver extends AbstractSerialPortDriver implements Runnable {
     }
 
     @Override
-    public void moveTo(ReferenceHeadMountable hm, Location location, double speed)
+    public void moveTo(ReferenceHeadMountable hm, Location location, double speed) throws Exception {
+        queue.run(() -> doMoveTo(hm, location, speed));
+    }
+
+    @Override
+    public Future<Void> moveToAsync(ReferenceHeadMountable hm, Location location, double speed) {
+        return queue.submit(() -> doMoveTo(hm, location, speed));
+    }
+
+    protected void doMoveTo(ReferenceHeadMountable hm, Location location, double speed)
             throws Exception {
-        location = location.convertToUnits(units);
+        Location l = location.convertToUnits(units).subtract(hm.getHeadOffsets());
 
-        location = location.subtract(hm.getHeadOffsets());
+        withSubDrivers("moveTo", driver -> driver.moveTo(hm, l, speed), () -> {
+            double x = l.getX();
+            double y = l.getY();
+            double z = l.getZ();
+            double c = l.getRotation();
 
-        double x = location.getX();
-        double y = location.getY();
-        double z = location.getZ();
-        double c = location.getRotation();
+            // Only move Z if it's the Nozzle.
+            if (!(hm instanceof Nozzle)) {
+                z = Double.NaN;
+            }
 
-        // Only move Z if it's the Nozzle.
-        if (!(hm instanceof Nozzle)) {
-            z = Double.NaN;
-        }
+            // If a retract is pending, finish it as part of this move as long as this move
+            // doesn't take Z somewhere else. Otherwise finish it first.
+            if (!Double.isNaN(pendingSafeZ)) {
+                if (Double.isNaN(z) || Math.abs(z - pendingSafeZ) < 0.0001) {
+                    z = pendingSafeZ;
+                    pendingSafeZ = Double.NaN;
+                }
+                else {
+                    finishPendingSafeZ(speed);
+                }
+            }
 
-        // Handle NaNs, which means don't move this axis for this move.
-        if (Double.isNaN(x)) {
-            x = this.x;
-        }
-        if (Double.isNaN(y)) {
-            y = this.y;
-        }
-        if (Double.isNaN(z)) {
-            z = this.z;
-        }
-        if (Double.isNaN(c)) {
-            c = this.c;
+            // Handle NaNs, which means don't move this axis for this move.
+            if (Double.isNaN(x)) {
+                x = this.x;
+            }
+            if (Double.isNaN(y)) {
+                y = this.y;
+            }
+            if (Double.isNaN(z)) {
+                z = this.z;
+            }
+            if (Double.isNaN(c)) {
+                c = this.c;
+            }
+
+            sendMoveTo(hm, x, y, z, c, speed);
+        });
+    }
+
+    /**
+     * Raises Z to the highest travel Z of the head's nozzles with a single move, instead of one
+     * move per HeadMountable. This driver only has one Z axis and only nozzles move it, so
+     * cameras, actuators and paste dispensers need nothing.
+     */
+    @Override
+    public void moveToSafeZ(ReferenceHead head, double speed) throws Exception {
+        queue.run(() -> doMoveToSafeZ(head, speed, false));
+    }
+
+    /**
+     * As moveToSafeZ(), except that if safeZBlendHeight is set Z is only raised to the blend
+     * height here and the travel move that follows finishes the retract. If Z is already within
+     * the blend height nothing is sent here at all, and the whole retract goes with the travel
+     * move.
+     */
+    @Override
+    public void moveToSafeZBeforeTravel(ReferenceHead head, double speed) throws Exception {
+        queue.run(() -> doMoveToSafeZ(head, speed, true));
+    }
+
+    protected void doMoveToSafeZ(ReferenceHead head, double speed, boolean beforeTravel)
+            throws Exception {
+        withSubDrivers("moveToSafeZ", driver -> {
+            if (beforeTravel) {
+                driver.moveToSafeZBeforeTravel(head, speed);
+            }
+            else {
+                driver.moveToSafeZ(head, speed);
+            }
+        }, () -> {
+            ReferenceNozzle safeZNozzle = null;
+            double safeZ = Double.NaN;
+            double safeZSpeed = speed;
+            for (Nozzle n : head.getNozzles()) {
+                ReferenceNozzle nozzle = (ReferenceNozzle) n;
+                double nozzleSafeZ = nozzle.getTravelZ().convertToUnits(units).getValue()
+                        - nozzle.getHeadOffsets().convertToUnits(units).getZ();
+                if (safeZNozzle == null || nozzleSafeZ > safeZ) {
+                    safeZNozzle = nozzle;
+                    safeZ = nozzleSafeZ;
+                }
+                // Move no faster than the slowest part being carried.
+                if (nozzle.getPart() != null) {
+                    safeZSpeed = Math.min(safeZSpeed, speed * nozzle.getPart().getSpeed());
+                }
+            }
+
+            if (safeZNozzle != null) {
+                pendingSafeZ = Double.NaN;
+                if (beforeTravel && safeZBlendHeight > 0 && z < safeZ) {
+                    if (z < safeZ - safeZBlendHeight) {
+                        sendMoveTo(safeZNozzle, x, y, safeZ - safeZBlendHeight, c, safeZSpeed);
+                    }
+                    pendingSafeZ = safeZ;
+                    pendingSafeZHm = safeZNozzle;
+                }
+                else {
+                    sendMoveTo(safeZNozzle, x, y, safeZ, c, safeZSpeed);
+                }
+            }
+        });
+    }
+
+    /**
+     * Send a pending retract on it's own, for when the next operation is not a travel move.
+     */
+    protected void finishPendingSafeZ(double speed) throws Exception {
+        if (Double.isNaN(pendingSafeZ)) {
+            return;
         }
+        double safeZ = pendingSafeZ;
+        pendingSafeZ = Double.NaN;
+        sendMoveTo(pendingSafeZHm, x, y, safeZ, c, speed);
+    }
 
-        if (this.x != x || this.y != y || this.z != z || this.c != c) {
-            String command = moveToCommand;
-            if (hm instanceof Identifiable) {
-                command = substituteVariable(command, "Id", ((Identifiable) hm).getId());
+    /**
+     * Sends moveToCommand for the axes that differ from the current position, if any, and
+     * records the new position.
+     */
+    protected void sendMoveTo(ReferenceHeadMountable hm, double x, double y, double z, double c,
+            double speed) throws Exception {
+        boolean moved = this.x != x || this.y != y || this.z != z || this.c != c;
+        if (moved) {
+            String command = getTemplate(moveToCommand).render(
+                    "Id", hm instanceof Identifiable ? ((Identifiable) hm).getId() : null,
+                    "Name", hm instanceof Named ? ((Named) hm).getName() : null,
+                    "X", x == this.x ? null : x,
+                    "Y", y == this.y ? null : y,
+                    "Z", z == this.z ? null : z,
+                    "Rotation", c == this.c ? null : c,
+                    "FeedRate", maxFeedRate * speed);
+            if (isStreaming()) {
+                streamGcode(command);
             }
-            if (hm instanceof Named) {
-                command = substituteVariable(command, "Name", ((Named) hm).getName());
+            else {
+                sendGcode(command);
             }
-            command = substituteVariable(command, "X", x == this.x ? null : x);
-            command = substituteVariable(command, "Y", y == this.y ? null : y);
-            command = substituteVariable(command, "Z", z == this.z ? null : z);
-            command = substituteVariable(command, "Rotation", c == this.c ? null : c);
-            command = substituteVariable(command, "FeedRate", maxFeedRate * speed);
-            sendGcode(command);
+            motionPending = true;
         }
 
         this.x = x;
         this.y = y;
         this.z = z;
         this.c = c;
-
-        for (ReferenceDriver driver : subDrivers) {
-            driver.moveTo(hm, location, speed);
+        if (moved) {
+            publishPosition();
         }
     }
 
+    /**
+     * Publish the position last sent to the controller.
+     */
+    private void publishPosition() {
+        publishPosition(units, x, y, z, c);
+    }
+
     @Override
     public void pick(ReferenceNozzle nozzle) throws Exception {
-    	String command = pickCommand;
-        command = substituteVariable(command, "Id", nozzle.getId());
-        command = substituteVariable(command, "Name", nozzle.getName());
-        sendGcode(command);
+        queue.run(() -> doPick(nozzle));
+    }
 
-        for (ReferenceDriver driver : subDrivers) {
-            driver.pick(nozzle);
-        }
+    @Override
+    public Future<Void> pickAsync(ReferenceNozzle nozzle) {
+        return queue.submit(() -> doPick(nozzle));
+    }
+
+    protected void doPick(ReferenceNozzle nozzle) throws Exception {
+        withSubDrivers("pick", driver -> driver.pick(nozzle), () -> {
+            finishPendingSafeZ(1.0);
+            waitForMotionComplete();
+            String command = getTemplate(pickCommand).render("Id", nozzle.getId(), "Name",
+                    nozzle.getName());
+            sendGcode(command);
+        });
     }
 
     @Override
     public void place(ReferenceNozzle nozzle) throws Exception {
-    	String command = placeCommand;
-        command = substituteVariable(command, "Id", nozzle.getId());
-    	command = substituteVariable(command, "Name", nozzle.getName());
-        sendGcode(command);
+        queue.run(() -> doPlace(nozzle));
+    }
 
-        for (ReferenceDriver driver : subDrivers) {
-            driver.place(nozzle);
-        }
+    @Override
+    public Future<Void> placeAsync(ReferenceNozzle nozzle) {
+        return queue.submit(() -> doPlace(nozzle));
+    }
+
+    protected void doPlace(ReferenceNozzle nozzle) throws Exception {
+        withSubDrivers("place", driver -> driver.place(nozzle), () -> {
+            finishPendingSafeZ(1.0);
+            waitForMotionComplete();
+            String command = getTemplate(placeCommand).render("Id", nozzle.getId(), "Name",
+                    nozzle.getName());
+            sendGcode(command);
+        });
     }
 
 
     @Override
     public void actuate(ReferenceActuator actuator, boolean on) throws Exception {
-        String command = actuateBooleanCommand;
-        command = substituteVariable(command, "Id", actuator.getId());
-        command = substituteVariable(command, "Name", actuator.getName());
-        command = substituteVariable(command, "Index", actuator.getIndex());
-        command = substituteVariable(command, "BooleanValue", on);
-        command = substituteVariable(command, "True", on ? on : null);
-        command = substituteVariable(command, "False", on ? null : on);
-        sendGcode(command);
+        queue.run(() -> doActuate(actuator, on));
+    }
 
-        for (ReferenceDriver driver : subDrivers) {
-            driver.actuate(actuator, on);
-        }
+    @Override
+    public Future<Void> actuateAsync(ReferenceActuator actuator, boolean on) {
+        return queue.submit(() -> doActuate(actuator, on));
+    }
+
+    protected void doActuate(ReferenceActuator actuator, boolean on) throws Exception {
+        withSubDrivers("actuate", driver -> driver.actuate(actuator, on), () -> {
+            finishPendingSafeZ(1.0);
+            waitForMotionComplete();
+            String command = getTemplate(actuateBooleanCommand).render(
+                    "Id", actuator.getId(),
+                    "Name", actuator.getName(),
+                    "Index", actuator.getIndex(),
+                    "BooleanValue", on,
+                    "True", on ? on : null,
+                    "False", on ? null : on);
+            sendGcode(command);
+        });
     }
 
     @Override
     public void actuate(ReferenceActuator actuator, double value) throws Exception {
-        String command = actuateDoubleCommand;
-        command = substituteVariable(command, "Id", actuator.getId());
-        command = substituteVariable(command, "Name", actuator.getName());
-        command = substituteVariable(command, "Index", actuator.getIndex());
-        command = substituteVariable(command, "DoubleValue", value);
-        command = substituteVariable(command, "IntegerValue", (int) value);
-        sendGcode(command);
+        queue.run(() -> doActuate(actuator, value));
+    }
+
+    @Override
+    public Future<Void> actuateAsync(ReferenceActuator actuator, double value) {
+        return queue.submit(() -> doActuate(actuator, value));
+    }
+
+    protected void doActuate(ReferenceActuator actuator, double value) throws Exception {
+        withSubDrivers("actuate", driver -> driver.actuate(actuator, value), () -> {
+            finishPendingSafeZ(1.0);
+            waitForMotionComplete();
+            String command = getTemplate(actuateDoubleCommand).render(
+                    "Id", actuator.getId(),
+                    "Name", actuator.getName(),
+                    "Index", actuator.getIndex(),
+                    "DoubleValue", value,
+                    "IntegerValue", (int) value);
+            sendGcode(command);
+        });
+    }
+
+    @Override
+    public void waitForCompletion() throws Exception {
+        queue.run(this::waitForMotionComplete);
+    }
+
+    protected interface SubDriverOperation {
+        void perform(ReferenceDriver driver) throws Exception;
+    }
+
+    /**
+     * Performs the operation on each of the sub-drivers while this driver performs task, and
+     * returns once all of them have finished. Each sub-driver has a queue of its own, so its
+     * operations stay in order while it runs alongside this driver and the other sub-drivers.
+     * If anything fails the first failure is thrown, after everything has finished.
+     */
+    protected void withSubDrivers(String name, SubDriverOperation operation, Task task)
+            throws Exception {
+        if (subDrivers.isEmpty()) {
+            task.task();
+            return;
+        }
+        List<Future<Void>> futures = new ArrayList<>();
+        for (ReferenceDriver driver : subDrivers) {
+            SubDriver subDriver = subDriverQueues.computeIfAbsent(driver, SubDriver::new);
+            futures.add(subDriver.submit(name, operation));
+        }
+        Exception failure = null;
+        try {
+            task.task();
+        }
+        catch (Exception e) {
+            failure = e;
+        }
+        for (Future<Void> future : futures) {
+            try {
+                DriverQueue.await(future);
+            }
+            catch (Exception e) {
+                if (failure == null) {
+                    failure = e;
+                }
+                else {
+                    logger.debug("Sub-driver " + name + " failed", e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
 
+    /**
+     * Returns the average time in milliseconds each sub-driver has taken to perform an
+     * operation, by sub-driver.
+     */
+    public Map<ReferenceDriver, Double> getSubDriverLatencies() {
+        Map<ReferenceDriver, Double> latencies = new LinkedHashMap<>();
         for (ReferenceDriver driver : subDrivers) {
-            driver.actuate(actuator, value);
+            SubDriver subDriver = subDriverQueues.get(driver);
+            if (subDriver != null) {
+                latencies.put(driver, subDriver.getAverageMilliseconds());
+            }
         }
+        return latencies;
     }
 
     public synchronized void disconnect() {
         disconnectRequested = true;
         connected = false;
+        stopReadLine();
 
         try {
             if (readerThread != null && readerThread.isAlive()) {
@@ -302,7 +603,14 @@ public class GcodeDriver extends AbstractSerialPortDriver implements Runnable {
     @Override
     public void close() throws IOException {
         super.close();
+        queue.shutdown();
+        for (SubDriver subDriver : subDriverQueues.values()) {
+            subDriver.queue.shutdown();
+        }
 
+        if (!subDriverQueues.isEmpty()) {
+            logger.debug("Sub-driver latencies (ms): {}", getSubDriverLatencies());
+        }
         for (ReferenceDriver driver : subDrivers) {
             driver.close();
         }
@@ -331,57 +639,174 @@ public class GcodeDriver extends AbstractSerialPortDriver implements Runnable {
         return sendCommand(command, 5000);
     }
 
-    protected List<String> sendCommand(String command, long timeout) throws Exception {
-        List<String> responses = new ArrayList<>();
-
-        // Read any responses that might be queued up so that when we wait
-        // for a response to a command we actually wait for the one we expect.
-        responseQueue.drainTo(responses);
+    /**
+     * Returns true if moves are streamed instead of being sent one at a time. See
+     * maxCommandsInFlight and rxBufferSize.
+     */
+    protected boolean isStreaming() {
+        return maxCommandsInFlight > 1 || rxBufferSize > 0;
+    }
 
-        logger.debug("sendCommand({}, {})...", command, timeout);
+    protected void streamGcode(String gCode) throws Exception {
+        if (gCode == null) {
+            return;
+        }
+        for (String command : gCode.split("\n")) {
+            command = command.trim();
+            if (command.length() == 0) {
+                continue;
+            }
+            streamCommand(command, 5000);
+        }
+    }
 
-        // Send the command, if one was specified
-        if (command != null) {
+    /**
+     * Send a command without waiting for it to be confirmed. If the window of commands in flight
+     * is full this first waits for enough of the earlier commands to be confirmed, matching each
+     * confirmation to the oldest unconfirmed command. Any other responses are logged and
+     * discarded.
+     * 
+     * Anything sent with sendCommand() first waits for every streamed command to be confirmed,
+     * so responses are never mixed up.
+     */
+    protected void streamCommand(String command, long timeout) throws Exception {
+        synchronized (commandLock) {
+            int length = command.getBytes().length + 1;
+            long t = System.currentTimeMillis();
+            while (!commandsInFlight.isEmpty() && !hasRoomInFlight(length)) {
+                if (!receiveConfirmation(timeout - (System.currentTimeMillis() - t))) {
+                    throw new Exception(
+                            "Timeout waiting for response to " + commandsInFlight.peek());
+                }
+            }
             logger.trace(">> " + command);
             output.write(command.getBytes());
             output.write("\n".getBytes());
+            commandsInFlight.add(command);
+            bytesInFlight += length;
         }
+    }
+
+    /**
+     * Wait until every streamed command has been confirmed.
+     */
+    protected void waitForCommandsInFlight(long timeout) throws Exception {
+        synchronized (commandLock) {
+            long t = System.currentTimeMillis();
+            while (!commandsInFlight.isEmpty()) {
+                if (!receiveConfirmation(timeout - (System.currentTimeMillis() - t))) {
+                    throw new Exception(
+                            "Timeout waiting for response to " + commandsInFlight.peek());
+                }
+            }
+        }
+    }
+
+    /**
+     * If any moves have been sent since the last call, wait until the machine has stopped. When
+     * not streaming and motionCompleteCommand is not set this does nothing, since every move has
+     * already been confirmed.
+     */
+    protected void waitForMotionComplete() throws Exception {
+        synchronized (commandLock) {
+            if (!motionPending) {
+                return;
+            }
+            waitForCommandsInFlight(5000);
+            sendGcode(motionCompleteCommand, -1);
+            motionPending = false;
+        }
+    }
 
-        // Collect responses till we find one with the confirmation or we timeout. Return
-        // the collected responses.
-        if (timeout == -1) {
-            timeout = Long.MAX_VALUE;
+    private boolean hasRoomInFlight(int length) {
+        if (rxBufferSize > 0) {
+            return bytesInFlight + length <= rxBufferSize;
         }
+        return commandsInFlight.size() < maxCommandsInFlight;
+    }
+
+    /**
+     * Wait for the next confirmation and retire the oldest command in flight. Returns false if
+     * the timeout expires first.
+     */
+    private boolean receiveConfirmation(long timeout) throws InterruptedException {
         long t = System.currentTimeMillis();
-        boolean found = false;
-        // Loop until we've timed out
         while (System.currentTimeMillis() - t < timeout) {
-            // Wait to see if a response came in. We wait up until the number of millis remaining
-            // in the timeout.
-            String response =
-                    responseQueue.poll(timeout - (System.currentTimeMillis() - t), TimeUnit.MILLISECONDS);
-            // If no response yet, try again.
+            String response = responseQueue.poll(timeout - (System.currentTimeMillis() - t),
+                    TimeUnit.MILLISECONDS);
             if (response == null) {
                 continue;
             }
-            // Store the response that was received
-            responses.add(response);
-            // If the response is an ok or error we're done
+            String command = commandsInFlight.peek();
+            logger.debug("streamCommand({}) => {}", command, response);
             if (response.matches(commandConfirmRegex)) {
-                found = true;
-                break;
+                commandsInFlight.remove();
+                bytesInFlight -= command.getBytes().length + 1;
+                return true;
             }
         }
-        // If a command was specified and no confirmation was found it's a timeout error.
-        if (command != null && !found) {
-            throw new Exception("Timeout waiting for response to " + command);
-        }
+        return false;
+    }
 
-        // Read any additional responses that came in after the initial one.
-        responseQueue.drainTo(responses);
+    protected List<String> sendCommand(String command, long timeout) throws Exception {
+        // Commands may be sent from more than one thread, such as when a feeder is actuated in
+        // the background, so only one command and it's responses may be in flight at a time.
+        synchronized (commandLock) {
+            // If we've been streaming, collect the confirmations for everything that is still in
+            // flight before sending so that they are not taken as responses to this command.
+            waitForCommandsInFlight(timeout == -1 ? Long.MAX_VALUE : timeout);
+
+            List<String> responses = new ArrayList<>();
+
+            // Read any responses that might be queued up so that when we wait
+            // for a response to a command we actually wait for the one we expect.
+            responseQueue.drainTo(responses);
+
+            logger.debug("sendCommand({}, {})...", command, timeout);
+
+            // Send the command, if one was specified
+            if (command != null) {
+                logger.trace(">> " + command);
+                output.write(command.getBytes());
+                output.write("\n".getBytes());
+            }
 
-        logger.debug("sendCommand({}, {}) => {}", new Object[] {command, timeout == Long.MAX_VALUE ? -1 : timeout, responses});
-        return responses;
+            // Collect responses till we find one with the confirmation or we timeout. Return
+            // the collected responses.
+            if (timeout == -1) {
+                timeout = Long.MAX_VALUE;
+            }
+            long t = System.currentTimeMillis();
+            boolean found = false;
+            // Loop until we've timed out
+            while (System.currentTimeMillis() - t < timeout) {
+                // Wait to see if a response came in. We wait up until the number of millis
+                // remaining in the timeout.
+                String response = responseQueue.poll(timeout - (System.currentTimeMillis() - t),
+                        TimeUnit.MILLISECONDS);
+                // If no response yet, try again.
+                if (response == null) {
+                    continue;
+                }
+                // Store the response that was received
+                responses.add(response);
+                // If the response is an ok or error we're done
+                if (response.matches(commandConfirmRegex)) {
+                    found = true;
+                    break;
+                }
+            }
+            // If a command was specified and no confirmation was found it's a timeout error.
+            if (command != null && !found) {
+                throw new Exception("Timeout waiting for response to " + command);
+            }
+
+            // Read any additional responses that came in after the initial one.
+            responseQueue.drainTo(responses);
+
+            logger.debug("sendCommand({}, {}) => {}", new Object[] {command, timeout == Long.MAX_VALUE ? -1 : timeout, responses});
+            return responses;
+        }
     }
 
     public void run() {
@@ -390,11 +815,10 @@ public class GcodeDriver extends AbstractSerialPortDriver implements Runnable {
             try {
                 line = readLine().trim();
             }
-            catch (TimeoutException ex) {
-                continue;
-            }
             catch (IOException e) {
-                logger.error("Read error", e);
+                if (!disconnectRequested) {
+                    logger.error("Read error", e);
+                }
                 return;
             }
             line = line.trim();
@@ -404,33 +828,14 @@ public class GcodeDriver extends AbstractSerialPortDriver implements Runnable {
     }
 
     /**
-     * Find matches of variables in the format {Name:Format} and replace them with the specified
-     * value formatted using String.format with the specified Format. Format is optional and
-     * defaults to %s. A null value replaces the variable with "".
+     * Returns the CommandTemplate for the given command, parsing it the first time it is seen, so
+     * that commands are not re-parsed for every move.
      */
-    static protected String substituteVariable(String command, String name, Object value) {
+    protected CommandTemplate getTemplate(String command) {
         if (command == null) {
-            return command;
-        }
-        StringBuffer sb = new StringBuffer();
-        Matcher matcher = Pattern.compile("\\{(\\w+)(?::(.+?))?\\}").matcher(command);
-        while (matcher.find()) {
-            String n = matcher.group(1);
-            if (!n.equals(name)) {
-                continue;
-            }
-            String format = matcher.group(2);
-            if (format == null) {
-                format = "%s";
-            }
-            String v = "";
-            if (value != null) {
-                v = String.format((Locale) null, format, value);
-            }
-            matcher.appendReplacement(sb, v);
+            return nullTemplate;
         }
-        matcher.appendTail(sb);
-        return sb.toString();
+        return templates.computeIfAbsent(command, CommandTemplate::new);
     }
 
     @Override
@@ -441,4 +846,37 @@ public class GcodeDriver extends AbstractSerialPortDriver implements Runnable {
         }
         return children.toArray(new PropertySheetHolder[] {});
     }
+
+    private static class SubDriver {
+        final ReferenceDriver driver;
+        final DriverQueue queue;
+        long operations;
+        long nanos;
+
+        SubDriver(ReferenceDriver driver) {
+            this.driver = driver;
+            queue = new DriverQueue("GcodeDriver sub-driver " + driver);
+        }
+
+        Future<Void> submit(String name, SubDriverOperation operation) {
+            return queue.submit(() -> {
+                long t = System.nanoTime();
+                try {
+                    operation.perform(driver);
+                }
+                finally {
+                    t = System.nanoTime() - t;
+                    synchronized (this) {
+                        operations++;
+                        nanos += t;
+                    }
+                    logger.trace("Sub-driver {} {} took {} ms", driver, name, t / 1e6);
+                }
+            });
+        }
+
+        synchronized double getAverageMilliseconds() {
+            return operations == 0 ? 0 : nanos / 1e6 / operations;
+        }
+    }
 }
@@ -25,7 +25,6 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.TimeoutException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -235,6 +234,7 @@ public class GrblDriver extends AbstractSerialPortDriver implements Runnable {
     public synchronized void disconnect() {
         disconnectRequested = true;
         connected = false;
+        stopReadLine();
 
         try {
             if (readerThread != null && readerThread.isAlive()) {
@@ -283,11 +283,10 @@ public class GrblDriver extends AbstractSerialPortDriver implements Runnable {
             try {
                 line = readLine().trim();
             }
-            catch (TimeoutException ex) {
-                continue;
-            }
             catch (IOException e) {
-                logger.error("Read error", e);
+                if (!disconnectRequested) {
+                    logger.error("Read error", e);
+                }
                 return;
             }
             line = line.trim();
@@ -0,0 +1,59 @@
+package org.openpnp.machine.reference.driver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Assembles lines from bytes as they arrive, in whatever size chunks they arrive in, such as
+ * from a serial port. A line ends at a \n or \r and empty lines are skipped, so \r\n endings
+ * produce a single line. Bytes are decoded as ISO-8859-1.
+ *
+ * The buffer is reused from line to line and only grows if a line doesn't fit. Not thread safe;
+ * bytes are expected to come from a single reader.
+ */
+public class LineAssembler {
+    private final Consumer<String> consumer;
+
+    private byte[] buffer = new byte[256];
+
+    private int length;
+
+    /**
+     * @param consumer Called with each complete line, on the thread that appended the bytes that
+     *        completed it.
+     */
+    public LineAssembler(Consumer<String> consumer) {
+        this.consumer = consumer;
+    }
+
+    public void append(byte[] bytes) {
+        append(bytes, 0, bytes.length);
+    }
+
+    public void append(byte[] bytes, int offset, int count) {
+        for (int i = offset; i < offset + count; i++) {
+            byte b = bytes[i];
+            if (b == '\n' || b == '\r') {
+                if (length > 0) {
+                    consumer.accept(new String(buffer, 0, length, StandardCharsets.ISO_8859_1));
+                    length = 0;
+                }
+            }
+            else {
+                if (length == buffer.length) {
+                    byte[] newBuffer = new byte[buffer.length * 2];
+                    System.arraycopy(buffer, 0, newBuffer, 0, length);
+                    buffer = newBuffer;
+                }
+                buffer[length++] = b;
+            }
+        }
+    }
+
+    /**
+     * Discard any partial line.
+     */
+    public void clear() {
+        length = 0;
+    }
+}
@@ -74,6 +74,7 @@ import org.openpnp.gui.support.PropertySheetWizardAdapter;
 import org.openpnp.gui.support.Wizard;
 import org.openpnp.machine.reference.ReferenceActuator;
 import org.openpnp.machine.reference.ReferenceDriver;
+import org.openpnp.machine.reference.PositionSnapshot;
 import org.openpnp.machine.reference.ReferenceHead;
 import org.openpnp.machine.reference.ReferenceHeadMountable;
 import org.openpnp.machine.reference.ReferenceNozzle;
@@ -178,6 +179,16 @@ public class LinuxCNC implements ReferenceDriver, Runnable {
         return new Location(LengthUnit.Millimeters, x, y, z, c).add(hm.getHeadOffsets());
     }
 
+    @Override
+    public void moveToSafeZ(ReferenceHead head, double speed) throws Exception {
+        head.moveEachToSafeZ(this, speed);
+    }
+
+    @Override
+    public PositionSnapshot getPosition(ReferenceHead head) {
+        return null;
+    }
+
 
 
     @Override
@@ -25,7 +25,6 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.TimeoutException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -262,6 +261,7 @@ public class MarlinDriver extends AbstractSerialPortDriver implements Runnable {
     public synchronized void disconnect() {
         disconnectRequested = true;
         connected = false;
+        stopReadLine();
 
         try {
             if (readerThread != null && readerThread.isAlive()) {
@@ -310,11 +310,10 @@ public class MarlinDriver extends AbstractSerialPortDriver implements Runnable {
             try {
                 line = readLine().trim();
             }
-            catch (TimeoutException ex) {
-                continue;
-            }
             catch (IOException e) {
-                logger.error("Read error", e);
+                if (!disconnectRequested) {
+                    logger.error("Read error", e);
+                }
                 return;
             }
             line = line.trim();
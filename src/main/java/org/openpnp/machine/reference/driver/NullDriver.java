@@ -20,15 +20,18 @@
 package org.openpnp.machine.reference.driver;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 
 import javax.swing.Action;
 import javax.swing.Icon;
 
 import org.openpnp.gui.support.PropertySheetWizardAdapter;
 import org.openpnp.gui.support.Wizard;
+import org.openpnp.machine.reference.PositionSnapshot;
 import org.openpnp.machine.reference.ReferenceActuator;
-import org.openpnp.machine.reference.ReferenceDriver;
+import org.openpnp.machine.reference.ReferenceAsyncDriver;
 import org.openpnp.machine.reference.ReferenceHead;
 import org.openpnp.machine.reference.ReferenceHeadMountable;
 import org.openpnp.machine.reference.ReferenceMachine;
@@ -48,13 +51,35 @@ import org.slf4j.LoggerFactory;
  * a set of coordinates for each Head that it is asked to handle and simply logs all commands sent
  * to it.
  */
-public class NullDriver implements ReferenceDriver {
+public class NullDriver implements ReferenceAsyncDriver {
     private final static Logger logger = LoggerFactory.getLogger(NullDriver.class);
 
     @Attribute(required = false)
     private double feedRateMmPerMinute = 5000;
 
-    private HashMap<Head, Location> headLocations = new HashMap<>();
+    /**
+     * When set nothing takes real time. Instead the time each operation would take on a machine
+     * with the given feed rate and acceleration is added to a simulated clock, so that long jobs
+     * can be simulated in seconds. See getSimulatedTime().
+     */
+    @Attribute(required = false)
+    private boolean virtualClock = false;
+
+    @Attribute(required = false)
+    private double accelerationMmPerSecond2 = 2000;
+
+    /**
+     * Seconds. Only changed by operations running on the queue, which runs them one at a time on
+     * a single thread, so the updates can't race.
+     */
+    private volatile double simulatedTime;
+
+    private Map<Head, PositionSnapshot> headPositions = new ConcurrentHashMap<>();
+
+    /**
+     * Performs the simulated operations in order. See ReferenceAsyncDriver.
+     */
+    private DriverQueue queue = new DriverQueue("NullDriver");
 
     private boolean enabled;
 
@@ -66,20 +91,31 @@ public class NullDriver implements ReferenceDriver {
      * @return
      */
     protected Location getHeadLocation(Head head) {
-        Location l = headLocations.get(head);
-        if (l == null) {
-            l = new Location(LengthUnit.Millimeters, 0, 0, 0, 0);
+        PositionSnapshot position = headPositions.get(head);
+        if (position == null) {
+            Location l = new Location(LengthUnit.Millimeters, 0, 0, 0, 0);
             setHeadLocation(head, l);
+            return l;
         }
-        return l;
+        return position.getLocation();
     }
 
     protected void setHeadLocation(Head head, Location l) {
-        headLocations.put(head, l);
+        headPositions.compute(head, (h, position) -> PositionSnapshot.next(position,
+                l.getUnits(), l.getX(), l.getY(), l.getZ(), l.getRotation()));
+    }
+
+    @Override
+    public PositionSnapshot getPosition(ReferenceHead head) {
+        return headPositions.get(head);
     }
 
     @Override
     public void home(ReferenceHead head) throws Exception {
+        queue.run(() -> doHome(head));
+    }
+
+    protected void doHome(ReferenceHead head) throws Exception {
         logger.debug("home()");
         checkEnabled();
         setHeadLocation(head, getHeadLocation(head).derive(0.0, 0.0, 0.0, 0.0));
@@ -95,13 +131,27 @@ public class NullDriver implements ReferenceDriver {
         return getHeadLocation(hm.getHead()).add(hm.getHeadOffsets());
     }
 
+    @Override
+    public void moveToSafeZ(ReferenceHead head, double speed) throws Exception {
+        head.moveEachToSafeZ(this, speed);
+    }
+
     /**
      * Commands the driver to move the given ReferenceHeadMountable to the specified Location at the
      * given speed. Please see the comments for this method in the code for some important
      * considerations when writing your own driver.
      */
     @Override
-    public void moveTo(ReferenceHeadMountable hm, Location location, double speed)
+    public void moveTo(ReferenceHeadMountable hm, Location location, double speed) throws Exception {
+        queue.run(() -> doMoveTo(hm, location, speed));
+    }
+
+    @Override
+    public Future<Void> moveToAsync(ReferenceHeadMountable hm, Location location, double speed) {
+        return queue.submit(() -> doMoveTo(hm, location, speed));
+    }
+
+    protected void doMoveTo(ReferenceHeadMountable hm, Location location, double speed)
             throws Exception {
         logger.debug("moveTo({}, {}, {})", new Object[] {hm, location, speed});
         checkEnabled();
@@ -117,7 +167,10 @@ public class NullDriver implements ReferenceDriver {
         // Get the current location of the Head that we'll move
         Location hl = getHeadLocation(hm.getHead());
 
-        if (feedRateMmPerMinute > 0) {
+        if (virtualClock) {
+            simulatedTime += getMoveTime(location, hl, speed);
+        }
+        else if (feedRateMmPerMinute > 0) {
             simulateMovement(hm, location, hl, speed);
         }
 
@@ -132,6 +185,51 @@ public class NullDriver implements ReferenceDriver {
                 Double.isNaN(location.getRotation()) ? null : location.getRotation());
 
         setHeadLocation(hm.getHead(), hl);
+
+        if (virtualClock) {
+            // There are no live updates while moving, so just report where the move ended.
+            ((ReferenceMachine) Configuration.get().getMachine())
+                    .fireMachineHeadActivity(hm.getHead());
+        }
+    }
+
+    /**
+     * Returns the time in seconds a move from hl to location takes, with XY, Z and C moving at
+     * the same time and C moving ten times as fast, as in simulateMovement().
+     */
+    protected double getMoveTime(Location location, Location hl, double speed) {
+        double feedRate = feedRateMmPerMinute * speed;
+        if (feedRate <= 0) {
+            return 0;
+        }
+        double x2 = Double.isNaN(location.getX()) ? hl.getX() : location.getX();
+        double y2 = Double.isNaN(location.getY()) ? hl.getY() : location.getY();
+        double z2 = Double.isNaN(location.getZ()) ? hl.getZ() : location.getZ();
+        double c2 = Double.isNaN(location.getRotation()) ? hl.getRotation()
+                : location.getRotation() % 360.0;
+
+        double pxy = Math.hypot(x2 - hl.getX(), y2 - hl.getY());
+        double pz = Math.abs(z2 - hl.getZ());
+        double pc = Math.abs(c2 - hl.getRotation());
+
+        double t = VirtualController.getMoveTime(pxy, feedRate, accelerationMmPerSecond2);
+        t = Math.max(t, VirtualController.getMoveTime(pz, feedRate, accelerationMmPerSecond2));
+        t = Math.max(t,
+                VirtualController.getMoveTime(pc, feedRate * 10, accelerationMmPerSecond2 * 10));
+        return t;
+    }
+
+    /**
+     * Sleeps for the given time, or adds it to the simulated clock when virtualClock is set. Only
+     * call this from operations running on the queue.
+     */
+    protected void pause(long milliseconds) throws InterruptedException {
+        if (virtualClock) {
+            simulatedTime += milliseconds / 1000.0;
+        }
+        else {
+            Thread.sleep(milliseconds);
+        }
     }
 
     /**
@@ -224,47 +322,96 @@ public class NullDriver implements ReferenceDriver {
 
     @Override
     public void pick(ReferenceNozzle nozzle) throws Exception {
+        queue.run(() -> doPick(nozzle));
+    }
+
+    @Override
+    public Future<Void> pickAsync(ReferenceNozzle nozzle) {
+        return queue.submit(() -> doPick(nozzle));
+    }
+
+    protected void doPick(ReferenceNozzle nozzle) throws Exception {
         logger.debug("pick({})", nozzle);
         checkEnabled();
         if (feedRateMmPerMinute > 0) {
-            Thread.sleep(500);
+            pause(500);
         }
     }
 
     @Override
     public void place(ReferenceNozzle nozzle) throws Exception {
+        queue.run(() -> doPlace(nozzle));
+    }
+
+    @Override
+    public Future<Void> placeAsync(ReferenceNozzle nozzle) {
+        return queue.submit(() -> doPlace(nozzle));
+    }
+
+    protected void doPlace(ReferenceNozzle nozzle) throws Exception {
         logger.debug("place({})", nozzle);
         checkEnabled();
         if (feedRateMmPerMinute > 0) {
-            Thread.sleep(500);
+            pause(500);
         }
     }
 
     @Override
     public void actuate(ReferenceActuator actuator, double value) throws Exception {
+        queue.run(() -> doActuate(actuator, value));
+    }
+
+    @Override
+    public Future<Void> actuateAsync(ReferenceActuator actuator, double value) {
+        return queue.submit(() -> doActuate(actuator, value));
+    }
+
+    protected void doActuate(ReferenceActuator actuator, double value) throws Exception {
         logger.debug("actuate({}, {})", actuator, value);
         checkEnabled();
         if (feedRateMmPerMinute > 0) {
-            Thread.sleep(500);
+            pause(500);
         }
     }
 
     @Override
     public void actuate(ReferenceActuator actuator, boolean on) throws Exception {
+        queue.run(() -> doActuate(actuator, on));
+    }
+
+    @Override
+    public Future<Void> actuateAsync(ReferenceActuator actuator, boolean on) {
+        return queue.submit(() -> doActuate(actuator, on));
+    }
+
+    protected void doActuate(ReferenceActuator actuator, boolean on) throws Exception {
         logger.debug("actuate({}, {})", actuator, on);
         checkEnabled();
         if (feedRateMmPerMinute > 0) {
-            Thread.sleep(500);
+            pause(500);
         }
     }
 
+    @Override
+    public void waitForCompletion() throws Exception {
+        // Simulated moves are complete as soon as they have been performed.
+        queue.run(() -> {
+        });
+    }
+
     @Override
     public void dispense(ReferencePasteDispenser dispenser, Location startLocation,
             Location endLocation, long dispenseTimeMilliseconds) throws Exception {
+        queue.run(() -> doDispense(dispenser, startLocation, endLocation,
+                dispenseTimeMilliseconds));
+    }
+
+    protected void doDispense(ReferencePasteDispenser dispenser, Location startLocation,
+            Location endLocation, long dispenseTimeMilliseconds) throws Exception {
         logger.debug("dispense({}, {}, {}, {})",
                 new Object[] {dispenser, startLocation, endLocation, dispenseTimeMilliseconds});
         checkEnabled();
-        Thread.sleep(dispenseTimeMilliseconds);
+        pause(dispenseTimeMilliseconds);
     }
 
     @Override
@@ -321,9 +468,49 @@ public class NullDriver implements ReferenceDriver {
         this.feedRateMmPerMinute = feedRateMmPerMinute;
     }
 
+    public boolean isVirtualClock() {
+        return virtualClock;
+    }
+
+    public void setVirtualClock(boolean virtualClock) {
+        this.virtualClock = virtualClock;
+    }
+
+    public double getAccelerationMmPerSecond2() {
+        return accelerationMmPerSecond2;
+    }
+
+    public void setAccelerationMmPerSecond2(double accelerationMmPerSecond2) {
+        this.accelerationMmPerSecond2 = accelerationMmPerSecond2;
+    }
+
+    /**
+     * Returns the simulated time in seconds, which is the time the operations performed since
+     * it was last reset would have taken on the machine. Only advances when virtualClock is set.
+     */
+    public double getSimulatedTime() {
+        // Include any operations that are still queued.
+        try {
+            queue.run(() -> {
+            });
+        }
+        catch (Exception e) {
+            logger.debug("getSimulatedTime()", e);
+        }
+        return simulatedTime;
+    }
+
+    public void resetSimulatedTime() {
+        try {
+            queue.run(() -> simulatedTime = 0);
+        }
+        catch (Exception e) {
+            logger.debug("resetSimulatedTime()", e);
+        }
+    }
+
     @Override
     public void close() throws IOException {
-        // TODO Auto-generated method stub
-
+        queue.shutdown();
     }
 }
@@ -33,6 +33,7 @@ import org.openpnp.gui.support.PropertySheetWizardAdapter;
 import org.openpnp.gui.support.Wizard;
 import org.openpnp.machine.reference.ReferenceActuator;
 import org.openpnp.machine.reference.ReferenceDriver;
+import org.openpnp.machine.reference.PositionSnapshot;
 import org.openpnp.machine.reference.ReferenceHead;
 import org.openpnp.machine.reference.ReferenceHeadMountable;
 import org.openpnp.machine.reference.ReferenceNozzle;
@@ -101,6 +102,16 @@ public class SimulatorDriver implements ReferenceDriver {
         return getHeadLocation(hm.getHead()).add(hm.getHeadOffsets());
     }
 
+    @Override
+    public void moveToSafeZ(ReferenceHead head, double speed) throws Exception {
+        head.moveEachToSafeZ(this, speed);
+    }
+
+    @Override
+    public PositionSnapshot getPosition(ReferenceHead head) {
+        return null;
+    }
+
     /**
      * Commands the driver to move the given ReferenceHeadMountable to the specified Location at the
      * given speed. Please see the comments for this method in the code for some important
@@ -25,7 +25,6 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.TimeoutException;
 
 import javax.swing.Action;
 
@@ -351,6 +350,7 @@ public class SprinterDriver extends AbstractSerialPortDriver implements Runnable
     public synchronized void disconnect() {
         disconnectRequested = true;
         connected = false;
+        stopReadLine();
 
         try {
             if (readerThread != null && readerThread.isAlive()) {
@@ -400,11 +400,10 @@ public class SprinterDriver extends AbstractSerialPortDriver implements Runnable
             try {
                 line = readLine().trim();
             }
-            catch (TimeoutException ex) {
-                continue;
-            }
             catch (IOException e) {
-                logger.error("Read error", e);
+                if (!disconnectRequested) {
+                    logger.error("Read error", e);
+                }
                 return;
             }
             line = line.trim();
@@ -21,7 +21,6 @@ package org.openpnp.machine.reference.driver;
 
 import java.io.IOException;
 import java.util.Locale;
-import java.util.concurrent.TimeoutException;
 
 import javax.swing.Action;
 
@@ -236,6 +235,7 @@ public class TinygDriver extends AbstractSerialPortDriver implements Runnable {
     public synchronized void disconnect() {
         disconnectRequested = true;
         connected = false;
+        stopReadLine();
 
         try {
             if (readerThread != null && readerThread.isAlive()) {
@@ -295,11 +295,10 @@ public class TinygDriver extends AbstractSerialPortDriver implements Runnable {
             try {
                 line = readLine().trim();
             }
-            catch (TimeoutException ex) {
-                continue;
-            }
             catch (IOException e) {
-                logger.error("Read error", e);
+                if (!disconnectRequested) {
+                    logger.error("Read error", e);
+                }
                 return;
             }
             line = line.trim();
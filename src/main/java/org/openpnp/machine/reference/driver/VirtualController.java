@@ -0,0 +1,574 @@
+package org.openpnp.machine.reference.driver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * An in-process stand in for a motion controller, so that the serial drivers can be run and
+ * benchmarked without hardware. A driver uses it by setting its port name to virtual:gcode,
+ * virtual:grbl, virtual:marlin or virtual:tinyg. It can also be served on a local TCP socket with
+ * listen(), in which case the driver's port name is tcp:host:port.
+ *
+ * The controller models what matters for the driver's throughput and latency: moves are queued
+ * in a planner buffer of limited depth and the command that doesn't fit is not confirmed until a
+ * slot frees up, each move takes as long as a trapezoidal velocity profile with the given
+ * acceleration would take, and M400 / G4 are only confirmed once the planner is empty. Commands
+ * are confirmed with ok, or error: for ones it doesn't understand, and the replies the drivers
+ * look for when connecting (Grbl $I, Marlin M115 and M114, TinyG fv) are answered in each
+ * dialect.
+ *
+ * Each second of machine time takes timeScale seconds of real time, so a timeScale of 0.1 runs
+ * ten times as fast as the machine would. A timeScale of 0 runs as fast as possible on a
+ * virtual clock, which still reports how long the moves would have taken in getMachineTime(). On
+ * the virtual clock the machine only moves while the controller waits for room in the planner or
+ * for it to empty, or when no command has arrived for a millisecond.
+ */
+public class VirtualController implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(VirtualController.class);
+
+    public static final String PORT_PREFIX = "virtual:";
+
+    public enum Dialect {
+        Gcode,
+        Grbl,
+        Marlin,
+        Tinyg
+    }
+
+    private final Dialect dialect;
+
+    private int plannerDepth = 16;
+
+    /**
+     * mm/s^2, for all axes.
+     */
+    private double acceleration = 2000;
+
+    /**
+     * mm/min, used until a move specifies F.
+     */
+    private double feedRate = 6000;
+
+    private double timeScale = 1;
+
+    private final LinkedBlockingQueue<String> commands = new LinkedBlockingQueue<>();
+
+    /**
+     * The machine time at which each move in the planner completes, oldest first.
+     */
+    private final ArrayDeque<Double> planner = new ArrayDeque<>();
+
+    private Consumer<String> responses;
+
+    private Thread thread;
+
+    private volatile boolean closed;
+
+    private long startNanos;
+
+    private volatile double virtualTime;
+
+    /**
+     * The machine time at which the last queued move completes.
+     */
+    private volatile double lastMoveEnd;
+
+    private double x, y, z, a;
+
+    private boolean relative;
+
+    private boolean statusReportPending;
+
+    private long commandCount;
+
+    public VirtualController(Dialect dialect) {
+        this.dialect = dialect;
+    }
+
+    /**
+     * Returns the Dialect named by a port name of the form virtual:dialect, defaulting to Gcode.
+     */
+    public static Dialect getDialect(String portName) {
+        String name = portName.substring(PORT_PREFIX.length());
+        for (Dialect dialect : Dialect.values()) {
+            if (dialect.name().equalsIgnoreCase(name)) {
+                return dialect;
+            }
+        }
+        return Dialect.Gcode;
+    }
+
+    public static String[] getPortNames() {
+        Dialect[] dialects = Dialect.values();
+        String[] portNames = new String[dialects.length];
+        for (int i = 0; i < dialects.length; i++) {
+            portNames[i] = PORT_PREFIX + dialects[i].name().toLowerCase(Locale.US);
+        }
+        return portNames;
+    }
+
+    /**
+     * Start the controller. Each line it sends is passed to responses, on the controller's
+     * thread.
+     *
+     * @param responses
+     * @return The stream to write commands to.
+     */
+    public synchronized OutputStream connect(Consumer<String> responses) {
+        this.responses = responses;
+        startNanos = System.nanoTime();
+        thread = new Thread(this::run, "VirtualController " + dialect);
+        thread.setDaemon(true);
+        thread.start();
+        LineAssembler lineAssembler = new LineAssembler(commands::offer);
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (closed) {
+                    throw new IOException("VirtualController is closed");
+                }
+                synchronized (lineAssembler) {
+                    lineAssembler.append(b, off, len);
+                }
+            }
+        };
+    }
+
+    /**
+     * Serve the controller to a single connection on a local TCP socket. Returns once the socket
+     * is listening; the connection is accepted in the background.
+     *
+     * @param port The port to listen on, or 0 for any free port.
+     * @return The port that is being listened on.
+     * @throws IOException
+     */
+    public int listen(int port) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port);
+        Thread acceptThread = new Thread(() -> {
+            try (ServerSocket s = serverSocket; Socket socket = s.accept()) {
+                socket.setTcpNoDelay(true);
+                OutputStream socketOutput = socket.getOutputStream();
+                OutputStream output = connect(line -> {
+                    try {
+                        socketOutput.write((line + "\n").getBytes(StandardCharsets.ISO_8859_1));
+                        socketOutput.flush();
+                    }
+                    catch (IOException e) {
+                        logger.debug("Write failed", e);
+                    }
+                });
+                InputStream input = socket.getInputStream();
+                byte[] buffer = new byte[4096];
+                int count;
+                while (!closed && (count = input.read(buffer)) != -1) {
+                    output.write(buffer, 0, count);
+                }
+            }
+            catch (IOException e) {
+                logger.debug("Connection closed", e);
+            }
+            finally {
+                close();
+            }
+        }, "VirtualController " + dialect + " listener");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void run() {
+        switch (dialect) {
+            case Grbl:
+                send("Grbl 0.9j ['$' for help]");
+                break;
+            case Marlin:
+                send("start");
+                break;
+            default:
+                break;
+        }
+        try {
+            while (!closed) {
+                String command = commands.poll(getPollMilliseconds(), TimeUnit.MILLISECONDS);
+                if (command == null && timeScale == 0 && !planner.isEmpty()) {
+                    // The machine keeps moving while the host is idle.
+                    virtualTime = planner.peekFirst();
+                }
+                retireMoves();
+                if (command == null) {
+                    continue;
+                }
+                commandCount++;
+                command = command.trim();
+                if (dialect == Dialect.Tinyg) {
+                    processTinyg(command);
+                }
+                else {
+                    process(command);
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            // Closed.
+        }
+    }
+
+    private void process(String command) throws InterruptedException {
+        if (command.startsWith("$")) {
+            if (dialect == Dialect.Grbl && command.equals("$I")) {
+                send("[0.9j.20160726:]");
+            }
+            send("ok");
+            return;
+        }
+        String code = getCode(command);
+        if (code == null) {
+            send("error: Unknown command: " + command);
+            return;
+        }
+        switch (code) {
+            case "G0":
+            case "G1":
+                move(command);
+                break;
+            case "G4":
+                dwell(command);
+                break;
+            case "M400":
+                waitForPlanner();
+                break;
+            case "G90":
+                relative = false;
+                break;
+            case "G91":
+                relative = true;
+                break;
+            case "G92":
+                waitForPlanner();
+                setPosition(command);
+                break;
+            case "G28":
+                waitForPlanner();
+                x = y = z = a = 0;
+                break;
+            case "M114":
+                send(String.format(Locale.US, "X:%.2f Y:%.2f Z:%.2f E:%.2f Count X: 0 Y:0 Z:0", x,
+                        y, z, a));
+                break;
+            case "M115":
+                if (dialect == Dialect.Marlin) {
+                    send("FIRMWARE_NAME:Marlin V1; Sprinter/grbl mashup for gen6 "
+                            + "FIRMWARE_URL:http://www.mendel-parts.com PROTOCOL_VERSION:1.0 "
+                            + "MACHINE_TYPE:Mendel EXTRUDER_COUNT:1");
+                }
+                break;
+            default:
+                break;
+        }
+        send("ok");
+    }
+
+    /**
+     * TinyG takes JSON objects as well as plain G-code, and wraps every response in JSON with a
+     * status code.
+     */
+    private void processTinyg(String command) throws InterruptedException {
+        if (!command.startsWith("{")) {
+            String code = getCode(command);
+            if (code == null) {
+                sendTinyg("{}", 100);
+                return;
+            }
+            int status = 0;
+            if ((code.equals("G0") || code.equals("G1")) && !move(command)) {
+                // No movement.
+                status = 60;
+            }
+            else if (code.equals("G4")) {
+                dwell(command);
+            }
+            else if (code.equals("G90") || code.equals("G91")) {
+                relative = code.equals("G91");
+            }
+            else if (code.equals("G92")) {
+                waitForPlanner();
+                setPosition(command);
+            }
+            else if (code.startsWith("G28")) {
+                waitForPlanner();
+                x = y = z = a = 0;
+            }
+            sendTinyg("{\"gc\":\"" + command + "\"}", status);
+            return;
+        }
+        JsonObject o;
+        try {
+            o = new JsonParser().parse(command).getAsJsonObject();
+        }
+        catch (RuntimeException e) {
+            sendTinyg("{}", 100);
+            return;
+        }
+        if (o.has("fv")) {
+            sendTinyg("{\"fv\":0.970}", 0);
+        }
+        else if (o.has("gc")) {
+            processTinyg(o.get("gc").getAsString());
+        }
+        else {
+            // Settings are accepted and echoed back.
+            sendTinyg(o.toString(), 0);
+        }
+    }
+
+    private void sendTinyg(String r, int status) {
+        send("{\"r\":" + r + ",\"f\":[1," + status + "," + (commandCount % 1000) + "]}");
+    }
+
+    /**
+     * Returns the G or M code of the command, such as G1, or null if it doesn't start with one.
+     */
+    private static String getCode(String command) {
+        int end = 1;
+        while (end < command.length()
+                && (Character.isDigit(command.charAt(end)) || command.charAt(end) == '.')) {
+            end++;
+        }
+        if (end == 1) {
+            return null;
+        }
+        char c = Character.toUpperCase(command.charAt(0));
+        if (c != 'G' && c != 'M' && c != 'T') {
+            return null;
+        }
+        String code = c + command.substring(1, end);
+        // G00 and G0 are the same.
+        return code.length() > 2 && code.charAt(1) == '0' ? c + code.substring(2) : code;
+    }
+
+    /**
+     * Queue a move in the planner, waiting for room first. Returns false if the move goes
+     * nowhere.
+     */
+    private boolean move(String command) throws InterruptedException {
+        double x = getWord(command, 'X', relative ? 0 : this.x) + (relative ? this.x : 0);
+        double y = getWord(command, 'Y', relative ? 0 : this.y) + (relative ? this.y : 0);
+        double z = getWord(command, 'Z', relative ? 0 : this.z) + (relative ? this.z : 0);
+        double a = getRotation(command);
+        feedRate = getWord(command, 'F', feedRate);
+
+        double linear = Math.sqrt((x - this.x) * (x - this.x) + (y - this.y) * (y - this.y)
+                + (z - this.z) * (z - this.z));
+        double rotation = Math.abs(a - this.a);
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.a = a;
+        if (linear == 0 && rotation == 0) {
+            return false;
+        }
+
+        while (planner.size() >= plannerDepth) {
+            waitUntil(planner.peekFirst());
+            retireMoves();
+        }
+        double duration = Math.max(getMoveTime(linear), getMoveTime(rotation));
+        double start = planner.isEmpty() ? now() : Math.max(now(), planner.peekLast());
+        planner.addLast(start + duration);
+        lastMoveEnd = start + duration;
+        statusReportPending = true;
+        return true;
+    }
+
+    private double getRotation(String command) {
+        for (char axis : new char[] {'A', 'C', 'E'}) {
+            double value = getWord(command, axis, Double.NaN);
+            if (!Double.isNaN(value)) {
+                return value + (relative ? a : 0);
+            }
+        }
+        return a;
+    }
+
+    private double getMoveTime(double distance) {
+        return getMoveTime(distance, feedRate, acceleration);
+    }
+
+    /**
+     * Returns the time in seconds to move distance from a stop to a stop with a trapezoidal
+     * velocity profile, accelerating to the feed rate if there is room to.
+     *
+     * @param distance mm
+     * @param feedRate mm/min
+     * @param acceleration mm/s^2
+     */
+    public static double getMoveTime(double distance, double feedRate, double acceleration) {
+        if (distance == 0) {
+            return 0;
+        }
+        double v = feedRate / 60;
+        if (distance >= v * v / acceleration) {
+            return distance / v + v / acceleration;
+        }
+        return 2 * Math.sqrt(distance / acceleration);
+    }
+
+    private void dwell(String command) throws InterruptedException {
+        waitForPlanner();
+        double p = getWord(command, 'P', 0);
+        // Grbl's P is in seconds, everyone else's is in milliseconds.
+        waitUntil(now() + (dialect == Dialect.Grbl ? p : p / 1000));
+    }
+
+    private void setPosition(String command) {
+        x = getWord(command, 'X', x);
+        y = getWord(command, 'Y', y);
+        z = getWord(command, 'Z', z);
+        a = getWord(command, 'A', getWord(command, 'C', getWord(command, 'E', a)));
+    }
+
+    private static double getWord(String command, char letter, double defaultValue) {
+        for (int i = 1; i < command.length(); i++) {
+            if (Character.toUpperCase(command.charAt(i)) != letter
+                    || command.charAt(i - 1) != ' ') {
+                continue;
+            }
+            int end = i + 1;
+            while (end < command.length() && command.charAt(end) != ' ') {
+                end++;
+            }
+            try {
+                return Double.parseDouble(command.substring(i + 1, end));
+            }
+            catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+        return defaultValue;
+    }
+
+    private void waitForPlanner() throws InterruptedException {
+        if (!planner.isEmpty()) {
+            waitUntil(planner.peekLast());
+        }
+        retireMoves();
+    }
+
+    /**
+     * Drop the moves that have completed. TinyG reports when the machine comes to a stop.
+     */
+    private void retireMoves() {
+        double now = now();
+        while (!planner.isEmpty() && planner.peekFirst() <= now) {
+            planner.removeFirst();
+        }
+        if (planner.isEmpty() && statusReportPending) {
+            statusReportPending = false;
+            if (dialect == Dialect.Tinyg) {
+                send(String.format(Locale.US, "{\"sr\":{\"posx\":%.3f,\"posy\":%.3f,"
+                        + "\"posz\":%.3f,\"posa\":%.3f,\"stat\":3}}", x, y, z, a));
+            }
+        }
+    }
+
+    private long getPollMilliseconds() {
+        if (planner.isEmpty()) {
+            return 100;
+        }
+        if (timeScale == 0) {
+            return 1;
+        }
+        return Math.max(1, (long) Math.ceil((planner.peekFirst() - now()) * timeScale * 1000));
+    }
+
+    private double now() {
+        if (timeScale == 0) {
+            return virtualTime;
+        }
+        return (System.nanoTime() - startNanos) / 1e9 / timeScale;
+    }
+
+    private void waitUntil(double time) throws InterruptedException {
+        if (timeScale == 0) {
+            virtualTime = Math.max(virtualTime, time);
+            return;
+        }
+        long millis = (long) Math.ceil((time - now()) * timeScale * 1000);
+        if (millis > 0) {
+            Thread.sleep(millis);
+        }
+    }
+
+    private void send(String line) {
+        responses.accept(line);
+    }
+
+    /**
+     * Returns the machine time in seconds, since the controller was connected, at which all the
+     * moves queued so far will have completed.
+     */
+    public double getMachineTime() {
+        return Math.max(now(), lastMoveEnd);
+    }
+
+    public Dialect getDialect() {
+        return dialect;
+    }
+
+    public int getPlannerDepth() {
+        return plannerDepth;
+    }
+
+    public void setPlannerDepth(int plannerDepth) {
+        this.plannerDepth = plannerDepth;
+    }
+
+    public double getAcceleration() {
+        return acceleration;
+    }
+
+    public void setAcceleration(double acceleration) {
+        this.acceleration = acceleration;
+    }
+
+    public double getTimeScale() {
+        return timeScale;
+    }
+
+    /**
+     * Sets the real seconds each second of machine time takes. 1 is real time, smaller is faster
+     * and 0 uses the virtual clock.
+     */
+    public void setTimeScale(double timeScale) {
+        this.timeScale = timeScale;
+    }
+}
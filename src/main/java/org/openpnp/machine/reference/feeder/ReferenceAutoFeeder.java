@@ -64,6 +64,11 @@ public class ReferenceAutoFeeder extends ReferenceFeeder {
         actuator.actuate(actuatorValue);
     }
 
+    @Override
+    public boolean canFeedInBackground() {
+        return true;
+    }
+
     @Override
     public Wizard getConfigurationWizard() {
         return new ReferenceAutoFeederConfigurationWizard(this);
@@ -72,9 +72,7 @@ public class OpenCvVisionProvider implements VisionProvider {
     }
 
     protected Mat getCameraImage() {
-        BufferedImage image_ = camera.capture();
-        Mat image = OpenCvUtils.toMat(image_);
-        return image;
+        return camera.captureMat();
     }
 
     /**
@@ -71,6 +71,7 @@ public class ReferenceBottomVision implements PartAlignment {
         CvPipeline pipeline = partSettings.getPipeline();
 
         pipeline.setCamera(camera);
+        pipeline.setRetainAllImages(false);
         pipeline.process();
 
         Result result = pipeline.getResult("result");
@@ -104,7 +104,7 @@ public class ReferenceFiducialLocator implements FiducialLocator {
         BufferedImage template = createTemplate(camera.getUnitsPerPixel(), footprint);
 
         // Wait for camera to settle
-        Thread.sleep(camera.getSettleTimeMs());
+        camera.settle();
         // Perform vision operation
         return getBestTemplateMatch(camera, template);
     }
@@ -165,7 +165,7 @@ public class ReferenceFiducialLocator implements FiducialLocator {
 
         for (int i = 0; i < 3; i++) {
             // Wait for camera to settle
-            Thread.sleep(camera.getSettleTimeMs());
+            camera.settle();
             // Perform vision operation
             location = getBestTemplateMatch(camera, template);
             if (location == null) {
@@ -21,12 +21,18 @@ package org.openpnp.machine.reference.wizards;
 
 import javax.swing.BoxLayout;
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.JTextField;
 import javax.swing.border.TitledBorder;
 
+import org.openpnp.gui.components.ComponentDecorators;
 import org.openpnp.gui.support.AbstractConfigurationWizard;
+import org.openpnp.gui.support.IntegerConverter;
+import org.openpnp.gui.support.LengthConverter;
 import org.openpnp.machine.reference.ReferencePnpJobProcessor;
+import org.openpnp.machine.reference.ReferencePnpJobProcessor.FeederSelection;
 
 import com.jgoodies.forms.layout.ColumnSpec;
 import com.jgoodies.forms.layout.FormLayout;
@@ -37,6 +43,13 @@ import com.jgoodies.forms.layout.RowSpec;
 public class ReferencePnpJobProcessorConfigurationWizard extends AbstractConfigurationWizard {
     private final ReferencePnpJobProcessor jobProcessor;
     private JCheckBox parkWhenComplete;
+    private JCheckBox optimizeTravel;
+    private JTextField travelOptimizationMilliseconds;
+    private JCheckBox batchNozzleTips;
+    private JCheckBox preFeed;
+    private JComboBox feederSelection;
+    private JCheckBox dynamicSafeZ;
+    private JTextField safeZClearance;
 
     public ReferencePnpJobProcessorConfigurationWizard(ReferencePnpJobProcessor jobProcessor) {
         this.jobProcessor = jobProcessor;
@@ -48,17 +61,83 @@ public class ReferencePnpJobProcessorConfigurationWizard extends AbstractConfigu
         contentPanel.add(panelGeneral);
         panelGeneral.setLayout(new FormLayout(
                 new ColumnSpec[] {FormSpecs.DEFAULT_COLSPEC, FormSpecs.DEFAULT_COLSPEC,},
-                new RowSpec[] {FormSpecs.RELATED_GAP_ROWSPEC, RowSpec.decode("16px"),}));
+                new RowSpec[] {FormSpecs.RELATED_GAP_ROWSPEC, RowSpec.decode("16px"),
+                        FormSpecs.RELATED_GAP_ROWSPEC, RowSpec.decode("16px"),
+                        FormSpecs.RELATED_GAP_ROWSPEC, FormSpecs.DEFAULT_ROWSPEC,
+                        FormSpecs.RELATED_GAP_ROWSPEC, RowSpec.decode("16px"),
+                        FormSpecs.RELATED_GAP_ROWSPEC, RowSpec.decode("16px"),
+                        FormSpecs.RELATED_GAP_ROWSPEC, FormSpecs.DEFAULT_ROWSPEC,
+                        FormSpecs.RELATED_GAP_ROWSPEC, RowSpec.decode("16px"),
+                        FormSpecs.RELATED_GAP_ROWSPEC, FormSpecs.DEFAULT_ROWSPEC,}));
 
         JLabel lblParkWhenComplete = new JLabel("Park When Complete");
         panelGeneral.add(lblParkWhenComplete, "1, 2, right, top");
 
         parkWhenComplete = new JCheckBox("");
         panelGeneral.add(parkWhenComplete, "2, 2");
+
+        JLabel lblOptimizeTravel = new JLabel("Optimize Travel");
+        panelGeneral.add(lblOptimizeTravel, "1, 4, right, top");
+
+        optimizeTravel = new JCheckBox("");
+        panelGeneral.add(optimizeTravel, "2, 4");
+
+        JLabel lblTravelOptimizationMilliseconds = new JLabel("Optimization Time Limit (ms)");
+        panelGeneral.add(lblTravelOptimizationMilliseconds, "1, 6, right, default");
+
+        travelOptimizationMilliseconds = new JTextField();
+        panelGeneral.add(travelOptimizationMilliseconds, "2, 6, fill, default");
+        travelOptimizationMilliseconds.setColumns(10);
+
+        JLabel lblBatchNozzleTips = new JLabel("Minimize Nozzle Tip Changes For Job");
+        panelGeneral.add(lblBatchNozzleTips, "1, 8, right, top");
+
+        batchNozzleTips = new JCheckBox("");
+        panelGeneral.add(batchNozzleTips, "2, 8");
+
+        JLabel lblPreFeed = new JLabel("Pre-Feed");
+        panelGeneral.add(lblPreFeed, "1, 10, right, top");
+
+        preFeed = new JCheckBox("");
+        panelGeneral.add(preFeed, "2, 10");
+
+        JLabel lblFeederSelection = new JLabel("Feeder Selection");
+        panelGeneral.add(lblFeederSelection, "1, 12, right, default");
+
+        feederSelection = new JComboBox(FeederSelection.values());
+        panelGeneral.add(feederSelection, "2, 12, fill, default");
+
+        JLabel lblDynamicSafeZ = new JLabel("Dynamic Safe Z");
+        panelGeneral.add(lblDynamicSafeZ, "1, 14, right, top");
+
+        dynamicSafeZ = new JCheckBox("");
+        panelGeneral.add(dynamicSafeZ, "2, 14");
+
+        JLabel lblSafeZClearance = new JLabel("Dynamic Safe Z Clearance");
+        panelGeneral.add(lblSafeZClearance, "1, 16, right, default");
+
+        safeZClearance = new JTextField();
+        panelGeneral.add(safeZClearance, "2, 16, fill, default");
+        safeZClearance.setColumns(10);
     }
 
     @Override
     public void createBindings() {
+        IntegerConverter intConverter = new IntegerConverter();
+        LengthConverter lengthConverter = new LengthConverter();
+
         addWrappedBinding(jobProcessor, "parkWhenComplete", parkWhenComplete, "selected");
+        addWrappedBinding(jobProcessor, "optimizeTravel", optimizeTravel, "selected");
+        addWrappedBinding(jobProcessor, "batchNozzleTips", batchNozzleTips, "selected");
+        addWrappedBinding(jobProcessor, "preFeed", preFeed, "selected");
+        addWrappedBinding(jobProcessor, "feederSelection", feederSelection, "selectedItem");
+        addWrappedBinding(jobProcessor, "travelOptimizationMilliseconds",
+                travelOptimizationMilliseconds, "text", intConverter);
+        addWrappedBinding(jobProcessor, "dynamicSafeZ", dynamicSafeZ, "selected");
+        addWrappedBinding(jobProcessor, "safeZClearance", safeZClearance, "text",
+                lengthConverter);
+
+        ComponentDecorators.decorateWithAutoSelect(travelOptimizationMilliseconds);
+        ComponentDecorators.decorateWithAutoSelectAndLengthConversion(safeZClearance);
     }
 }
@@ -22,6 +22,7 @@ package org.openpnp.spi;
 import java.awt.image.BufferedImage;
 import java.io.Closeable;
 
+import org.opencv.core.Mat;
 import org.openpnp.CameraListener;
 import org.openpnp.model.Identifiable;
 import org.openpnp.model.Location;
@@ -69,6 +70,22 @@ public interface Camera extends Identifiable, Named, HeadMountable, WizardConfig
      */
     public BufferedImage settleAndCapture();
 
+    /**
+     * Same as capture(), but returns the image as an OpenCV Mat. Cameras that capture into a Mat
+     * return it without converting it to a BufferedImage and back, so vision should prefer this.
+     * The caller owns the returned Mat and must release it.
+     * 
+     * @return
+     */
+    public Mat captureMat();
+
+    /**
+     * Same as captureMat(), but waits the settle time before capturing.
+     * 
+     * @return
+     */
+    public Mat settleAndCaptureMat();
+
     /**
      * Registers a listener to receive continuous images from the camera at a rate less than or
      * equal to maximumFps images per second.
@@ -118,4 +135,11 @@ public interface Camera extends Identifiable, Named, HeadMountable, WizardConfig
     public long getSettleTimeMs();
 
     public void setSettleTimeMs(long settleTimeMs);
+
+    /**
+     * Waits for the Camera to settle after a move so that the next capture is sharp. Called by
+     * settleAndCapture() and settleAndCaptureMat(), and by vision code that captures through a
+     * VisionProvider.
+     */
+    public void settle();
 }
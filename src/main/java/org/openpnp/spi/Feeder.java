@@ -74,6 +74,15 @@ public interface Feeder extends Identifiable, Named, WizardConfigurable, Propert
      * @throws Exception
      */
     public void feed(Nozzle nozzle) throws Exception;
+
+    /**
+     * Return true if feed() never moves the Head, such as a feeder that is advanced by an
+     * Actuator. A JobProcessor may then call feed() from another thread while the Head is busy
+     * with other work.
+     * 
+     * @return
+     */
+    public boolean canFeedInBackground();
     
     public int getRetryCount();
 }
@@ -94,6 +94,16 @@ public interface Head extends Identifiable, Named, WizardConfigurable, PropertyS
 
     public void moveToSafeZ() throws Exception;
 
+    /**
+     * Moves to safe Z ahead of a move in X and Y. The Head may leave part of the retract to be
+     * finished by that move, so the next move of this Head must be the one in X and Y.
+     * moveToSafeZ() always completes the retract before returning.
+     * 
+     * @param speed
+     * @throws Exception
+     */
+    public void moveToSafeZBeforeTravel(double speed) throws Exception;
+
     public List<PasteDispenser> getPasteDispensers();
 
     public PasteDispenser getPasteDispenser(String id);
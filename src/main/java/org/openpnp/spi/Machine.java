@@ -25,6 +25,7 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
 
 import org.openpnp.model.Location;
+import org.openpnp.model.Part;
 
 import com.google.common.util.concurrent.FutureCallback;
 
@@ -54,6 +55,16 @@ public interface Machine extends WizardConfigurable, PropertySheetHolder, Closea
 
     public Feeder getFeeder(String id);
 
+    /**
+     * Gets the enabled Feeders that are serving the given Part, in the same order as
+     * getFeeders(). Implementations are expected to keep an index so that this is cheap enough to
+     * call for every pick.
+     * 
+     * @param part
+     * @return
+     */
+    public List<Feeder> getEnabledFeeders(Part part);
+
 
     /**
      * Gets a List of Cameras attached to the Machine that are not attached to Heads.
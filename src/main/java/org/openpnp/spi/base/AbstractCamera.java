@@ -1,13 +1,20 @@
 package org.openpnp.spi.base;
 
 import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.swing.Icon;
 
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
 import org.openpnp.CameraListener;
 import org.openpnp.ConfigurationListener;
 import org.openpnp.gui.support.Icons;
@@ -17,10 +24,32 @@ import org.openpnp.model.Location;
 import org.openpnp.spi.Camera;
 import org.openpnp.spi.Head;
 import org.openpnp.spi.VisionProvider;
+import org.openpnp.util.OpenCvUtils;
 import org.simpleframework.xml.Attribute;
 import org.simpleframework.xml.Element;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public abstract class AbstractCamera implements Camera {
+    public enum SettleMethod {
+        /**
+         * Wait settleTimeMs before every capture.
+         */
+        FixedTime,
+        /**
+         * Capture frames until two in a row are nearly the same, or until settleTimeMs has passed.
+         */
+        Adaptive
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(AbstractCamera.class);
+
+    /**
+     * Frames are compared at this width, which is plenty to see motion and keeps the comparison
+     * cheap.
+     */
+    private static final int settleCompareWidth = 160;
+
     @Attribute
     protected String id;
 
@@ -39,6 +68,22 @@ public abstract class AbstractCamera implements Camera {
     @Attribute(required = false)
     protected long settleTimeMs = 250;
 
+    @Attribute(required = false)
+    protected SettleMethod settleMethod = SettleMethod.FixedTime;
+
+    /**
+     * For SettleMethod.Adaptive, the mean difference in gray levels between two frames below which
+     * the camera is considered settled.
+     */
+    @Attribute(required = false)
+    protected double settleThreshold = 1.5;
+
+    private volatile long lastSettleTimeMs;
+
+    private long settleCount;
+
+    private long settleTotalMs;
+
     protected Set<ListenerEntry> listeners = Collections.synchronizedSet(new HashSet<>());
 
     protected Head head;
@@ -112,7 +157,40 @@ public abstract class AbstractCamera implements Camera {
 
     @Override
     public void stopContinuousCapture(CameraListener listener) {
-        listeners.remove(new ListenerEntry(listener, 0));
+        ListenerEntry entry = getListenerEntry(listener);
+        if (entry != null) {
+            listeners.remove(entry);
+            entry.shutdown();
+        }
+    }
+
+    /**
+     * Returns the number of frames that were dropped for the listener because it had not finished
+     * with earlier ones, or 0 if it isn't registered.
+     */
+    public long getDroppedFrames(CameraListener listener) {
+        ListenerEntry entry = getListenerEntry(listener);
+        return entry == null ? 0 : entry.getDroppedFrames();
+    }
+
+    /**
+     * Returns the average time in milliseconds from a frame being captured to the listener
+     * returning from frameReceived(), or 0 if it isn't registered or has had no frames.
+     */
+    public double getAverageFrameLatencyMs(CameraListener listener) {
+        ListenerEntry entry = getListenerEntry(listener);
+        return entry == null ? 0 : entry.getAverageLatencyMs();
+    }
+
+    private ListenerEntry getListenerEntry(CameraListener listener) {
+        synchronized (listeners) {
+            for (ListenerEntry entry : listeners) {
+                if (entry.listener == listener) {
+                    return entry;
+                }
+            }
+        }
+        return null;
     }
 
     @Override
@@ -127,20 +205,139 @@ public abstract class AbstractCamera implements Camera {
     }
 
     public BufferedImage settleAndCapture() {
+        settle();
+        return capture();
+    }
+
+    /**
+     * Converts the result of capture(). Cameras that capture into a Mat should override this to
+     * return it directly.
+     */
+    @Override
+    public Mat captureMat() {
+        BufferedImage image = capture();
+        if (image == null) {
+            return null;
+        }
+        return OpenCvUtils.toMat(image);
+    }
+
+    @Override
+    public Mat settleAndCaptureMat() {
+        settle();
+        return captureMat();
+    }
+
+    /**
+     * Waits according to the settle method and records how long it took, see
+     * getLastSettleTimeMs().
+     */
+    @Override
+    public void settle() {
+        long t = System.nanoTime();
         try {
-            Thread.sleep(getSettleTimeMs());
+            if (settleMethod == SettleMethod.Adaptive) {
+                settleAdaptive();
+            }
+            else {
+                Thread.sleep(getSettleTimeMs());
+            }
         }
         catch (Exception e) {
 
         }
-        return capture();
+        long ms = (System.nanoTime() - t) / 1000000;
+        synchronized (this) {
+            lastSettleTimeMs = ms;
+            settleCount++;
+            settleTotalMs += ms;
+        }
+        logger.debug("{} settled in {} ms", getName(), ms);
     }
 
+    /**
+     * Captures frames until the difference between two in a row falls under settleThreshold or
+     * settleTimeMs passes.
+     */
+    private void settleAdaptive() throws Exception {
+        long deadline = System.nanoTime() + getSettleTimeMs() * 1000000;
+        Mat previous = captureSettleFrame();
+        if (previous == null) {
+            Thread.sleep(getSettleTimeMs());
+            return;
+        }
+        Mat diff = new Mat();
+        try {
+            while (System.nanoTime() - deadline < 0) {
+                Mat current = captureSettleFrame();
+                if (current == null) {
+                    break;
+                }
+                Core.absdiff(previous, current, diff);
+                previous.release();
+                previous = current;
+                if (Core.mean(diff).val[0] <= settleThreshold) {
+                    break;
+                }
+            }
+        }
+        finally {
+            previous.release();
+            diff.release();
+        }
+    }
+
+    /**
+     * Captures a frame for settleAdaptive(), reduced to a small gray image.
+     */
+    private Mat captureSettleFrame() {
+        Mat mat = captureNextMat();
+        if (mat == null) {
+            return null;
+        }
+        Mat small = new Mat();
+        double scale = Math.min(1, (double) settleCompareWidth / mat.cols());
+        Imgproc.resize(mat, small, new Size(), scale, scale, Imgproc.INTER_AREA);
+        mat.release();
+        if (small.channels() == 3) {
+            Imgproc.cvtColor(small, small, Imgproc.COLOR_BGR2GRAY);
+        }
+        return small;
+    }
+
+    /**
+     * Captures a frame that was exposed after this call, for comparing successive frames while
+     * settling. The default is captureMat(), which reads the device.
+     */
+    protected Mat captureNextMat() {
+        return captureMat();
+    }
+
+    /**
+     * Returns how long the last settle() took, in milliseconds.
+     */
+    public long getLastSettleTimeMs() {
+        return lastSettleTimeMs;
+    }
+
+    /**
+     * Returns the average time settle() has taken, in milliseconds, or 0 if it has not been
+     * called.
+     */
+    public synchronized double getAverageSettleTimeMs() {
+        return settleCount == 0 ? 0 : (double) settleTotalMs / settleCount;
+    }
+
+    /**
+     * Queues the frame for each listener that is due one according to its maximumFps. Each
+     * listener receives its frames on a thread of its own, so a slow listener doesn't hold up the
+     * capture thread or the other listeners. See ListenerEntry.
+     */
     protected void broadcastCapture(BufferedImage img) {
         for (ListenerEntry listener : new ArrayList<>(listeners)) {
             if (listener.lastFrameSent < (System.currentTimeMillis()
                     - (1000 / listener.maximumFps))) {
-                listener.listener.frameReceived(img);
+                listener.offer(img);
                 listener.lastFrameSent = System.currentTimeMillis();
             }
         }
@@ -174,6 +371,22 @@ public abstract class AbstractCamera implements Camera {
         this.settleTimeMs = settleTimeMs;
     }
 
+    public SettleMethod getSettleMethod() {
+        return settleMethod;
+    }
+
+    public void setSettleMethod(SettleMethod settleMethod) {
+        this.settleMethod = settleMethod;
+    }
+
+    public double getSettleThreshold() {
+        return settleThreshold;
+    }
+
+    public void setSettleThreshold(double settleThreshold) {
+        this.settleThreshold = settleThreshold;
+    }
+
     @Override
     public Icon getPropertySheetHolderIcon() {
         return Icons.captureCamera;
@@ -189,16 +402,107 @@ public abstract class AbstractCamera implements Camera {
         moveToSafeZ(getHead().getMachine().getSpeed());
     }
     
+    private static class QueuedFrame {
+        final BufferedImage image;
+        final long queued = System.nanoTime();
+
+        QueuedFrame(BufferedImage image) {
+            this.image = image;
+        }
+    }
+
+    /**
+     * A registered listener and the queue of frames waiting to be delivered to it. The queue holds
+     * at most queueSize frames, and when it is full the oldest is dropped to make room, so a
+     * listener that falls behind gets the most recent frames rather than an ever growing backlog.
+     */
     protected class ListenerEntry {
+        private static final int queueSize = 2;
+
         public CameraListener listener;
         public int maximumFps;
         public long lastFrameSent;
 
+        /**
+         * Guarded by this.
+         */
+        private final ArrayDeque<QueuedFrame> queue = new ArrayDeque<>();
+        private boolean delivering;
+        private ExecutorService executor;
+        private long droppedFrames;
+        private long deliveredFrames;
+        private long totalLatencyNanos;
+
         public ListenerEntry(CameraListener listener, int maximumFps) {
             this.listener = listener;
             this.maximumFps = maximumFps;
         }
 
+        public synchronized void offer(BufferedImage img) {
+            if (queue.size() == queueSize) {
+                queue.poll();
+                droppedFrames++;
+            }
+            queue.add(new QueuedFrame(img));
+            if (delivering) {
+                return;
+            }
+            if (executor == null) {
+                executor = Executors.newSingleThreadExecutor(runnable -> {
+                    Thread thread = new Thread(runnable,
+                            getName() + " " + listener.getClass().getSimpleName());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            if (executor.isShutdown()) {
+                return;
+            }
+            delivering = true;
+            executor.execute(this::deliver);
+        }
+
+        private void deliver() {
+            while (true) {
+                QueuedFrame frame;
+                synchronized (this) {
+                    frame = queue.poll();
+                    if (frame == null) {
+                        delivering = false;
+                        return;
+                    }
+                }
+                try {
+                    listener.frameReceived(frame.image);
+                }
+                catch (Exception e) {
+                    logger.warn("{} frameReceived failed", getName(), e);
+                }
+                synchronized (this) {
+                    deliveredFrames++;
+                    totalLatencyNanos += System.nanoTime() - frame.queued;
+                }
+            }
+        }
+
+        public synchronized void shutdown() {
+            queue.clear();
+            if (executor != null) {
+                executor.shutdown();
+            }
+            logger.debug("{} listener {}: {} frames delivered, {} dropped, {} ms average latency",
+                    getName(), listener.getClass().getSimpleName(), deliveredFrames,
+                    droppedFrames, getAverageLatencyMs());
+        }
+
+        public synchronized long getDroppedFrames() {
+            return droppedFrames;
+        }
+
+        public synchronized double getAverageLatencyMs() {
+            return deliveredFrames == 0 ? 0 : totalLatencyNanos / 1e6 / deliveredFrames;
+        }
+
         @Override
         public int hashCode() {
             return listener.hashCode();
@@ -34,7 +34,9 @@ public abstract class AbstractFeeder extends AbstractModelObject implements Feed
         Configuration.get().addListener(new ConfigurationListener.Adapter() {
             @Override
             public void configurationLoaded(Configuration configuration) throws Exception {
+                Part oldValue = part;
                 part = configuration.getPart(partId);
+                firePropertyChange("part", oldValue, part);
             }
         });
     }
@@ -51,13 +53,17 @@ public abstract class AbstractFeeder extends AbstractModelObject implements Feed
 
     @Override
     public void setEnabled(boolean enabled) {
+        Object oldValue = this.enabled;
         this.enabled = enabled;
+        firePropertyChange("enabled", oldValue, enabled);
     }
 
     @Override
     public void setPart(Part part) {
+        Object oldValue = this.part;
         this.part = part;
         this.partId = part.getId();
+        firePropertyChange("part", oldValue, part);
     }
 
     @Override
@@ -80,6 +86,11 @@ public abstract class AbstractFeeder extends AbstractModelObject implements Feed
         return Icons.editFeeder;
     }
 
+    @Override
+    public boolean canFeedInBackground() {
+        return false;
+    }
+
     public int getRetryCount() {
         return retryCount;
     }
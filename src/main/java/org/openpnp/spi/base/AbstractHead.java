@@ -205,6 +205,11 @@ public abstract class AbstractHead implements Head {
         moveToSafeZ(getMachine().getSpeed());
     }
 
+    @Override
+    public void moveToSafeZBeforeTravel(double speed) throws Exception {
+        moveToSafeZ(speed);
+    }
+
     public Location getParkLocation() {
         return parkLocation;
     }
@@ -1,8 +1,12 @@
 package org.openpnp.spi.base;
 
+import java.beans.PropertyChangeListener;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executors;
@@ -16,8 +20,10 @@ import javax.swing.Icon;
 import org.openpnp.machine.reference.ReferencePnpJobProcessor;
 import org.openpnp.machine.reference.vision.ReferenceBottomVision;
 import org.openpnp.machine.reference.vision.ReferenceFiducialLocator;
+import org.openpnp.model.AbstractModelObject;
 import org.openpnp.model.LengthUnit;
 import org.openpnp.model.Location;
+import org.openpnp.model.Part;
 import org.openpnp.spi.Actuator;
 import org.openpnp.spi.Camera;
 import org.openpnp.spi.Feeder;
@@ -69,6 +75,18 @@ public abstract class AbstractMachine implements Machine {
 
     protected ThreadPoolExecutor executor;
 
+    /**
+     * Index of the enabled Feeders by Part. It is built on demand and thrown away whenever a
+     * Feeder is added or removed, or a Feeder's part or enabled state changes.
+     */
+    private Map<Part, List<Feeder>> enabledFeedersByPart;
+
+    private final PropertyChangeListener feederListener = e -> {
+        if ("enabled".equals(e.getPropertyName()) || "part".equals(e.getPropertyName())) {
+            invalidateFeederIndex();
+        }
+    };
+
     protected AbstractMachine() {}
 
     @SuppressWarnings("unused")
@@ -99,6 +117,38 @@ public abstract class AbstractMachine implements Machine {
         return feeders.get(id);
     }
 
+    @Override
+    public synchronized List<Feeder> getEnabledFeeders(Part part) {
+        if (enabledFeedersByPart == null) {
+            enabledFeedersByPart = new HashMap<>();
+            for (Feeder feeder : feeders) {
+                if (feeder instanceof AbstractModelObject) {
+                    // Remove first so that rebuilding never adds the listener twice.
+                    ((AbstractModelObject) feeder).removePropertyChangeListener(feederListener);
+                    ((AbstractModelObject) feeder).addPropertyChangeListener(feederListener);
+                }
+                if (!feeder.isEnabled() || feeder.getPart() == null) {
+                    continue;
+                }
+                List<Feeder> partFeeders = enabledFeedersByPart.get(feeder.getPart());
+                if (partFeeders == null) {
+                    partFeeders = new ArrayList<>();
+                    enabledFeedersByPart.put(feeder.getPart(), partFeeders);
+                }
+                partFeeders.add(feeder);
+            }
+        }
+        List<Feeder> partFeeders = enabledFeedersByPart.get(part);
+        if (partFeeders == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(partFeeders);
+    }
+
+    protected synchronized void invalidateFeederIndex() {
+        enabledFeedersByPart = null;
+    }
+
     @Override
     public List<Camera> getCameras() {
         return Collections.unmodifiableList(cameras);
@@ -149,11 +199,16 @@ public abstract class AbstractMachine implements Machine {
     @Override
     public void addFeeder(Feeder feeder) throws Exception {
         feeders.add(feeder);
+        invalidateFeederIndex();
     }
 
     @Override
     public void removeFeeder(Feeder feeder) {
         feeders.remove(feeder);
+        if (feeder instanceof AbstractModelObject) {
+            ((AbstractModelObject) feeder).removePropertyChangeListener(feederListener);
+        }
+        invalidateFeederIndex();
     }
 
     @Override
@@ -1,5 +1,7 @@
 package org.openpnp.spi.base;
 
+import java.util.List;
+
 import org.openpnp.model.Configuration;
 import org.openpnp.model.Part;
 import org.openpnp.spi.Feeder;
@@ -83,12 +85,22 @@ public abstract class AbstractPnpJobProcessor extends AbstractJobProcessor
      * @throws Exception If no Feeder is found that is both enabled and is serving the Part.
      */
     public static Feeder findFeeder(Machine machine, Part part) throws Exception {
-        for (Feeder feeder : machine.getFeeders()) {
-            if (feeder.getPart() == part && feeder.isEnabled()) {
-                return feeder;
-            }
+        return findFeeders(machine, part).get(0);
+    }
+
+    /**
+     * Find all of the enabled Feeders that are able to feed the given Part, in machine order.
+     * 
+     * @param part
+     * @return
+     * @throws Exception If no Feeder is found that is both enabled and is serving the Part.
+     */
+    public static List<Feeder> findFeeders(Machine machine, Part part) throws Exception {
+        List<Feeder> feeders = machine.getEnabledFeeders(part);
+        if (feeders.isEmpty()) {
+            throw new Exception("No compatible, enabled feeder found for part " + part.getId());
         }
-        throw new Exception("No compatible, enabled feeder found for part " + part.getId());
+        return feeders;
     }
 
 
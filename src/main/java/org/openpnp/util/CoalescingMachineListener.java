@@ -0,0 +1,142 @@
+package org.openpnp.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.openpnp.spi.Head;
+import org.openpnp.spi.Machine;
+import org.openpnp.spi.MachineListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A MachineListener that passes machineHeadActivity on to another listener at most a given number
+ * of times per second, for listeners such as the DROs that only need to show where the head is
+ * now. Activity for a Head that is already waiting to be delivered is dropped, since the listener
+ * reads the Head's current state when it gets the event anyway. Delivery happens on a shared
+ * background thread, so the machine thread never waits for the listener.
+ *
+ * All other events are passed on immediately, on the thread that fired them.
+ */
+public class CoalescingMachineListener implements MachineListener {
+    private static final Logger logger = LoggerFactory.getLogger(CoalescingMachineListener.class);
+
+    private static final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "CoalescingMachineListener");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * Runs a task after a delay. See the constructor that takes one.
+     */
+    public interface Scheduler {
+        public void schedule(Runnable task, long delayNanos);
+    }
+
+    private final MachineListener listener;
+
+    private final long periodNanos;
+
+    private final LongSupplier clock;
+
+    private final Scheduler scheduler;
+
+    /**
+     * Heads with activity waiting to be delivered, and the Machine that fired it. Guarded by
+     * this.
+     */
+    private final Map<Head, Machine> pending = new LinkedHashMap<>();
+
+    private boolean scheduled;
+
+    private long lastDelivery;
+
+    /**
+     * @param listener The listener to pass events on to.
+     * @param maxRate The maximum number of times per second machineHeadActivity is delivered.
+     */
+    public CoalescingMachineListener(MachineListener listener, double maxRate) {
+        this(listener, maxRate, System::nanoTime,
+                (task, delayNanos) -> executor.schedule(task, delayNanos, TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Same as above, but with the time and the delayed delivery supplied by the caller, so that
+     * tests don't depend on the wall clock.
+     * 
+     * @param listener The listener to pass events on to.
+     * @param maxRate The maximum number of times per second machineHeadActivity is delivered.
+     * @param clock Returns the current time in nanoseconds, like System.nanoTime().
+     * @param scheduler Runs deliveries after a delay.
+     */
+    public CoalescingMachineListener(MachineListener listener, double maxRate, LongSupplier clock,
+            Scheduler scheduler) {
+        this.listener = listener;
+        this.periodNanos = (long) (1e9 / maxRate);
+        this.clock = clock;
+        this.scheduler = scheduler;
+        this.lastDelivery = clock.getAsLong() - periodNanos;
+    }
+
+    @Override
+    public synchronized void machineHeadActivity(Machine machine, Head head) {
+        pending.put(head, machine);
+        if (scheduled) {
+            return;
+        }
+        scheduled = true;
+        long delay = Math.max(0, lastDelivery + periodNanos - clock.getAsLong());
+        scheduler.schedule(this::deliver, delay);
+    }
+
+    private void deliver() {
+        List<Map.Entry<Head, Machine>> entries;
+        synchronized (this) {
+            entries = new ArrayList<>(pending.entrySet());
+            pending.clear();
+            scheduled = false;
+            lastDelivery = clock.getAsLong();
+        }
+        for (Map.Entry<Head, Machine> entry : entries) {
+            try {
+                listener.machineHeadActivity(entry.getValue(), entry.getKey());
+            }
+            catch (Exception e) {
+                logger.warn("machineHeadActivity failed", e);
+            }
+        }
+    }
+
+    @Override
+    public void machineEnabled(Machine machine) {
+        listener.machineEnabled(machine);
+    }
+
+    @Override
+    public void machineEnableFailed(Machine machine, String reason) {
+        listener.machineEnableFailed(machine, reason);
+    }
+
+    @Override
+    public void machineDisabled(Machine machine, String reason) {
+        listener.machineDisabled(machine, reason);
+    }
+
+    @Override
+    public void machineDisableFailed(Machine machine, String reason) {
+        listener.machineDisableFailed(machine, reason);
+    }
+
+    @Override
+    public void machineBusy(Machine machine, boolean busy) {
+        listener.machineBusy(machine, busy);
+    }
+}
@@ -0,0 +1,207 @@
+package org.openpnp.util;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+import org.openpnp.util.FiniteStateMachine.Task;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Forks a child FiniteStateMachine for each item in a list and drives all of them to a final
+ * state before returning, which is the join. A parent FiniteStateMachine can use this as the task
+ * for a single transition, while each item still moves through its own states.
+ *
+ * Child steps run one at a time on the calling thread, in a fixed order: the step with the lowest
+ * phase goes first, and steps in the same phase go in item order. Anything that moves the machine
+ * has to be done this way so that the order of moves is always the same.
+ *
+ * Work that does not move the machine can be given a head start with a background task, which is
+ * started on the executor as soon as the Scheduler offers one. Before an item's next step runs
+ * its background task is waited for. Before waiting, every idle task the Scheduler hands out is
+ * run on the calling thread so that the wait overlaps with useful work. Idle tasks run at that
+ * point whether or not the background task has already finished, so the moves they make happen in
+ * the same order every time. Background and idle tasks are only ever a head start: if one fails,
+ * the failure is logged and the step runs as usual, and the step is expected to notice that the
+ * work still needs to be done.
+ *
+ * If a step throws, the exception is thrown from join() once any running background tasks have
+ * finished. The children keep their states, so calling join() again resumes where it stopped.
+ */
+public class ForkJoin<T, State, Message> {
+    private static final Logger logger = LoggerFactory.getLogger(ForkJoin.class);
+
+    public interface Scheduler<T, State> {
+        /**
+         * Returns the phase of the step that leaves the given state. Steps with a lower phase run
+         * first.
+         */
+        int getPhase(State state);
+
+        /**
+         * Returns a Task that may run in the background ahead of the item's step from the given
+         * state, or null if there is none right now. This is asked again every time a step
+         * completes, but a background task is started at most once per item and state.
+         */
+        Task getBackgroundTask(T item, State state);
+
+        /**
+         * Returns a Task to run on the calling thread before it waits for a background task, or
+         * null if there is nothing to do. This is asked again after each idle task until it
+         * returns null, so an idle task must change whatever made it eligible, even if it fails.
+         */
+        Task getIdleTask();
+    }
+
+    private final Function<T, FiniteStateMachine<State, Message>> factory;
+    private final State finalState;
+    private final Message message;
+    private final Scheduler<T, State> scheduler;
+    private final ExecutorService executor;
+
+    private final Map<T, FiniteStateMachine<State, Message>> children = new IdentityHashMap<>();
+    private final Map<T, Future<?>> backgroundTasks = new IdentityHashMap<>();
+    private final Map<T, State> backgroundStates = new IdentityHashMap<>();
+    private List<T> items = new ArrayList<>();
+    private T failed;
+
+    /**
+     * @param factory Creates the child FiniteStateMachine for an item.
+     * @param finalState The state that each child is driven to.
+     * @param message The Message sent to a child to perform its next step.
+     * @param scheduler Decides the order of steps and which work can run in the background.
+     * @param executor Runs background tasks.
+     */
+    public ForkJoin(Function<T, FiniteStateMachine<State, Message>> factory, State finalState,
+            Message message, Scheduler<T, State> scheduler, ExecutorService executor) {
+        this.factory = factory;
+        this.finalState = finalState;
+        this.message = message;
+        this.scheduler = scheduler;
+        this.executor = executor;
+    }
+
+    /**
+     * Fork a child for each item that does not have one yet and run until every child has reached
+     * the final state. Children of items that are no longer in the list are discarded.
+     *
+     * @param items
+     * @throws Exception If a step failed. See getFailed().
+     */
+    public void join(List<T> items) throws Exception {
+        this.items = new ArrayList<>(items);
+        this.failed = null;
+        children.keySet().retainAll(this.items);
+        backgroundStates.keySet().retainAll(this.items);
+        for (T item : this.items) {
+            if (!children.containsKey(item)) {
+                children.put(item, factory.apply(item));
+            }
+        }
+        try {
+            while (true) {
+                startBackgroundTasks();
+                T item = getNext();
+                if (item == null) {
+                    return;
+                }
+                awaitBackgroundTask(item, true);
+                try {
+                    children.get(item).send(message);
+                }
+                catch (Exception e) {
+                    failed = item;
+                    throw e;
+                }
+            }
+        }
+        finally {
+            for (T item : new ArrayList<>(backgroundTasks.keySet())) {
+                awaitBackgroundTask(item, false);
+            }
+        }
+    }
+
+    /**
+     * Returns the current state of the item's child, or null if it has none.
+     */
+    public State getState(T item) {
+        FiniteStateMachine<State, Message> child = children.get(item);
+        return child == null ? null : child.getState();
+    }
+
+    /**
+     * Returns the item whose step failed during the last call to join(), or null if it
+     * completed.
+     */
+    public T getFailed() {
+        return failed;
+    }
+
+    private T getNext() {
+        T next = null;
+        int nextPhase = Integer.MAX_VALUE;
+        for (T item : items) {
+            State state = children.get(item).getState();
+            if (state == finalState) {
+                continue;
+            }
+            int phase = scheduler.getPhase(state);
+            if (phase < nextPhase) {
+                next = item;
+                nextPhase = phase;
+            }
+        }
+        return next;
+    }
+
+    private void startBackgroundTasks() {
+        for (T item : items) {
+            State state = children.get(item).getState();
+            if (state == finalState || backgroundTasks.containsKey(item)
+                    || backgroundStates.get(item) == state) {
+                continue;
+            }
+            Task task = scheduler.getBackgroundTask(item, state);
+            if (task == null) {
+                continue;
+            }
+            backgroundStates.put(item, state);
+            backgroundTasks.put(item, executor.submit(() -> {
+                task.task();
+                return null;
+            }));
+        }
+    }
+
+    private void awaitBackgroundTask(T item, boolean idle) throws InterruptedException {
+        Future<?> future = backgroundTasks.remove(item);
+        if (future == null) {
+            return;
+        }
+        while (idle) {
+            Task idleTask = scheduler.getIdleTask();
+            if (idleTask == null) {
+                break;
+            }
+            try {
+                idleTask.task();
+            }
+            catch (Exception e) {
+                logger.warn("Idle task failed.", e);
+            }
+        }
+        try {
+            future.get();
+        }
+        catch (ExecutionException e) {
+            logger.debug("Background task for {} failed, continuing inline.", item, e.getCause());
+        }
+    }
+}
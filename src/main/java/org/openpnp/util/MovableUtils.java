@@ -10,6 +10,15 @@ public class MovableUtils {
      * safe-Z all of it's components, then moving the HeadMountable in X, Y and C, followed by
      * moving in Z.
      * 
+     * The safe-Z is a single call to the head so that drivers which support it can raise every
+     * Z axis with one command. It uses Head.moveToSafeZBeforeTravel(), since the X, Y move
+     * follows right away, so the end of the retract may be blended into that move.
+     * With GcodeDriver and a safeZBlendHeight that covers the retract, a pick or place is two
+     * controller commands: the X, Y move carrying the retract, then the move down in Z. Otherwise
+     * it is three, since the raise has to clear obstacles before X and Y start. The move down is
+     * never combined with the X, Y move, because a single straight move would start lowering the
+     * nozzle before it has passed over whatever is between the two locations.
+     * 
      * @param hm
      * @param location
      * @param speed
@@ -18,7 +27,7 @@ public class MovableUtils {
     public static void moveToLocationAtSafeZ(HeadMountable hm, Location location, double speed)
             throws Exception {
         Head head = hm.getHead();
-        head.moveToSafeZ(speed);
+        head.moveToSafeZBeforeTravel(speed);
         hm.moveTo(location.derive(null, null, Double.NaN, null), speed);
         hm.moveTo(location, speed);
     }
@@ -112,8 +112,7 @@ public class OpenCvUtils {
         double maxDiameterPixels = maxDiameter.getValue() / avgUnitsPerPixel;
         double minDistancePixels = minDistance.getValue() / avgUnitsPerPixel;
 
-        BufferedImage image = camera.capture();
-        Mat mat = toMat(image);
+        Mat mat = camera.captureMat();
         Mat circles = houghCircles(mat, minDiameterPixels, maxDiameterPixels, minDistancePixels);
 
         // convert the results into Locations
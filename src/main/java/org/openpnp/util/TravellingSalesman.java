@@ -0,0 +1,195 @@
+package org.openpnp.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openpnp.model.LengthUnit;
+import org.openpnp.model.Location;
+
+/**
+ * Finds a short open path through a list of items, starting at a fixed Location and visiting each
+ * item exactly once. The path is seeded with the nearest neighbour heuristic and then improved with
+ * 2-opt and Or-opt moves until no improving move remains or the time budget runs out. Distances
+ * are measured in X and Y only, in millimeters.
+ *
+ * This is a heuristic. For the handful of items in a single job cycle it will almost always find
+ * the optimum, but that is not guaranteed.
+ */
+public class TravellingSalesman<T> {
+    public interface Locator<T> {
+        Location getLocation(T item);
+    }
+
+    private final List<T> items;
+    private final double[][] distances;
+
+    /**
+     * @param items The items to visit.
+     * @param locator Returns the Location of an item.
+     * @param startLocation Where the path starts, typically the current head position.
+     */
+    public TravellingSalesman(List<T> items, Locator<T> locator, Location startLocation) {
+        this.items = new ArrayList<>(items);
+        // Index 0 is the start location, item i is at index i + 1.
+        List<Location> locations = new ArrayList<>();
+        locations.add(startLocation.convertToUnits(LengthUnit.Millimeters));
+        for (T item : items) {
+            locations.add(locator.getLocation(item).convertToUnits(LengthUnit.Millimeters));
+        }
+        distances = new double[locations.size()][locations.size()];
+        for (int i = 0; i < locations.size(); i++) {
+            for (int j = 0; j < locations.size(); j++) {
+                distances[i][j] = locations.get(i).getLinearDistanceTo(locations.get(j));
+            }
+        }
+    }
+
+    /**
+     * Returns the total length of the path through the items in the order given, starting at the
+     * start location.
+     *
+     * @param path
+     * @return
+     */
+    public double getDistance(List<T> path) {
+        int[] tour = new int[path.size()];
+        for (int i = 0; i < tour.length; i++) {
+            tour[i] = items.indexOf(path.get(i)) + 1;
+        }
+        return getDistance(tour);
+    }
+
+    /**
+     * Solve for a short path through the items.
+     *
+     * @param timeoutMilliseconds Stop improving the path once this much time has passed. The best
+     *        path found so far is returned.
+     * @return The items in the order they should be visited.
+     */
+    public List<T> solve(long timeoutMilliseconds) {
+        long deadline = System.currentTimeMillis() + timeoutMilliseconds;
+        int[] tour = nearestNeighbour();
+        boolean improved = true;
+        while (improved && System.currentTimeMillis() < deadline) {
+            improved = twoOpt(tour) | orOpt(tour);
+        }
+        List<T> path = new ArrayList<>();
+        for (int index : tour) {
+            path.add(items.get(index - 1));
+        }
+        return path;
+    }
+
+    private int[] nearestNeighbour() {
+        int[] tour = new int[items.size()];
+        boolean[] visited = new boolean[items.size() + 1];
+        int current = 0;
+        for (int i = 0; i < tour.length; i++) {
+            int next = -1;
+            for (int j = 1; j <= items.size(); j++) {
+                if (!visited[j] && (next == -1 || distances[current][j] < distances[current][next])) {
+                    next = j;
+                }
+            }
+            visited[next] = true;
+            tour[i] = next;
+            current = next;
+        }
+        return tour;
+    }
+
+    /**
+     * Reverse any segment of the path where doing so makes it shorter. Since the path is open, the
+     * segment may run to the end of the path, in which case only one edge changes.
+     */
+    private boolean twoOpt(int[] tour) {
+        boolean improved = false;
+        for (int i = 0; i < tour.length - 1; i++) {
+            for (int j = i + 1; j < tour.length; j++) {
+                int a = i == 0 ? 0 : tour[i - 1];
+                int b = tour[i];
+                int c = tour[j];
+                double delta = distances[a][c] - distances[a][b];
+                if (j < tour.length - 1) {
+                    int d = tour[j + 1];
+                    delta += distances[b][d] - distances[c][d];
+                }
+                if (delta < -1e-9) {
+                    reverse(tour, i, j);
+                    improved = true;
+                }
+            }
+        }
+        return improved;
+    }
+
+    /**
+     * Move segments of one to three items to a different position in the path where doing so
+     * makes it shorter.
+     */
+    private boolean orOpt(int[] tour) {
+        boolean improved = false;
+        for (int length = 1; length <= 3; length++) {
+            for (int i = 0; i + length <= tour.length; i++) {
+                double before = getDistance(tour);
+                for (int j = 0; j <= tour.length - length; j++) {
+                    if (j == i) {
+                        continue;
+                    }
+                    int[] candidate = moveSegment(tour, i, length, j);
+                    if (getDistance(candidate) < before - 1e-9) {
+                        System.arraycopy(candidate, 0, tour, 0, tour.length);
+                        improved = true;
+                        break;
+                    }
+                }
+            }
+        }
+        return improved;
+    }
+
+    /**
+     * Returns a copy of tour with the segment of the given length starting at from removed and
+     * re-inserted so that it starts at index to.
+     */
+    private static int[] moveSegment(int[] tour, int from, int length, int to) {
+        List<Integer> rest = new ArrayList<>();
+        for (int i = 0; i < tour.length; i++) {
+            if (i < from || i >= from + length) {
+                rest.add(tour[i]);
+            }
+        }
+        int[] result = new int[tour.length];
+        int k = 0;
+        for (int i = 0; i < to; i++) {
+            result[k++] = rest.get(i);
+        }
+        for (int i = 0; i < length; i++) {
+            result[k++] = tour[from + i];
+        }
+        for (int i = to; i < rest.size(); i++) {
+            result[k++] = rest.get(i);
+        }
+        return result;
+    }
+
+    private static void reverse(int[] tour, int i, int j) {
+        while (i < j) {
+            int t = tour[i];
+            tour[i] = tour[j];
+            tour[j] = t;
+            i++;
+            j--;
+        }
+    }
+
+    private double getDistance(int[] tour) {
+        double distance = 0;
+        int current = 0;
+        for (int index : tour) {
+            distance += distances[current][index];
+            current = index;
+        }
+        return distance;
+    }
+}
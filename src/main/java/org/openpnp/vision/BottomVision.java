@@ -42,6 +42,7 @@ public class BottomVision {
         MovableUtils.moveToLocationAtSafeZ(nozzle, startLocation, part.getSpeed());
 
         pipeline.setCamera(camera);
+        pipeline.setRetainAllImages(false);
         pipeline.process();
 
         CameraView cameraView = MainFrame.mainFrame.cameraPanel.getCameraView(camera);
@@ -0,0 +1,272 @@
+package org.openpnp.vision;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.RotatedRect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Applies a camera's crop, lens undistortion, rotation, offset and flip to an image with a single
+ * remap. The steps are combined into one lookup table that gives, for each pixel of the output
+ * image, where it comes from in the input image. The table is built the first time an image is
+ * transformed and rebuilt only if the image size changes, so each frame costs one remap instead
+ * of one full copy per step.
+ *
+ * Instances are immutable apart from the table. Create a new one when the settings change, see
+ * matches().
+ *
+ * The result is not bit for bit the same as applying each step in turn, since the image is only
+ * interpolated once instead of once per step.
+ */
+public class CameraTransform {
+    static {
+        nu.pattern.OpenCV.loadShared();
+        System.loadLibrary(org.opencv.core.Core.NATIVE_LIBRARY_NAME);
+    }
+
+    /**
+     * Map coordinate used for output pixels that have no source pixel. It is far enough outside
+     * the image that the border color is used without blending.
+     */
+    private static final float OUTSIDE = -10;
+
+    private final int cropWidth;
+    private final int cropHeight;
+    private final Mat cameraMatrix;
+    private final Mat distortionCoefficients;
+    private final double rotation;
+    private final int offsetX;
+    private final int offsetY;
+    private final boolean flipX;
+    private final boolean flipY;
+
+    private int width = -1;
+    private int height = -1;
+    private Mat map1;
+    private Mat map2;
+    private Size outputSize;
+
+    /**
+     * @param cropWidth Width of the region to crop from the center of the image, or 0 along with
+     *        cropHeight for no crop.
+     * @param cropHeight Height of the region to crop from the center of the image.
+     * @param cameraMatrix Camera matrix for undistortion, or null for no undistortion.
+     * @param distortionCoefficients Distortion coefficients for undistortion, or null for no
+     *        undistortion.
+     * @param rotation Rotation in degrees, counter clockwise. The output is enlarged to fit the
+     *        rotated image.
+     * @param offsetX Number of pixels to shift the image right.
+     * @param offsetY Number of pixels to shift the image down.
+     * @param flipX Flip the image around the X axis.
+     * @param flipY Flip the image around the Y axis.
+     */
+    public CameraTransform(int cropWidth, int cropHeight, Mat cameraMatrix,
+            Mat distortionCoefficients, double rotation, int offsetX, int offsetY, boolean flipX,
+            boolean flipY) {
+        this.cropWidth = cropWidth;
+        this.cropHeight = cropHeight;
+        if (cameraMatrix == null || distortionCoefficients == null) {
+            cameraMatrix = null;
+            distortionCoefficients = null;
+        }
+        this.cameraMatrix = cameraMatrix;
+        this.distortionCoefficients = distortionCoefficients;
+        this.rotation = rotation;
+        this.offsetX = offsetX;
+        this.offsetY = offsetY;
+        this.flipX = flipX;
+        this.flipY = flipY;
+    }
+
+    /**
+     * Returns true if this transform was created with the given settings. The camera matrix and
+     * distortion coefficients are compared by identity, so a calibration is expected to replace
+     * them rather than change them in place.
+     */
+    public boolean matches(int cropWidth, int cropHeight, Mat cameraMatrix,
+            Mat distortionCoefficients, double rotation, int offsetX, int offsetY, boolean flipX,
+            boolean flipY) {
+        if (cameraMatrix == null || distortionCoefficients == null) {
+            cameraMatrix = null;
+            distortionCoefficients = null;
+        }
+        return this.cropWidth == cropWidth && this.cropHeight == cropHeight
+                && this.cameraMatrix == cameraMatrix
+                && this.distortionCoefficients == distortionCoefficients
+                && this.rotation == rotation && this.offsetX == offsetX
+                && this.offsetY == offsetY && this.flipX == flipX && this.flipY == flipY;
+    }
+
+    /**
+     * Returns true if the transform leaves every image unchanged.
+     */
+    public boolean isIdentity() {
+        return cropWidth == 0 && cropHeight == 0 && cameraMatrix == null && rotation == 0D
+                && offsetX == 0 && offsetY == 0 && !flipX && !flipY;
+    }
+
+    /**
+     * Transforms the image into a new Mat, which the caller must release. The source is not
+     * changed.
+     */
+    public synchronized Mat apply(Mat mat) {
+        if (isIdentity()) {
+            return mat.clone();
+        }
+        if (mat.width() != width || mat.height() != height) {
+            release();
+            build(mat.width(), mat.height());
+        }
+        Mat dst = new Mat(outputSize, mat.type());
+        Imgproc.remap(mat, dst, map1, map2, Imgproc.INTER_LINEAR, Imgproc.BORDER_CONSTANT,
+                new Scalar(0));
+        return dst;
+    }
+
+    /**
+     * Releases the lookup table. The transform can still be used afterwards, it will build the
+     * table again.
+     */
+    public synchronized void release() {
+        if (map1 != null) {
+            map1.release();
+            map2.release();
+            map1 = null;
+            map2 = null;
+        }
+        width = -1;
+        height = -1;
+    }
+
+    /**
+     * Builds the lookup table by working backwards from each output pixel through the flip,
+     * offset, rotation, undistortion and crop in turn.
+     */
+    private void build(int width, int height) {
+        // Crop
+        int cropX = 0;
+        int cropY = 0;
+        int croppedWidth = width;
+        int croppedHeight = height;
+        if (cropWidth != 0 || cropHeight != 0) {
+            cropX = (int) ((width / 2D) - (cropWidth / 2));
+            cropY = (int) ((height / 2D) - (cropHeight / 2));
+            croppedWidth = cropWidth;
+            croppedHeight = cropHeight;
+        }
+
+        // Undistortion, which is already a backwards map on the cropped image.
+        float[] undistortX = null;
+        float[] undistortY = null;
+        if (cameraMatrix != null) {
+            Mat mapX = new Mat();
+            Mat mapY = new Mat();
+            Mat rectification = Mat.eye(3, 3, CvType.CV_32F);
+            Imgproc.initUndistortRectifyMap(cameraMatrix, distortionCoefficients, rectification,
+                    cameraMatrix, new Size(croppedWidth, croppedHeight), CvType.CV_32FC1, mapX,
+                    mapY);
+            undistortX = new float[croppedWidth * croppedHeight];
+            undistortY = new float[croppedWidth * croppedHeight];
+            mapX.get(0, 0, undistortX);
+            mapY.get(0, 0, undistortY);
+            rectification.release();
+            mapX.release();
+            mapY.release();
+        }
+
+        // Rotation, see ReferenceCamera for where the bounding box adjustment comes from. The
+        // inverse maps rotated pixels back to the cropped image.
+        int rotatedWidth = croppedWidth;
+        int rotatedHeight = croppedHeight;
+        double[] inverse = new double[] {1, 0, 0, 0, 1, 0};
+        if (rotation != 0D) {
+            Point center = new Point(croppedWidth / 2D, croppedHeight / 2D);
+            Mat mapMatrix = Imgproc.getRotationMatrix2D(center, rotation, 1.0);
+            Rect bbox = new RotatedRect(center, new Size(croppedWidth, croppedHeight), rotation)
+                    .boundingRect();
+            double[] cx = mapMatrix.get(0, 2);
+            double[] cy = mapMatrix.get(1, 2);
+            cx[0] += bbox.width / 2D - center.x;
+            cy[0] += bbox.height / 2D - center.y;
+            mapMatrix.put(0, 2, cx);
+            mapMatrix.put(1, 2, cy);
+            Mat inverseMatrix = new Mat();
+            Imgproc.invertAffineTransform(mapMatrix, inverseMatrix);
+            inverseMatrix.get(0, 0, inverse);
+            mapMatrix.release();
+            inverseMatrix.release();
+            rotatedWidth = bbox.width;
+            rotatedHeight = bbox.height;
+        }
+
+        float[] mapX = new float[rotatedWidth * rotatedHeight];
+        float[] mapY = new float[rotatedWidth * rotatedHeight];
+        for (int y = 0, i = 0; y < rotatedHeight; y++) {
+            for (int x = 0; x < rotatedWidth; x++, i++) {
+                // Flip and offset
+                double fx = (flipY ? rotatedWidth - 1 - x : x) - offsetX;
+                double fy = (flipX ? rotatedHeight - 1 - y : y) - offsetY;
+                // Rotation
+                double sx = inverse[0] * fx + inverse[1] * fy + inverse[2];
+                double sy = inverse[3] * fx + inverse[4] * fy + inverse[5];
+                if (sx < 0 || sy < 0 || sx > croppedWidth - 1 || sy > croppedHeight - 1) {
+                    mapX[i] = OUTSIDE;
+                    mapY[i] = OUTSIDE;
+                    continue;
+                }
+                // Undistortion
+                if (undistortX != null) {
+                    double ux = sample(undistortX, croppedWidth, croppedHeight, sx, sy);
+                    double uy = sample(undistortY, croppedWidth, croppedHeight, sx, sy);
+                    if (ux < 0 || uy < 0 || ux > croppedWidth - 1 || uy > croppedHeight - 1) {
+                        mapX[i] = OUTSIDE;
+                        mapY[i] = OUTSIDE;
+                        continue;
+                    }
+                    sx = ux;
+                    sy = uy;
+                }
+                // Crop
+                mapX[i] = (float) (sx + cropX);
+                mapY[i] = (float) (sy + cropY);
+            }
+        }
+
+        Mat floatMapX = new Mat(rotatedHeight, rotatedWidth, CvType.CV_32FC1);
+        Mat floatMapY = new Mat(rotatedHeight, rotatedWidth, CvType.CV_32FC1);
+        floatMapX.put(0, 0, mapX);
+        floatMapY.put(0, 0, mapY);
+        // The fixed point form is considerably faster to remap with.
+        map1 = new Mat();
+        map2 = new Mat();
+        Imgproc.convertMaps(floatMapX, floatMapY, map1, map2, CvType.CV_16SC2, false);
+        floatMapX.release();
+        floatMapY.release();
+
+        this.width = width;
+        this.height = height;
+        this.outputSize = new Size(rotatedWidth, rotatedHeight);
+    }
+
+    /**
+     * Bilinear interpolation of a map at a point that is known to be inside it.
+     */
+    private static double sample(float[] map, int width, int height, double x, double y) {
+        int x0 = Math.min((int) x, width - 2);
+        int y0 = Math.min((int) y, height - 2);
+        if (x0 < 0 || y0 < 0) {
+            // A map one pixel wide or high.
+            return map[(int) y * width + (int) x];
+        }
+        double dx = x - x0;
+        double dy = y - y0;
+        int i = y0 * width + x0;
+        double top = map[i] + (map[i + 1] - map[i]) * dx;
+        double bottom = map[i + width] + (map[i + width + 1] - map[i + width]) * dx;
+        return top + (bottom - top) * dy;
+    }
+}
@@ -3,10 +3,20 @@ package org.openpnp.vision.pipeline;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.opencv.core.Mat;
 import org.openpnp.model.Configuration;
@@ -49,11 +59,38 @@ public class CvPipeline {
     @ElementList
     private ArrayList<CvStage> stages = new ArrayList<>();
 
-    private Map<CvStage, Result> results = new HashMap<CvStage, Result>();
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), runnable -> {
+                Thread thread = new Thread(runnable, "CvPipeline " + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private Map<CvStage, Result> results = new ConcurrentHashMap<CvStage, Result>();
+
+    /**
+     * The branch being processed by the current thread, see #process.
+     */
+    private final ThreadLocal<Branch> currentBranch = new ThreadLocal<>();
 
     private Mat workingImage;
 
     private Camera camera;
+
+    /**
+     * If true every stage's Result keeps a copy of the image as it was after that stage, which is
+     * what the pipeline editor shows. See #setRetainAllImages.
+     */
+    private boolean retainAllImages = true;
+
+    private Set<String> retainedImageStageNames = new HashSet<>();
+
+    /**
+     * If true independent branches of the pipeline are processed at the same time. See #process.
+     */
+    private boolean parallel = true;
     
     public CvPipeline() {
         
@@ -163,9 +200,62 @@ public class CvPipeline {
      * @return
      */
     public Mat getWorkingImage() {
+        Branch branch = currentBranch.get();
+        if (branch != null) {
+            return branch.workingImage;
+        }
         return workingImage;
     }
 
+    /**
+     * Set whether the Result of every stage keeps a copy of the image as it was after that stage.
+     * This is the default, and is needed to show the stages in the pipeline editor.
+     * 
+     * When false, only the stages whose images are read by other stages (see
+     * CvStage#getImageStageNames) and the stages named with #setRetainedImageStageNames keep an
+     * image. The Results of other stages still have their model and processing time but a null
+     * image. This saves a full copy of the frame for most stages, so callers that only need the
+     * models and the final working image should turn it off.
+     * 
+     * This setting is not serialized.
+     * 
+     * @param retainAllImages
+     */
+    public void setRetainAllImages(boolean retainAllImages) {
+        this.retainAllImages = retainAllImages;
+    }
+
+    public boolean isRetainAllImages() {
+        return retainAllImages;
+    }
+
+    /**
+     * Set the names of stages whose images should be kept even when #isRetainAllImages is false.
+     * 
+     * @param names
+     */
+    public void setRetainedImageStageNames(String... names) {
+        retainedImageStageNames = new HashSet<>(Arrays.asList(names));
+    }
+
+    public Set<String> getRetainedImageStageNames() {
+        return Collections.unmodifiableSet(retainedImageStageNames);
+    }
+
+    /**
+     * Set whether independent branches of the pipeline may be processed at the same time, see
+     * #process. This is the default. This setting is not serialized.
+     * 
+     * @param parallel
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    public boolean isParallel() {
+        return parallel;
+    }
+
     public void setCamera(Camera camera) {
         this.camera = camera;
     }
@@ -174,9 +264,150 @@ public class CvPipeline {
         return camera;
     }
 
+    /**
+     * Process the stages and store their results.
+     * 
+     * The stages normally run one after another in order. If the pipeline has stages that start
+     * over with a new working image (see CvStage#replacesWorkingImage), each run of stages from
+     * one of those to the next is a branch that only depends on the ones before it through the
+     * stages it references (see CvStage#getReferencedStageNames). When at least one stage declares
+     * such a reference, and all references are to earlier stages, the branches are run at the
+     * same time on a shared pool of threads, and a stage that references a stage in another branch
+     * waits for that stage to finish first. A pipeline that reads a template image and then
+     * captures and prepares a camera image, for instance, prepares both at once. The results are
+     * the same as running the stages in order.
+     */
     public void process() {
         release();
+        Set<String> retained = getImageStageNamesToRetain();
+        List<Branch> branches = parallel ? planBranches(retained) : null;
+        if (branches == null) {
+            Branch branch = new Branch(retained, null);
+            branch.stages.addAll(stages);
+            branch.run();
+            workingImage = branch.workingImage;
+            return;
+        }
+
+        // Pool threads run every branch but the last, which is the one that leaves the final
+        // working image, so it runs here. A branch only ever waits for earlier branches, and
+        // those were submitted before it, so a branch never waits for one that is still queued.
+        List<Future<?>> futures = new ArrayList<>();
+        for (Branch branch : branches.subList(0, branches.size() - 1)) {
+            futures.add(executor.submit(branch));
+        }
+        Branch last = branches.get(branches.size() - 1);
+        last.run();
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            catch (ExecutionException e) {
+                logger.error("Pipeline branch failed", e.getCause());
+            }
+        }
+        for (Branch branch : branches) {
+            if (branch != last && branch.workingImage != null) {
+                branch.workingImage.release();
+            }
+        }
+        workingImage = last.workingImage;
+    }
+
+    /**
+     * Split the stages into branches, or return null if they should run in order.
+     */
+    private List<Branch> planBranches(Set<String> retained) {
+        Map<String, CvStage> earlier = new HashMap<>();
+        Map<CvStage, CountDownLatch> latches = new HashMap<>();
+        List<Branch> branches = new ArrayList<>();
+        boolean references = false;
+        Branch branch = null;
         for (CvStage stage : stages) {
+            for (String name : stage.getReferencedStageNames()) {
+                // A stage that reads a later stage, or one that doesn't exist, gets no result
+                // when the stages run in order, so keep it that way.
+                if (!earlier.containsKey(name)) {
+                    return null;
+                }
+                references = true;
+            }
+            if (branch == null || (stage.isEnabled() && stage.replacesWorkingImage(this))) {
+                branch = new Branch(retained, latches);
+                branches.add(branch);
+            }
+            branch.stages.add(stage);
+            earlier.putIfAbsent(stage.getName(), stage);
+            latches.put(stage, new CountDownLatch(1));
+        }
+        if (!references || branches.size() < 2) {
+            return null;
+        }
+        return branches;
+    }
+
+    /**
+     * A run of stages that share a working image.
+     */
+    private class Branch implements Runnable {
+        final List<CvStage> stages = new ArrayList<>();
+        final Set<String> retained;
+        /**
+         * Counted down as each stage of the pipeline finishes, or null if the branch is the whole
+         * pipeline.
+         */
+        final Map<CvStage, CountDownLatch> latches;
+        Mat workingImage;
+
+        Branch(Set<String> retained, Map<CvStage, CountDownLatch> latches) {
+            this.retained = retained;
+            this.latches = latches;
+        }
+
+        @Override
+        public void run() {
+            currentBranch.set(this);
+            try {
+                for (CvStage stage : stages) {
+                    if (latches != null) {
+                        if (!awaitReferences(stage)) {
+                            return;
+                        }
+                    }
+                    process(stage);
+                    if (latches != null) {
+                        latches.get(stage).countDown();
+                    }
+                }
+            }
+            finally {
+                currentBranch.remove();
+                // Don't leave other branches waiting if this one stopped early.
+                if (latches != null) {
+                    for (CvStage stage : stages) {
+                        latches.get(stage).countDown();
+                    }
+                }
+            }
+        }
+
+        private boolean awaitReferences(CvStage stage) {
+            for (String name : stage.getReferencedStageNames()) {
+                try {
+                    latches.get(getStage(name)).await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void process(CvStage stage) {
             // Process and time the stage and get the result.
             long processingTimeNs = System.nanoTime();
             Result result = null;
@@ -184,7 +415,7 @@ public class CvPipeline {
                 if (!stage.isEnabled()) {
                     throw new Exception("Stage not enabled.");
                 }
-                result = stage.process(this);
+                result = stage.process(CvPipeline.this);
             }
             catch (Exception e) {
                 result = new Result(null, e);
@@ -198,10 +429,12 @@ public class CvPipeline {
                 model = result.model;
             }
 
+            boolean retain = retained == null || retained.contains(stage.getName());
+
             // If the result image is null and there is a working image, replace the result image
             // replace the result image with a clone of the working image.
             if (image == null) {
-                if (workingImage != null) {
+                if (workingImage != null && retain) {
                     image = workingImage.clone();
                 }
             }
@@ -214,13 +447,27 @@ public class CvPipeline {
                     workingImage.release();
                 }
                 workingImage = image;
-                image = image.clone();
+                image = retain ? image.clone() : null;
             }
 
             results.put(stage, new Result(image, model, processingTimeNs));
         }
     }
 
+    /**
+     * Returns the names of the stages whose images must be kept, or null if all of them must be.
+     */
+    private Set<String> getImageStageNamesToRetain() {
+        if (retainAllImages) {
+            return null;
+        }
+        Set<String> names = new HashSet<>(retainedImageStageNames);
+        for (CvStage stage : stages) {
+            names.addAll(stage.getImageStageNames());
+        }
+        return names;
+    }
+
     /**
      * Release any temporary resources associated with the processing of the pipeline. Should be
      * called when the pipeline is no longer needed. This is primarily to release retained native
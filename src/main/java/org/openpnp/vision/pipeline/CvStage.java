@@ -7,6 +7,10 @@ import java.beans.EventSetDescriptor;
 import java.beans.Introspector;
 import java.beans.MethodDescriptor;
 import java.beans.PropertyDescriptor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import org.opencv.core.Mat;
 import org.simpleframework.xml.Attribute;
@@ -40,6 +44,41 @@ public abstract class CvStage {
      */
     public abstract Result process(CvPipeline pipeline) throws Exception;
 
+    /**
+     * Names of the stages whose result images this stage reads through CvPipeline#getResult. The
+     * pipeline keeps the images of these stages when it is not retaining all images, see
+     * CvPipeline#setRetainAllImages. Stages that only read models don't need to list them.
+     * 
+     * @return
+     */
+    public List<String> getImageStageNames() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Names of all the stages whose results this stage reads through CvPipeline#getResult, for
+     * their images or their models. The pipeline uses these to work out which stages can run at
+     * the same time, so a stage that reads another stage's result must list it here. The default
+     * is the names from #getImageStageNames.
+     * 
+     * @return
+     */
+    public List<String> getReferencedStageNames() {
+        return getImageStageNames();
+    }
+
+    /**
+     * Returns true if this stage, with its current settings, will set a new working image without
+     * reading the one left by the stages before it, as ImageCapture does. The pipeline may then
+     * run this stage and the ones after it at the same time as the ones before it.
+     * 
+     * @param pipeline
+     * @return
+     */
+    public boolean replacesWorkingImage(CvPipeline pipeline) {
+        return false;
+    }
+
     public String getName() {
         return name;
     }
@@ -124,11 +163,30 @@ public abstract class CvStage {
 
         @Override
         public PropertyDescriptor[] getPropertyDescriptors() {
-            PropertyDescriptor[] pds = beanInfo.getPropertyDescriptors();
-            for (PropertyDescriptor pd : pds) {
+            List<PropertyDescriptor> pds = new ArrayList<>();
+            for (PropertyDescriptor pd : beanInfo.getPropertyDescriptors()) {
+                // Overrides of CvStage's own getters, such as getImageStageNames, are not
+                // settings of the stage.
+                if (isCvStageMethod(pd.getReadMethod())) {
+                    continue;
+                }
                 pd.setShortDescription(CvStage.this.getDescription(pd.getName()));
+                pds.add(pd);
+            }
+            return pds.toArray(new PropertyDescriptor[pds.size()]);
+        }
+
+        private boolean isCvStageMethod(Method method) {
+            if (method == null) {
+                return false;
+            }
+            try {
+                CvStage.class.getMethod(method.getName(), method.getParameterTypes());
+                return true;
+            }
+            catch (NoSuchMethodException e) {
+                return false;
             }
-            return pds;
         }
 
         @Override
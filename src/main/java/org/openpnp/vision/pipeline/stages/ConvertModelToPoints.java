@@ -1,6 +1,7 @@
 package org.openpnp.vision.pipeline.stages;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.opencv.core.Point;
@@ -27,6 +28,14 @@ public class ConvertModelToPoints extends CvStage {
         this.modelStageName = modelStageName;
     }
 
+    @Override
+    public List<String> getReferencedStageNames() {
+        if (modelStageName == null) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(modelStageName);
+    }
+
     @Override
     public Result process(CvPipeline pipeline) throws Exception {
         if (modelStageName == null) {
@@ -1,6 +1,7 @@
 package org.openpnp.vision.pipeline.stages;
 
 import java.awt.Color;
+import java.util.Collections;
 import java.util.List;
 
 import org.opencv.core.Mat;
@@ -42,6 +43,14 @@ public class DrawKeyPoints extends CvStage {
         this.keyPointsStageName = keyPointsStageName;
     }
 
+    @Override
+    public List<String> getReferencedStageNames() {
+        if (keyPointsStageName == null) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(keyPointsStageName);
+    }
+
     @Override
     public Result process(CvPipeline pipeline) throws Exception {
         if (keyPointsStageName == null) {
@@ -1,6 +1,7 @@
 package org.openpnp.vision.pipeline.stages;
 
 import java.awt.Color;
+import java.util.Collections;
 import java.util.List;
 
 import org.opencv.core.Mat;
@@ -52,6 +53,14 @@ public class DrawRotatedRects extends CvStage {
         this.thickness = thickness;
     }
 
+    @Override
+    public List<String> getReferencedStageNames() {
+        if (rotatedRectsStageName == null) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(rotatedRectsStageName);
+    }
+
     @Override
     public Result process(CvPipeline pipeline) throws Exception {
         if (rotatedRectsStageName == null) {
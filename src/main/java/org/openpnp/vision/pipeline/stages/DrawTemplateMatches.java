@@ -1,6 +1,7 @@
 package org.openpnp.vision.pipeline.stages;
 
 import java.awt.Color;
+import java.util.Collections;
 import java.util.List;
 
 import org.opencv.core.Core;
@@ -42,6 +43,14 @@ public class DrawTemplateMatches extends CvStage {
         this.templateMatchesStageName = templateMatchesStageName;
     }
 
+    @Override
+    public List<String> getReferencedStageNames() {
+        if (templateMatchesStageName == null) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(templateMatchesStageName);
+    }
+
     @Override
     public Result process(CvPipeline pipeline) throws Exception {
         if (templateMatchesStageName == null) {
@@ -1,6 +1,7 @@
 package org.openpnp.vision.pipeline.stages;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.opencv.core.MatOfPoint;
@@ -46,6 +47,14 @@ public class FilterContours extends CvStage {
         this.maxArea = maxArea;
     }
 
+    @Override
+    public List<String> getReferencedStageNames() {
+        if (contoursStageName == null) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(contoursStageName);
+    }
+
     @Override
     public Result process(CvPipeline pipeline) throws Exception {
         if (contoursStageName == null) {
@@ -1,9 +1,7 @@
 package org.openpnp.vision.pipeline.stages;
 
-import java.awt.image.BufferedImage;
-
+import org.opencv.core.Mat;
 import org.openpnp.spi.Camera;
-import org.openpnp.util.OpenCvUtils;
 import org.openpnp.vision.pipeline.CvPipeline;
 import org.openpnp.vision.pipeline.CvStage;
 import org.simpleframework.xml.Attribute;
@@ -20,19 +18,24 @@ public class ImageCapture extends CvStage {
         this.settleFirst = settleFirst;
     }
 
+    @Override
+    public boolean replacesWorkingImage(CvPipeline pipeline) {
+        return pipeline.getCamera() != null;
+    }
+
     @Override
     public Result process(CvPipeline pipeline) throws Exception {
         Camera camera = pipeline.getCamera();
         if (camera == null) {
             throw new Exception("No Camera set on pipeline.");
         }
-        BufferedImage image;
+        Mat image;
         if (settleFirst) {
-            image = camera.settleAndCapture();
+            image = camera.settleAndCaptureMat();
         }
         else {
-            image = camera.capture();
+            image = camera.captureMat();
         }
-        return new Result(OpenCvUtils.toMat(image));
+        return new Result(image);
     }
 }
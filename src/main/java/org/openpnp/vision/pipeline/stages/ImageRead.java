@@ -22,6 +22,11 @@ public class ImageRead extends CvStage {
         this.file = file;
     }
 
+    @Override
+    public boolean replacesWorkingImage(CvPipeline pipeline) {
+        return file.exists();
+    }
+
     @Override
     public Result process(CvPipeline pipeline) throws Exception {
         if (!file.exists()) {
@@ -66,6 +66,14 @@ public class MatchTemplate extends CvStage {
         this.corr = corr;
     }
 
+    @Override
+    public List<String> getImageStageNames() {
+        if (templateStageName == null) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(templateStageName);
+    }
+
     @Override
     public Result process(CvPipeline pipeline) throws Exception {
         if (templateStageName == null) {
@@ -1,6 +1,8 @@
 package org.openpnp.vision.pipeline.stages;
 
 import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
 
 import org.openpnp.vision.pipeline.CvPipeline;
 import org.openpnp.vision.pipeline.CvStage;
@@ -35,6 +37,14 @@ public class ReadModelProperty extends CvStage {
         this.propertyName = propertyName;
     }
 
+    @Override
+    public List<String> getReferencedStageNames() {
+        if (modelStageName == null) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(modelStageName);
+    }
+
     @Override
     public Result process(CvPipeline pipeline) throws Exception {
         if (modelStageName == null) {
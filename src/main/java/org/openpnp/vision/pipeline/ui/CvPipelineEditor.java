@@ -98,6 +98,8 @@ public class CvPipelineEditor extends JPanel {
 
     public CvPipelineEditor(CvPipeline pipeline) {
         this.pipeline = pipeline;
+        // The results panel shows the image of every stage.
+        pipeline.setRetainAllImages(true);
 
         setLayout(new BorderLayout(0, 0));
 
@@ -0,0 +1,199 @@
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.RotatedRect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.openpnp.vision.CameraTransform;
+
+public class CameraTransformTest {
+    static {
+        nu.pattern.OpenCV.loadShared();
+        System.loadLibrary(org.opencv.core.Core.NATIVE_LIBRARY_NAME);
+    }
+
+    /**
+     * The fused transform must give the same size image and close to the same pixels as applying
+     * each step in turn, the way ReferenceCamera used to.
+     */
+    @Test
+    public void testMatchesSteps() throws Exception {
+        Mat image = testImage(640, 480);
+        Mat cameraMatrix = new Mat(3, 3, CvType.CV_64FC1);
+        cameraMatrix.put(0, 0, 500, 0, 200, 0, 500, 150, 0, 0, 1);
+        Mat distortionCoefficients = new MatOfDouble(-0.2, 0.05, 0, 0, 0);
+        Object[][] settings = new Object[][] {
+                {0, 0, false, 0D, 0, 0, false, false},
+                {400, 300, false, 0D, 0, 0, false, false},
+                {0, 0, false, 30D, 0, 0, false, false},
+                {0, 0, false, 0D, 12, -7, false, false},
+                {0, 0, false, 0D, 0, 0, true, false},
+                {0, 0, false, 0D, 0, 0, false, true},
+                {0, 0, false, 0D, 0, 0, true, true},
+                {400, 300, true, 0D, 0, 0, false, false},
+                {400, 300, true, -90D, 5, 3, true, false},};
+        for (Object[] s : settings) {
+            int cropWidth = (Integer) s[0];
+            int cropHeight = (Integer) s[1];
+            boolean undistort = (Boolean) s[2];
+            double rotation = (Double) s[3];
+            int offsetX = (Integer) s[4];
+            int offsetY = (Integer) s[5];
+            boolean flipX = (Boolean) s[6];
+            boolean flipY = (Boolean) s[7];
+            CameraTransform transform = new CameraTransform(cropWidth, cropHeight,
+                    undistort ? cameraMatrix : null, undistort ? distortionCoefficients : null,
+                    rotation, offsetX, offsetY, flipX, flipY);
+            Mat fused = transform.apply(image);
+            Mat[] maps = undistort ? undistortionMaps(cameraMatrix, distortionCoefficients,
+                    new Size(cropWidth, cropHeight)) : null;
+            Mat steps = steps(image.clone(), cropWidth, cropHeight, maps, rotation, offsetX,
+                    offsetY, flipX, flipY);
+            Assert.assertEquals(steps.size(), fused.size());
+            Mat diff = new Mat();
+            Core.absdiff(steps, fused, diff);
+            // Allow for the single interpolation and the fixed point map, and for the border
+            // pixels which each approach treats a little differently.
+            double mean = Core.mean(diff).val[0];
+            Assert.assertTrue(mean + " " + Arrays.toString(s), mean < 4);
+            diff.release();
+            fused.release();
+            steps.release();
+            transform.release();
+        }
+        image.release();
+    }
+
+    @Test
+    public void testMatches() throws Exception {
+        Mat cameraMatrix = Mat.eye(3, 3, CvType.CV_64FC1);
+        Mat distortionCoefficients = new Mat(5, 1, CvType.CV_64FC1);
+        CameraTransform transform = new CameraTransform(0, 0, cameraMatrix,
+                distortionCoefficients, 1.5, 1, 2, true, false);
+        Assert.assertTrue(transform.matches(0, 0, cameraMatrix, distortionCoefficients, 1.5, 1, 2,
+                true, false));
+        Assert.assertFalse(transform.matches(0, 0, cameraMatrix.clone(), distortionCoefficients,
+                1.5, 1, 2, true, false));
+        Assert.assertFalse(transform.matches(0, 0, null, null, 1.5, 1, 2, true, false));
+        Assert.assertFalse(transform.matches(0, 0, cameraMatrix, distortionCoefficients, 1.5, 1,
+                2, true, true));
+        Assert.assertFalse(transform.isIdentity());
+        Assert.assertTrue(new CameraTransform(0, 0, null, null, 0, 0, 0, false, false)
+                .isIdentity());
+    }
+
+    /**
+     * Not a real benchmark, but shows the frames per second each approach manages at 1080p with
+     * every step turned on.
+     */
+    @Test
+    public void testFramesPerSecond() throws Exception {
+        Mat image = testImage(1920, 1080);
+        Mat cameraMatrix = new Mat(3, 3, CvType.CV_64FC1);
+        cameraMatrix.put(0, 0, 1500, 0, 800, 0, 1500, 450, 0, 0, 1);
+        Mat distortionCoefficients = new MatOfDouble(-0.2, 0.05, 0, 0, 0);
+        CameraTransform transform = new CameraTransform(1600, 900, cameraMatrix,
+                distortionCoefficients, 1.5, 4, -3, true, false);
+        // ReferenceCamera kept its undistortion maps between frames, so don't count them here.
+        Mat[] maps = undistortionMaps(cameraMatrix, distortionCoefficients, new Size(1600, 900));
+        int frames = 50;
+        for (int i = 0; i < 5; i++) {
+            steps(image.clone(), 1600, 900, maps, 1.5, 4, -3, true, false).release();
+            transform.apply(image).release();
+        }
+        long t = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            steps(image.clone(), 1600, 900, maps, 1.5, 4, -3, true, false).release();
+        }
+        double stepsFps = frames / ((System.nanoTime() - t) / 1e9);
+        t = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            transform.apply(image).release();
+        }
+        double fusedFps = frames / ((System.nanoTime() - t) / 1e9);
+        System.out.println(String.format("1080p transform: steps %.1f fps, fused %.1f fps",
+                stepsFps, fusedFps));
+        transform.release();
+        image.release();
+    }
+
+    private static Mat testImage(int width, int height) {
+        Mat image = new Mat(height, width, CvType.CV_8UC3);
+        Core.randu(image, 0, 256);
+        // Smooth it so that interpolation differences stay small.
+        Imgproc.GaussianBlur(image, image, new Size(15, 15), 5);
+        return image;
+    }
+
+    private static Mat[] undistortionMaps(Mat cameraMatrix, Mat distortionCoefficients,
+            Size size) {
+        Mat[] maps = new Mat[] {new Mat(), new Mat()};
+        Mat rectification = Mat.eye(3, 3, CvType.CV_32F);
+        Imgproc.initUndistortRectifyMap(cameraMatrix, distortionCoefficients, rectification,
+                cameraMatrix, size, CvType.CV_32FC1, maps[0], maps[1]);
+        rectification.release();
+        return maps;
+    }
+
+    /**
+     * The crop, undistort, rotate, offset and flip steps as ReferenceCamera used to apply them.
+     */
+    private static Mat steps(Mat mat, int cropWidth, int cropHeight, Mat[] undistortionMaps,
+            double rotation, int offsetX, int offsetY, boolean flipX, boolean flipY) {
+        if (cropWidth != 0 || cropHeight != 0) {
+            Rect roi = new Rect((int) ((mat.size().width / 2) - (cropWidth / 2)),
+                    (int) ((mat.size().height / 2) - (cropHeight / 2)), cropWidth, cropHeight);
+            Mat tmp = new Mat(mat, roi);
+            tmp.copyTo(mat);
+            tmp.release();
+        }
+
+        if (undistortionMaps != null) {
+            Mat dst = mat.clone();
+            Imgproc.remap(mat, dst, undistortionMaps[0], undistortionMaps[1],
+                    Imgproc.INTER_LINEAR);
+            mat.release();
+            mat = dst;
+        }
+
+        if (rotation != 0D) {
+            Point center = new Point(mat.width() / 2D, mat.height() / 2D);
+            Mat mapMatrix = Imgproc.getRotationMatrix2D(center, rotation, 1.0);
+            Rect bbox = new RotatedRect(center, mat.size(), rotation).boundingRect();
+            double[] cx = mapMatrix.get(0, 2);
+            double[] cy = mapMatrix.get(1, 2);
+            cx[0] += bbox.width / 2D - center.x;
+            cy[0] += bbox.height / 2D - center.y;
+            mapMatrix.put(0, 2, cx);
+            mapMatrix.put(1, 2, cy);
+            Mat dst = new Mat(bbox.width, bbox.height, mat.type());
+            Imgproc.warpAffine(mat, dst, mapMatrix, bbox.size(), Imgproc.INTER_LINEAR);
+            mat.release();
+            mapMatrix.release();
+            mat = dst;
+        }
+
+        if (offsetX != 0 || offsetY != 0) {
+            Mat mapMatrix = new Mat(2, 3, CvType.CV_32F);
+            mapMatrix.put(0, 0, 1, 0, offsetX);
+            mapMatrix.put(1, 0, 0, 1, offsetY);
+            Mat dst = mat.clone();
+            Imgproc.warpAffine(mat, dst, mapMatrix, mat.size(), Imgproc.INTER_LINEAR);
+            mat.release();
+            mapMatrix.release();
+            mat = dst;
+        }
+
+        if (flipX || flipY) {
+            Core.flip(mat, mat, flipX && flipY ? -1 : (flipX ? 0 : 1));
+        }
+        return mat;
+    }
+}
@@ -0,0 +1,88 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openpnp.spi.Head;
+import org.openpnp.spi.Machine;
+import org.openpnp.spi.MachineListener;
+import org.openpnp.util.CoalescingMachineListener;
+
+public class CoalescingMachineListenerTest {
+    /**
+     * A flood of head activity is delivered at no more than the given rate, and the last of it is
+     * always delivered. Time is simulated, so the counts are exact.
+     */
+    @Test
+    public void testRateLimit() throws Exception {
+        AtomicInteger deliveries = new AtomicInteger();
+        FakeTime time = new FakeTime();
+        MachineListener listener = new CoalescingMachineListener(new MachineListener.Adapter() {
+            @Override
+            public void machineHeadActivity(Machine machine, Head head) {
+                deliveries.incrementAndGet();
+            }
+        }, 20, time::now, time::schedule);
+
+        // The first one is delivered right away.
+        listener.machineHeadActivity(null, null);
+        time.runDue();
+        Assert.assertEquals(1, deliveries.get());
+
+        // Activity every millisecond for half a second is delivered every 50 milliseconds.
+        for (int i = 0; i < 500; i++) {
+            time.advanceMillis(1);
+            listener.machineHeadActivity(null, null);
+            time.runDue();
+        }
+        Assert.assertEquals(11, deliveries.get());
+
+        // Activity soon after a delivery waits for the rest of the period, but is delivered.
+        time.advanceMillis(10);
+        listener.machineHeadActivity(null, null);
+        time.runDue();
+        Assert.assertEquals(11, deliveries.get());
+        time.advanceMillis(39);
+        time.runDue();
+        Assert.assertEquals(11, deliveries.get());
+        time.advanceMillis(1);
+        time.runDue();
+        Assert.assertEquals(12, deliveries.get());
+    }
+
+    /**
+     * A clock and scheduler that only move when told to.
+     */
+    private static class FakeTime {
+        private long now;
+        private final List<long[]> dueTimes = new ArrayList<>();
+        private final List<Runnable> tasks = new ArrayList<>();
+
+        long now() {
+            return now;
+        }
+
+        void advanceMillis(long millis) {
+            now += TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+
+        void schedule(Runnable task, long delayNanos) {
+            dueTimes.add(new long[] {now + delayNanos});
+            tasks.add(task);
+        }
+
+        void runDue() {
+            for (int i = 0; i < tasks.size();) {
+                if (dueTimes.get(i)[0] <= now) {
+                    dueTimes.remove(i);
+                    tasks.remove(i).run();
+                }
+                else {
+                    i++;
+                }
+            }
+        }
+    }
+}
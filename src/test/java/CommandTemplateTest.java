@@ -0,0 +1,128 @@
+import java.util.Locale;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openpnp.machine.reference.driver.CommandTemplate;
+
+public class CommandTemplateTest {
+    private static final String moveToCommand =
+            "G0 {X:X%.4f} {Y:Y%.4f} {Z:Z%.4f} {Rotation:E%.4f} F{FeedRate:%.0f} ; {Name} {Id}";
+
+    /**
+     * Rendering a template must give the same result as substituting each variable in turn, the
+     * way GcodeDriver used to.
+     */
+    @Test
+    public void testMatchesSubstituteVariable() throws Exception {
+        CommandTemplate template = new CommandTemplate(moveToCommand);
+        Random random = new Random(1);
+        for (int i = 0; i < 10000; i++) {
+            Object[] variables = randomMove(random);
+            Assert.assertEquals(substituteVariables(moveToCommand, variables),
+                    template.render(variables));
+        }
+    }
+
+    @Test
+    public void testEdgeCases() throws Exception {
+        CommandTemplate template = new CommandTemplate(moveToCommand);
+        double[] values = new double[] {0, -0.0, -0.00001, 0.00005, -0.00005, 1.23455, 2.5, -2.5,
+                1e7, 1.5e-4, 123456789.123456789, Double.NaN, Double.POSITIVE_INFINITY};
+        for (double value : values) {
+            Object[] variables = new Object[] {"X", value, "Y", null, "FeedRate", value};
+            Assert.assertEquals(substituteVariables(moveToCommand, variables),
+                    template.render(variables));
+        }
+        // Variables that are not given stay in the command and repeated variables are all
+        // replaced.
+        template = new CommandTemplate("M{Index} S{IntegerValue} {Index:%03d} {Unknown}");
+        Assert.assertEquals("M7 S{IntegerValue} 007 {Unknown}", template.render("Index", 7));
+        Assert.assertNull(new CommandTemplate(null).render("X", 1.0));
+        Assert.assertEquals("M400", new CommandTemplate("M400").render());
+    }
+
+    /**
+     * Not a real benchmark, but shows the cost of formatting a move with each approach.
+     */
+    @Test
+    public void testRenderCost() throws Exception {
+        CommandTemplate template = new CommandTemplate(moveToCommand);
+        Random random = new Random(2);
+        Object[][] moves = new Object[1000][];
+        for (int i = 0; i < moves.length; i++) {
+            moves[i] = randomMove(random);
+        }
+        int count = 0;
+        for (int warmup = 0; warmup < 20; warmup++) {
+            for (Object[] move : moves) {
+                count += substituteVariables(moveToCommand, move).length();
+                count += template.render(move).length();
+            }
+        }
+        long t = System.nanoTime();
+        for (int i = 0; i < 20; i++) {
+            for (Object[] move : moves) {
+                count += substituteVariables(moveToCommand, move).length();
+            }
+        }
+        long substituteNanos = (System.nanoTime() - t) / (20 * moves.length);
+        t = System.nanoTime();
+        for (int i = 0; i < 20; i++) {
+            for (Object[] move : moves) {
+                count += template.render(move).length();
+            }
+        }
+        long templateNanos = (System.nanoTime() - t) / (20 * moves.length);
+        System.out.println(String.format(
+                "Per move formatting: substituteVariable %d ns, CommandTemplate %d ns (%d)",
+                substituteNanos, templateNanos, count));
+    }
+
+    private static Object[] randomMove(Random random) {
+        return new Object[] {"Id", "N1", "Name", "Nozzle " + random.nextInt(4),
+                "X", random.nextBoolean() ? null : (random.nextDouble() - 0.5) * 1000,
+                "Y", random.nextBoolean() ? null : (random.nextDouble() - 0.5) * 1000,
+                "Z", random.nextBoolean() ? null : -random.nextDouble() * 30,
+                "Rotation", random.nextBoolean() ? null : (random.nextDouble() - 0.5) * 360,
+                "FeedRate", 1000 * random.nextDouble()};
+    }
+
+    private static String substituteVariables(String command, Object[] variables) {
+        for (int i = 0; i < variables.length; i += 2) {
+            command = substituteVariable(command, (String) variables[i], variables[i + 1]);
+        }
+        return command;
+    }
+
+    /**
+     * The variable substitution GcodeDriver used before CommandTemplate, kept here as the
+     * reference for the expected output.
+     */
+    private static String substituteVariable(String command, String name, Object value) {
+        if (command == null) {
+            return command;
+        }
+        StringBuffer sb = new StringBuffer();
+        Matcher matcher = Pattern.compile("\\{(\\w+)(?::(.+?))?\\}").matcher(command);
+        while (matcher.find()) {
+            String n = matcher.group(1);
+            if (!n.equals(name)) {
+                continue;
+            }
+            String format = matcher.group(2);
+            if (format == null) {
+                format = "%s";
+            }
+            String v = "";
+            if (value != null) {
+                v = String.format((Locale) null, format, value);
+            }
+            matcher.appendReplacement(sb, v);
+        }
+        matcher.appendTail(sb);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,185 @@
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.openpnp.vision.pipeline.CvPipeline;
+import org.openpnp.vision.pipeline.CvStage;
+import org.openpnp.vision.pipeline.CvStage.Result;
+import org.openpnp.vision.pipeline.CvStage.Result.TemplateMatch;
+import org.openpnp.vision.pipeline.stages.BlurGaussian;
+import org.openpnp.vision.pipeline.stages.ImageRecall;
+import org.openpnp.vision.pipeline.stages.MatchTemplate;
+
+public class CvPipelineTest {
+    static {
+        nu.pattern.OpenCV.loadShared();
+        System.loadLibrary(org.opencv.core.Core.NATIVE_LIBRARY_NAME);
+    }
+
+    /**
+     * With retainAllImages off only the recalled stage and the requested stage keep an image, and
+     * the pipeline still produces the same working image. Also prints how many bytes of images
+     * each mode keeps and how long it takes on a 5 MP frame.
+     */
+    @Test
+    public void testRetainImages() throws Exception {
+        Mat frame = new Mat(1944, 2592, CvType.CV_8UC3);
+        Core.randu(frame, 0, 256);
+        CvPipeline pipeline = createPipeline(frame);
+
+        for (int i = 0; i < 3; i++) {
+            process(pipeline, true);
+            process(pipeline, false);
+        }
+
+        long allNs = process(pipeline, true);
+        long allBytes = imageBytes(pipeline);
+        for (CvStage stage : pipeline.getStages()) {
+            Assert.assertNotNull(stage.getName(), pipeline.getResult(stage).image);
+        }
+        Mat expected = pipeline.getWorkingImage().clone();
+
+        pipeline.setRetainedImageStageNames("result");
+        long someNs = process(pipeline, false);
+        long someBytes = imageBytes(pipeline);
+        for (CvStage stage : pipeline.getStages()) {
+            Result result = pipeline.getResult(stage);
+            Assert.assertNotNull(stage.getName(), result);
+            if (stage.getName().equals("source") || stage.getName().equals("result")) {
+                Assert.assertNotNull(stage.getName(), result.image);
+            }
+            else {
+                Assert.assertNull(stage.getName(), result.image);
+            }
+        }
+        Mat diff = new Mat();
+        Core.absdiff(expected, pipeline.getWorkingImage(), diff);
+        Assert.assertEquals(0, Core.countNonZero(diff.reshape(1)));
+
+        System.out.println(String.format(
+                "5 MP pipeline of %d stages: all images %d MB in %.1f ms, "
+                        + "retained images %d MB in %.1f ms",
+                pipeline.getStages().size(), allBytes >> 20, allNs / 1e6, someBytes >> 20,
+                someNs / 1e6));
+
+        diff.release();
+        expected.release();
+        pipeline.release();
+        frame.release();
+    }
+
+    /**
+     * A template branch and an image branch run on different threads, and the match that joins
+     * them finds the same thing as when the stages run in order.
+     */
+    @Test
+    public void testParallel() throws Exception {
+        Mat frame = new Mat(480, 640, CvType.CV_8UC3);
+        Core.randu(frame, 0, 256);
+        Mat template = new Mat(frame, new Rect(100, 80, 48, 48)).clone();
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+
+        CvPipeline pipeline = new CvPipeline();
+        pipeline.add("template", new RecordingSource(template, threads));
+        pipeline.add("templateBlur", new BlurGaussian());
+        pipeline.add("image", new RecordingSource(frame, threads));
+        pipeline.add(new BlurGaussian());
+        MatchTemplate match = new MatchTemplate();
+        match.setTemplateStageName("templateBlur");
+        pipeline.add("match", match);
+
+        pipeline.setParallel(false);
+        pipeline.process();
+        Assert.assertEquals(1, threads.size());
+        List<TemplateMatch> expected = matches(pipeline);
+        Assert.assertFalse(expected.isEmpty());
+
+        threads.clear();
+        pipeline.setParallel(true);
+        pipeline.process();
+        Assert.assertEquals(2, threads.size());
+        List<TemplateMatch> matches = matches(pipeline);
+        Assert.assertEquals(expected.size(), matches.size());
+        Assert.assertEquals(expected.get(0).x, matches.get(0).x, 0);
+        Assert.assertEquals(expected.get(0).y, matches.get(0).y, 0);
+
+        pipeline.release();
+        template.release();
+        frame.release();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<TemplateMatch> matches(CvPipeline pipeline) {
+        return (List<TemplateMatch>) pipeline.getResult("match").model;
+    }
+
+    /**
+     * Replaces the working image with a copy of the given one and records which thread it ran
+     * on.
+     */
+    private static class RecordingSource extends CvStage {
+        private final Mat image;
+        private final Set<String> threads;
+
+        RecordingSource(Mat image, Set<String> threads) {
+            this.image = image;
+            this.threads = threads;
+        }
+
+        @Override
+        public boolean replacesWorkingImage(CvPipeline pipeline) {
+            return true;
+        }
+
+        @Override
+        public Result process(CvPipeline pipeline) throws Exception {
+            threads.add(Thread.currentThread().getName());
+            return new Result(image.clone());
+        }
+    }
+
+    private static CvPipeline createPipeline(Mat frame) {
+        CvPipeline pipeline = new CvPipeline();
+        pipeline.add("source", new CvStage() {
+            @Override
+            public Result process(CvPipeline pipeline) throws Exception {
+                return new Result(frame.clone());
+            }
+        });
+        for (int i = 0; i < 6; i++) {
+            pipeline.add(new BlurGaussian());
+        }
+        ImageRecall recall = new ImageRecall();
+        recall.setImageStageName("source");
+        pipeline.add(recall);
+        for (int i = 0; i < 6; i++) {
+            pipeline.add(new BlurGaussian());
+        }
+        pipeline.add("result", new BlurGaussian());
+        return pipeline;
+    }
+
+    private static long process(CvPipeline pipeline, boolean retainAllImages) {
+        pipeline.setRetainAllImages(retainAllImages);
+        long t = System.nanoTime();
+        pipeline.process();
+        return System.nanoTime() - t;
+    }
+
+    private static long imageBytes(CvPipeline pipeline) {
+        long bytes = 0;
+        for (CvStage stage : pipeline.getStages()) {
+            Mat image = pipeline.getResult(stage).image;
+            if (image != null) {
+                bytes += image.total() * image.elemSize();
+            }
+        }
+        return bytes;
+    }
+}
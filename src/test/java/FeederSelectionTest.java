@@ -0,0 +1,170 @@
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openpnp.machine.reference.ReferenceNozzle;
+import org.openpnp.machine.reference.ReferencePnpJobProcessor;
+import org.openpnp.machine.reference.ReferencePnpJobProcessor.FeederSelection;
+import org.openpnp.machine.reference.feeder.ReferenceTubeFeeder;
+import org.openpnp.model.Configuration;
+import org.openpnp.model.LengthUnit;
+import org.openpnp.model.Location;
+import org.openpnp.model.Part;
+import org.openpnp.spi.Feeder;
+import org.openpnp.spi.Machine;
+import org.openpnp.spi.Nozzle;
+
+import com.google.common.io.Files;
+
+public class FeederSelectionTest {
+    /**
+     * The index of enabled feeders by part follows feeders being enabled, disabled, moved to
+     * another part, added and removed.
+     */
+    @Test
+    public void testEnabledFeederIndex() throws Exception {
+        Machine machine = initialize();
+        Part part = new Part("FS1");
+        Part otherPart = new Part("FS2");
+        ReferenceTubeFeeder f1 = createFeeder(machine, part, 0);
+        ReferenceTubeFeeder f2 = createFeeder(machine, part, 0);
+        ReferenceTubeFeeder f3 = createFeeder(machine, part, 0);
+        Assert.assertEquals(Arrays.asList(f1, f2, f3), machine.getEnabledFeeders(part));
+        Assert.assertEquals(Collections.emptyList(), machine.getEnabledFeeders(otherPart));
+
+        f2.setEnabled(false);
+        Assert.assertEquals(Arrays.asList(f1, f3), machine.getEnabledFeeders(part));
+
+        f3.setPart(otherPart);
+        Assert.assertEquals(Arrays.asList(f1), machine.getEnabledFeeders(part));
+        Assert.assertEquals(Arrays.asList(f3), machine.getEnabledFeeders(otherPart));
+
+        f2.setEnabled(true);
+        Assert.assertEquals(Arrays.asList(f1, f2), machine.getEnabledFeeders(part));
+
+        machine.removeFeeder(f1);
+        Assert.assertEquals(Arrays.asList(f2), machine.getEnabledFeeders(part));
+
+        ReferenceTubeFeeder f4 = createFeeder(machine, otherPart, 0);
+        Assert.assertEquals(Arrays.asList(f3, f4), machine.getEnabledFeeders(otherPart));
+    }
+
+    @Test
+    public void testFirst() throws Exception {
+        Machine machine = initialize();
+        Part part = new Part("FS1");
+        ReferenceTubeFeeder f1 = createFeeder(machine, part, 0);
+        ReferenceTubeFeeder f2 = createFeeder(machine, part, 10);
+        TestJobProcessor jobProcessor = new TestJobProcessor(machine, FeederSelection.First);
+        Nozzle nozzle = createNozzle(10);
+
+        Assert.assertSame(f1, jobProcessor.selectFeeder(nozzle, part));
+        Assert.assertSame(f1, jobProcessor.selectFeeder(nozzle, part));
+        f1.setEnabled(false);
+        Assert.assertSame(f2, jobProcessor.selectFeeder(nozzle, part));
+    }
+
+    /**
+     * Feeders take turns, and a disabled feeder drops out of the rotation.
+     */
+    @Test
+    public void testRoundRobin() throws Exception {
+        Machine machine = initialize();
+        Part part = new Part("FS1");
+        ReferenceTubeFeeder f1 = createFeeder(machine, part, 0);
+        ReferenceTubeFeeder f2 = createFeeder(machine, part, 10);
+        ReferenceTubeFeeder f3 = createFeeder(machine, part, 20);
+        TestJobProcessor jobProcessor = new TestJobProcessor(machine, FeederSelection.RoundRobin);
+        Nozzle nozzle = createNozzle(0);
+
+        Assert.assertSame(f1, jobProcessor.selectFeeder(nozzle, part));
+        Assert.assertSame(f2, jobProcessor.selectFeeder(nozzle, part));
+        Assert.assertSame(f3, jobProcessor.selectFeeder(nozzle, part));
+        Assert.assertSame(f1, jobProcessor.selectFeeder(nozzle, part));
+
+        f2.setEnabled(false);
+        int f1Count = 0, f3Count = 0;
+        for (int i = 0; i < 4; i++) {
+            Feeder feeder = jobProcessor.selectFeeder(nozzle, part);
+            if (feeder == f1) {
+                f1Count++;
+            }
+            else if (feeder == f3) {
+                f3Count++;
+            }
+            else {
+                Assert.fail("Selected disabled feeder " + feeder);
+            }
+        }
+        Assert.assertEquals(2, f1Count);
+        Assert.assertEquals(2, f3Count);
+    }
+
+    /**
+     * The enabled feeder closest to the nozzle is used.
+     */
+    @Test
+    public void testNearest() throws Exception {
+        Machine machine = initialize();
+        Part part = new Part("FS1");
+        ReferenceTubeFeeder f1 = createFeeder(machine, part, -30);
+        ReferenceTubeFeeder f2 = createFeeder(machine, part, 10);
+        ReferenceTubeFeeder f3 = createFeeder(machine, part, 50);
+        TestJobProcessor jobProcessor = new TestJobProcessor(machine, FeederSelection.Nearest);
+
+        Assert.assertSame(f1, jobProcessor.selectFeeder(createNozzle(-20), part));
+        Assert.assertSame(f2, jobProcessor.selectFeeder(createNozzle(12), part));
+        Assert.assertSame(f3, jobProcessor.selectFeeder(createNozzle(45), part));
+
+        f3.setEnabled(false);
+        Assert.assertSame(f2, jobProcessor.selectFeeder(createNozzle(45), part));
+    }
+
+    private static Machine initialize() throws Exception {
+        File workingDirectory = Files.createTempDir();
+        workingDirectory = new File(workingDirectory, ".openpnp");
+        FileUtils.copyURLToFile(ClassLoader.getSystemResource("config/BasicJobTest/machine.xml"),
+                new File(workingDirectory, "machine.xml"));
+        FileUtils.copyURLToFile(ClassLoader.getSystemResource("config/BasicJobTest/packages.xml"),
+                new File(workingDirectory, "packages.xml"));
+        FileUtils.copyURLToFile(ClassLoader.getSystemResource("config/BasicJobTest/parts.xml"),
+                new File(workingDirectory, "parts.xml"));
+        Configuration.initialize(workingDirectory);
+        Configuration.get().load();
+        return Configuration.get().getMachine();
+    }
+
+    private static ReferenceTubeFeeder createFeeder(Machine machine, Part part, double x)
+            throws Exception {
+        ReferenceTubeFeeder feeder = new ReferenceTubeFeeder();
+        feeder.setPart(part);
+        feeder.setEnabled(true);
+        feeder.setLocation(new Location(LengthUnit.Millimeters, x, 0, 0, 0));
+        machine.addFeeder(feeder);
+        return feeder;
+    }
+
+    private static Nozzle createNozzle(double x) {
+        return new ReferenceNozzle() {
+            @Override
+            public Location getLocation() {
+                return new Location(LengthUnit.Millimeters, x, 0, 0, 0);
+            }
+        };
+    }
+
+    static class TestJobProcessor extends ReferencePnpJobProcessor {
+        TestJobProcessor(Machine machine, FeederSelection feederSelection) {
+            this.machine = machine;
+            setFeederSelection(feederSelection);
+        }
+
+        @Override
+        protected Feeder selectFeeder(Nozzle nozzle, Part part) throws Exception {
+            return super.selectFeeder(nozzle, part);
+        }
+    }
+}
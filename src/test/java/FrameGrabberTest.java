@@ -0,0 +1,63 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.openpnp.machine.reference.FrameGrabber;
+import org.openpnp.machine.reference.FrameGrabber.Frame;
+import org.openpnp.model.LengthUnit;
+import org.openpnp.model.Location;
+
+public class FrameGrabberTest {
+    static {
+        nu.pattern.OpenCV.loadShared();
+        System.loadLibrary(org.opencv.core.Core.NATIVE_LIBRARY_NAME);
+    }
+
+    /**
+     * The latest frame comes back without waiting for the device, and a frame newer than a given
+     * time is never one that was grabbed before it.
+     */
+    @Test
+    public void testNewerThan() throws Exception {
+        AtomicInteger count = new AtomicInteger();
+        FrameGrabber grabber = new FrameGrabber("test", new FrameGrabber.Source() {
+            @Override
+            public boolean grab(Mat mat) throws Exception {
+                // A 20 fps camera.
+                Thread.sleep(50);
+                mat.create(1, 1, CvType.CV_32SC1);
+                mat.put(0, 0, count.incrementAndGet());
+                return true;
+            }
+
+            @Override
+            public Location getLocation() throws Exception {
+                return new Location(LengthUnit.Millimeters, count.get(), 0, 0, 0);
+            }
+        }, 3);
+        grabber.start();
+
+        Frame first = grabber.getLatestFrame(1000);
+        Assert.assertNotNull(first);
+        first.getMat().release();
+
+        long t = System.nanoTime();
+        Frame latest = grabber.getLatestFrame(1000);
+        Assert.assertTrue((System.nanoTime() - t) / 1000000 < 25);
+        latest.getMat().release();
+
+        t = System.nanoTime();
+        Frame frame = grabber.getFrame(t, 1000);
+        Assert.assertTrue(frame.getTimestamp() - t > 0);
+        int number = (int) frame.getMat().get(0, 0)[0];
+        // The Location was taken as the grab began, before the count was incremented.
+        Assert.assertEquals(number - 1, frame.getLocation().getX(), 0);
+        frame.getMat().release();
+
+        grabber.stop();
+        Assert.assertNull(grabber.getFrame(System.nanoTime(), 200));
+        grabber.release();
+    }
+}
@@ -0,0 +1,56 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openpnp.machine.reference.driver.LineAssembler;
+
+public class LineAssemblerTest {
+    /**
+     * Lines must come out the same no matter how the bytes are split up as they arrive.
+     */
+    @Test
+    public void testChunks() throws Exception {
+        byte[] bytes = "ok\r\nok T:25.0\n\n\rerror: 2\rX:1.0000 Y:-2.5000\n"
+                .getBytes(StandardCharsets.ISO_8859_1);
+        List<String> expected = Arrays.asList("ok", "ok T:25.0", "error: 2", "X:1.0000 Y:-2.5000");
+        Random random = new Random(1);
+        for (int i = 0; i < 100; i++) {
+            List<String> lines = new ArrayList<>();
+            LineAssembler lineAssembler = new LineAssembler(lines::add);
+            int offset = 0;
+            while (offset < bytes.length) {
+                int count = Math.min(bytes.length - offset, 1 + random.nextInt(8));
+                lineAssembler.append(Arrays.copyOfRange(bytes, offset, offset + count));
+                offset += count;
+            }
+            Assert.assertEquals(expected, lines);
+        }
+    }
+
+    @Test
+    public void testLongLine() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        List<String> lines = new ArrayList<>();
+        LineAssembler lineAssembler = new LineAssembler(lines::add);
+        lineAssembler.append((sb + "\n").getBytes(StandardCharsets.ISO_8859_1));
+        Assert.assertEquals(Arrays.asList(sb.toString()), lines);
+    }
+
+    @Test
+    public void testPartialLineWaits() throws Exception {
+        List<String> lines = new ArrayList<>();
+        LineAssembler lineAssembler = new LineAssembler(lines::add);
+        lineAssembler.append("o".getBytes(StandardCharsets.ISO_8859_1));
+        Assert.assertEquals(0, lines.size());
+        lineAssembler.clear();
+        lineAssembler.append("ok\n".getBytes(StandardCharsets.ISO_8859_1));
+        Assert.assertEquals(Arrays.asList("ok"), lines);
+    }
+}
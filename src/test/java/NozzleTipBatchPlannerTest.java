@@ -0,0 +1,296 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openpnp.machine.reference.ReferenceNozzle;
+import org.openpnp.machine.reference.ReferenceNozzleTip;
+import org.openpnp.machine.reference.ReferenceNozzleTipBatchPlanner;
+import org.openpnp.machine.reference.ReferencePnpJobPlanner;
+import org.openpnp.machine.reference.ReferencePnpJobProcessor.JobPlacement;
+import org.openpnp.machine.reference.ReferencePnpJobProcessor.PlannedPlacement;
+import org.openpnp.machine.reference.ReferencePnpJobProcessor.PnpJobPlanner;
+import org.openpnp.model.Board;
+import org.openpnp.model.BoardLocation;
+import org.openpnp.model.Configuration;
+import org.openpnp.model.Length;
+import org.openpnp.model.LengthUnit;
+import org.openpnp.model.Package;
+import org.openpnp.model.Part;
+import org.openpnp.model.Placement;
+import org.openpnp.spi.Nozzle;
+import org.openpnp.spi.NozzleTip;
+
+import com.google.common.io.Files;
+
+public class NozzleTipBatchPlannerTest {
+    /**
+     * Tip A handles P0 - P2 and tip B handles P3 - P5. Tip C handles P0, P1, P3 and P4, so a
+     * greedy schedule starts with it and then still needs both A and B, while A and B alone
+     * handle everything. D and E only keep the groups of placements distinct.
+     */
+    @Test
+    public void testFewerChangesThanGreedy() throws Exception {
+        initialize();
+        List<Package> packages = createPackages(6);
+        ReferenceNozzleTip a = createNozzleTip(packages, 0, 1, 2);
+        ReferenceNozzleTip b = createNozzleTip(packages, 3, 4, 5);
+        ReferenceNozzleTip c = createNozzleTip(packages, 0, 1, 3, 4);
+        ReferenceNozzleTip d = createNozzleTip(packages, 1);
+        ReferenceNozzleTip e = createNozzleTip(packages, 4);
+        List<Nozzle> nozzles = Arrays.asList(new TestNozzle(null, c, a, b, d, e));
+        List<JobPlacement> jobPlacements = createJobPlacements(packages, 0, 1, 2, 3, 4, 5);
+
+        ReferenceNozzleTipBatchPlanner planner =
+                new ReferenceNozzleTipBatchPlanner(nozzles, jobPlacements);
+        Assert.assertEquals(2, planner.getEstimatedNozzleTipChanges());
+        Assert.assertEquals(Arrays.asList(a, b), runJob(planner, nozzles, jobPlacements));
+
+        // Planning cycle by cycle does no better than greedy.
+        nozzles = Arrays.asList(new TestNozzle(null, c, a, b, d, e));
+        Assert.assertEquals(Arrays.asList(c, a, b),
+                runJob(new ReferencePnpJobPlanner(), nozzles, jobPlacements));
+    }
+
+    /**
+     * Tips C and D each handle one of the packages and come first, so planning cycle by cycle
+     * loads both of them. Only A is scheduled, so the batch planner must not use the others.
+     */
+    @Test
+    public void testOnlyScheduledNozzleTipsAreUsed() throws Exception {
+        initialize();
+        List<Package> packages = createPackages(2);
+        ReferenceNozzleTip a = createNozzleTip(packages, 0, 1);
+        ReferenceNozzleTip c = createNozzleTip(packages, 0);
+        ReferenceNozzleTip d = createNozzleTip(packages, 1);
+        List<Nozzle> nozzles = Arrays.asList(new TestNozzle(null, c, d, a));
+        List<JobPlacement> jobPlacements = createJobPlacements(packages, 0, 1, 0, 1);
+
+        ReferenceNozzleTipBatchPlanner planner =
+                new ReferenceNozzleTipBatchPlanner(nozzles, jobPlacements);
+        Assert.assertEquals(1, planner.getEstimatedNozzleTipChanges());
+        Assert.assertEquals(Arrays.asList(a), runJob(planner, nozzles, jobPlacements));
+
+        nozzles = Arrays.asList(new TestNozzle(null, c, d, a));
+        Assert.assertEquals(Arrays.asList(c, d),
+                runJob(new ReferencePnpJobPlanner(), nozzles, jobPlacements));
+    }
+
+    /**
+     * A loaded tip is kept as long as there is work for it, even though the tip it is changed to
+     * later could do that work too.
+     */
+    @Test
+    public void testLoadedNozzleTipIsKept() throws Exception {
+        initialize();
+        List<Package> packages = createPackages(2);
+        ReferenceNozzleTip a = createNozzleTip(packages, 0, 1);
+        ReferenceNozzleTip b = createNozzleTip(packages, 1);
+        List<Nozzle> nozzles = Arrays.asList(new TestNozzle(b, a, b));
+        List<JobPlacement> jobPlacements = createJobPlacements(packages, 0, 1, 0, 1);
+
+        ReferenceNozzleTipBatchPlanner planner =
+                new ReferenceNozzleTipBatchPlanner(nozzles, jobPlacements);
+        Assert.assertEquals(1, planner.getEstimatedNozzleTipChanges());
+        List<JobPlacement> pending = new ArrayList<>(jobPlacements);
+        for (int i = 0; i < 2; i++) {
+            List<PlannedPlacement> plannedPlacements = planner.plan(nozzles, pending);
+            Assert.assertEquals(1, plannedPlacements.size());
+            Assert.assertSame(b, plannedPlacements.get(0).nozzleTip);
+            pending.remove(plannedPlacements.get(0).jobPlacement);
+        }
+        Assert.assertEquals(Arrays.asList(jobPlacements.get(0), jobPlacements.get(2)), pending);
+        Assert.assertEquals(Arrays.asList(a), runJob(planner, nozzles, pending));
+    }
+
+    /**
+     * When nothing can be placed with the current schedule, such as when the placements change
+     * under the planner, it schedules again from the current state.
+     */
+    @Test
+    public void testReschedule() throws Exception {
+        initialize();
+        List<Package> packages = createPackages(2);
+        ReferenceNozzleTip a = createNozzleTip(packages, 0);
+        ReferenceNozzleTip b = createNozzleTip(packages, 1);
+        List<Nozzle> nozzles = Arrays.asList(new TestNozzle(a, a, b));
+        List<JobPlacement> jobPlacements = createJobPlacements(packages, 0, 0);
+
+        ReferenceNozzleTipBatchPlanner planner =
+                new ReferenceNozzleTipBatchPlanner(nozzles, jobPlacements);
+        Assert.assertEquals(0, planner.getEstimatedNozzleTipChanges());
+        Assert.assertEquals(Arrays.asList(), runJob(planner, nozzles, jobPlacements));
+
+        // B was never scheduled.
+        jobPlacements = createJobPlacements(packages, 1);
+        List<PlannedPlacement> plannedPlacements = planner.plan(nozzles, jobPlacements);
+        Assert.assertEquals(1, plannedPlacements.size());
+        Assert.assertSame(b, plannedPlacements.get(0).nozzleTip);
+        Assert.assertEquals(1, planner.getEstimatedNozzleTipChanges());
+    }
+
+    /**
+     * Generates a bunch of small random jobs and makes sure the schedule has the fewest possible
+     * changes, found by trying every set of tips, and that running the job loads each tip at most
+     * once and never more than the estimate.
+     */
+    @Test
+    public void testRandomJobs() throws Exception {
+        initialize();
+        Random random = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            List<Package> packages = createPackages(1 + random.nextInt(6));
+            List<Nozzle> nozzles = createNozzles(random, packages, 1 + random.nextInt(3));
+            int[] packageIndexes = new int[1 + random.nextInt(12)];
+            for (int j = 0; j < packageIndexes.length; j++) {
+                packageIndexes[j] = random.nextInt(packages.size());
+            }
+            List<JobPlacement> jobPlacements = createJobPlacements(packages, packageIndexes);
+
+            ReferenceNozzleTipBatchPlanner planner =
+                    new ReferenceNozzleTipBatchPlanner(nozzles, jobPlacements);
+            Assert.assertEquals(getFewestChanges(nozzles, jobPlacements),
+                    planner.getEstimatedNozzleTipChanges());
+            List<NozzleTip> loaded = runJob(planner, nozzles, jobPlacements);
+            Assert.assertEquals(loaded.size(), new HashSet<>(loaded).size());
+            Assert.assertTrue(loaded.size() <= planner.getEstimatedNozzleTipChanges());
+        }
+    }
+
+    private static void initialize() throws Exception {
+        File workingDirectory = Files.createTempDir();
+        workingDirectory = new File(workingDirectory, ".openpnp");
+        Configuration.initialize(workingDirectory);
+    }
+
+    /**
+     * Runs the job to completion, loading the tips the planner asks for, and returns the tips
+     * that were loaded in order.
+     */
+    private static List<NozzleTip> runJob(PnpJobPlanner planner, List<Nozzle> nozzles,
+            List<JobPlacement> jobPlacements) {
+        List<JobPlacement> pending = new ArrayList<>(jobPlacements);
+        List<NozzleTip> loaded = new ArrayList<>();
+        while (!pending.isEmpty()) {
+            List<PlannedPlacement> plannedPlacements = planner.plan(nozzles, pending);
+            Assert.assertFalse(plannedPlacements.isEmpty());
+            for (PlannedPlacement plannedPlacement : plannedPlacements) {
+                TestNozzle nozzle = (TestNozzle) plannedPlacement.nozzle;
+                NozzleTip nozzleTip = plannedPlacement.nozzleTip;
+                Assert.assertTrue(nozzleTip.canHandle(plannedPlacement.jobPlacement.placement
+                        .getPart()));
+                if (nozzleTip != nozzle.getNozzleTip()) {
+                    nozzle.load(nozzleTip);
+                    loaded.add(nozzleTip);
+                }
+                pending.remove(plannedPlacement.jobPlacement);
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Tries every set of unloaded tips, smallest first, until one handles every placement.
+     */
+    private static int getFewestChanges(List<Nozzle> nozzles, List<JobPlacement> jobPlacements) {
+        List<NozzleTip> loaded = new ArrayList<>();
+        List<NozzleTip> unloaded = new ArrayList<>();
+        for (Nozzle nozzle : nozzles) {
+            for (NozzleTip nozzleTip : nozzle.getNozzleTips()) {
+                (nozzleTip == nozzle.getNozzleTip() ? loaded : unloaded).add(nozzleTip);
+            }
+        }
+        int best = Integer.MAX_VALUE;
+        for (int mask = 0; mask < 1 << unloaded.size(); mask++) {
+            List<NozzleTip> nozzleTips = new ArrayList<>(loaded);
+            for (int i = 0; i < unloaded.size(); i++) {
+                if ((mask & 1 << i) != 0) {
+                    nozzleTips.add(unloaded.get(i));
+                }
+            }
+            if (jobPlacements.stream().allMatch(jobPlacement -> nozzleTips.stream().anyMatch(
+                    nozzleTip -> nozzleTip.canHandle(jobPlacement.placement.getPart())))) {
+                best = Math.min(best, Integer.bitCount(mask));
+            }
+        }
+        return best;
+    }
+
+    private static List<Package> createPackages(int count) {
+        List<Package> packages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            packages.add(new Package("P" + i));
+        }
+        return packages;
+    }
+
+    private static ReferenceNozzleTip createNozzleTip(List<Package> packages,
+            int... packageIndexes) {
+        ReferenceNozzleTip nozzleTip = new ReferenceNozzleTip();
+        HashSet<Package> compatiblePackages = new HashSet<>();
+        for (int index : packageIndexes) {
+            compatiblePackages.add(packages.get(index));
+        }
+        nozzleTip.setCompatiblePackages(compatiblePackages);
+        return nozzleTip;
+    }
+
+    /**
+     * Create nozzles that each have a random selection of nozzle tips, with a random one of them
+     * loaded. Every package is handled by at least one tip on the first nozzle so that every
+     * placement can be planned.
+     */
+    private static List<Nozzle> createNozzles(Random random, List<Package> packages, int count) {
+        List<Nozzle> nozzles = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ReferenceNozzleTip[] tips = new ReferenceNozzleTip[1 + random.nextInt(3)];
+            for (int j = 0; j < tips.length; j++) {
+                tips[j] = new ReferenceNozzleTip();
+                HashSet<Package> compatiblePackages = new HashSet<>();
+                for (Package pkg : packages) {
+                    if (random.nextBoolean() || (i == 0 && j == 0)) {
+                        compatiblePackages.add(pkg);
+                    }
+                }
+                tips[j].setCompatiblePackages(compatiblePackages);
+            }
+            ReferenceNozzleTip loaded =
+                    random.nextInt(5) == 0 ? null : tips[random.nextInt(tips.length)];
+            nozzles.add(new TestNozzle(loaded, tips));
+        }
+        return nozzles;
+    }
+
+    private static List<JobPlacement> createJobPlacements(List<Package> packages,
+            int... packageIndexes) {
+        BoardLocation boardLocation = new BoardLocation(new Board());
+        List<JobPlacement> jobPlacements = new ArrayList<>();
+        for (int i = 0; i < packageIndexes.length; i++) {
+            Part part = new Part("R" + i);
+            part.setPackage(packages.get(packageIndexes[i]));
+            part.setHeight(new Length(1, LengthUnit.Millimeters));
+            Placement placement = new Placement("R" + i);
+            placement.setPart(part);
+            jobPlacements.add(new JobPlacement(boardLocation, placement));
+        }
+        return jobPlacements;
+    }
+
+    /**
+     * A Nozzle that loads tips without moving anything.
+     */
+    static class TestNozzle extends ReferenceNozzle {
+        TestNozzle(ReferenceNozzleTip loaded, ReferenceNozzleTip... tips) {
+            nozzleTips.addAll(Arrays.asList(tips));
+            nozzleTip = loaded;
+        }
+
+        void load(NozzleTip nozzleTip) {
+            this.nozzleTip = (ReferenceNozzleTip) nozzleTip;
+        }
+    }
+}
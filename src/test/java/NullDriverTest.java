@@ -0,0 +1,67 @@
+import org.junit.Assert;
+import org.junit.Test;
+import org.openpnp.machine.reference.driver.NullDriver;
+import org.openpnp.model.LengthUnit;
+import org.openpnp.model.Location;
+
+public class NullDriverTest {
+    /**
+     * Moves are timed with the same trapezoidal profile as VirtualController.
+     */
+    @Test
+    public void testMoveTime() throws Exception {
+        TestNullDriver driver = new TestNullDriver();
+        driver.setFeedRateMmPerMinute(6000);
+        driver.setAccelerationMmPerSecond2(1000);
+        Location origin = new Location(LengthUnit.Millimeters, 0, 0, 0, 0);
+
+        // 100mm at 100mm/s with 1000mm/s^2 takes 1s plus 0.1s for accelerating and
+        // decelerating.
+        Assert.assertEquals(1.1,
+                driver.getMoveTime(new Location(LengthUnit.Millimeters, 60, 80, 0, 0), origin, 1),
+                1e-9);
+        // At half speed it's 2s plus 0.05s.
+        Assert.assertEquals(2.05,
+                driver.getMoveTime(new Location(LengthUnit.Millimeters, 100, 0, 0, 0), origin,
+                        0.5),
+                1e-9);
+        // 1mm is too short to reach full speed, so it's 2 * sqrt(1 / 1000).
+        Assert.assertEquals(2 * Math.sqrt(1 / 1000.),
+                driver.getMoveTime(new Location(LengthUnit.Millimeters, 0, 0, 1, 0), origin, 1),
+                1e-9);
+        // XY, Z and C move at the same time, so the longest one counts.
+        Assert.assertEquals(1.1,
+                driver.getMoveTime(new Location(LengthUnit.Millimeters, 100, 0, 1, 90), origin,
+                        1),
+                1e-9);
+    }
+
+    /**
+     * With the virtual clock picks and dispenses only advance the simulated time, they don't
+     * sleep.
+     */
+    @Test
+    public void testVirtualClockPause() throws Exception {
+        NullDriver driver = new NullDriver();
+        driver.setVirtualClock(true);
+        driver.setEnabled(true);
+        long t = System.nanoTime();
+        for (int i = 0; i < 20; i++) {
+            driver.pick(null);
+        }
+        driver.dispense(null, null, null, 2000);
+        Assert.assertEquals(12.0, driver.getSimulatedTime(), 1e-9);
+        // Sleeping would have taken 12s.
+        Assert.assertTrue(System.nanoTime() - t < 5000000000L);
+        driver.resetSimulatedTime();
+        Assert.assertEquals(0.0, driver.getSimulatedTime(), 0);
+        driver.close();
+    }
+
+    static class TestNullDriver extends NullDriver {
+        @Override
+        protected double getMoveTime(Location location, Location hl, double speed) {
+            return super.getMoveTime(location, hl, speed);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openpnp.machine.reference.ReferenceNozzle;
+import org.openpnp.machine.reference.ReferenceNozzleTip;
+import org.openpnp.machine.reference.ReferencePnpJobPlanner;
+import org.openpnp.machine.reference.ReferencePnpJobProcessor.JobPlacement;
+import org.openpnp.machine.reference.ReferencePnpJobProcessor.PlannedPlacement;
+import org.openpnp.model.Board;
+import org.openpnp.model.BoardLocation;
+import org.openpnp.model.Configuration;
+import org.openpnp.model.Length;
+import org.openpnp.model.LengthUnit;
+import org.openpnp.model.Package;
+import org.openpnp.model.Part;
+import org.openpnp.model.Placement;
+import org.openpnp.spi.Nozzle;
+import org.openpnp.spi.base.AbstractPnpJobProcessor;
+import org.openpnp.util.Collect;
+
+import com.google.common.io.Files;
+
+public class PnpJobPlannerTest {
+    /**
+     * Generates a bunch of small random jobs and makes sure the planner picks exactly the same
+     * solution as the original cartesian product planner did.
+     */
+    @Test
+    public void testMatchesCartesianProduct() throws Exception {
+        initialize();
+        Random random = new Random(1);
+        for (int i = 0; i < 500; i++) {
+            List<Package> packages = createPackages(1 + random.nextInt(4));
+            List<Nozzle> nozzles = createNozzles(random, packages, 1 + random.nextInt(4));
+            List<JobPlacement> jobPlacements =
+                    createJobPlacements(random, packages, random.nextInt(8));
+
+            List<JobPlacement> expected = planCartesianProduct(nozzles, jobPlacements);
+            List<JobPlacement> actual = toSolution(nozzles,
+                    new ReferencePnpJobPlanner().plan(nozzles, jobPlacements));
+            Assert.assertEquals(expected, actual);
+        }
+    }
+
+    /**
+     * Plans a single cycle of a 10,000 placement job for 1 through 8 nozzles. The cartesian
+     * product planner could not finish this for more than 2 nozzles. Every nozzle can handle
+     * some of the placements, so every nozzle must get a different one it can handle.
+     */
+    @Test
+    public void testLargeJob() throws Exception {
+        initialize();
+        Random random = new Random(2);
+        List<Package> packages = createPackages(12);
+        List<JobPlacement> jobPlacements = createJobPlacements(random, packages, 10000);
+        for (int nozzleCount = 1; nozzleCount <= 8; nozzleCount++) {
+            List<Nozzle> nozzles = createNozzles(random, packages, nozzleCount);
+            List<PlannedPlacement> plannedPlacements =
+                    new ReferencePnpJobPlanner().plan(nozzles, jobPlacements);
+            Assert.assertEquals(nozzleCount, plannedPlacements.size());
+            HashSet<JobPlacement> planned = new HashSet<>();
+            for (PlannedPlacement plannedPlacement : plannedPlacements) {
+                Assert.assertTrue(planned.add(plannedPlacement.jobPlacement));
+                Assert.assertTrue(AbstractPnpJobProcessor.nozzleCanHandle(plannedPlacement.nozzle,
+                        plannedPlacement.jobPlacement.placement.getPart()));
+            }
+        }
+    }
+
+    private static void initialize() throws Exception {
+        File workingDirectory = Files.createTempDir();
+        workingDirectory = new File(workingDirectory, ".openpnp");
+        Configuration.initialize(workingDirectory);
+    }
+
+    private static List<Package> createPackages(int count) {
+        List<Package> packages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            packages.add(new Package("P" + i));
+        }
+        return packages;
+    }
+
+    /**
+     * Create nozzles that each have a random selection of nozzle tips, with a random one of them
+     * loaded. Every package is handled by at least one tip on the first nozzle so that every
+     * placement can be planned.
+     */
+    private static List<Nozzle> createNozzles(Random random, List<Package> packages, int count) {
+        List<Nozzle> nozzles = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            List<ReferenceNozzleTip> tips = new ArrayList<>();
+            int tipCount = 1 + random.nextInt(3);
+            for (int j = 0; j < tipCount; j++) {
+                ReferenceNozzleTip nozzleTip = new ReferenceNozzleTip();
+                HashSet<Package> compatiblePackages = new HashSet<>();
+                for (Package pkg : packages) {
+                    if (random.nextBoolean() || (i == 0 && j == 0)) {
+                        compatiblePackages.add(pkg);
+                    }
+                }
+                nozzleTip.setCompatiblePackages(compatiblePackages);
+                tips.add(nozzleTip);
+            }
+            ReferenceNozzleTip loaded =
+                    random.nextInt(5) == 0 ? null : tips.get(random.nextInt(tips.size()));
+            nozzles.add(new ReferenceNozzle() {
+                {
+                    nozzleTips.addAll(tips);
+                    this.nozzleTip = loaded;
+                    setName("N" + nozzles.size());
+                }
+            });
+        }
+        return nozzles;
+    }
+
+    private static List<JobPlacement> createJobPlacements(Random random, List<Package> packages,
+            int count) {
+        BoardLocation boardLocation = new BoardLocation(new Board());
+        List<JobPlacement> jobPlacements = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Part part = new Part("R" + i);
+            part.setPackage(packages.get(random.nextInt(packages.size())));
+            part.setHeight(new Length(1, LengthUnit.Millimeters));
+            Placement placement = new Placement("R" + i);
+            placement.setPart(part);
+            jobPlacements.add(new JobPlacement(boardLocation, placement));
+        }
+        return jobPlacements;
+    }
+
+    private static List<JobPlacement> toSolution(List<Nozzle> nozzles,
+            List<PlannedPlacement> plannedPlacements) {
+        List<JobPlacement> solution = new ArrayList<>();
+        for (Nozzle nozzle : nozzles) {
+            JobPlacement jobPlacement = null;
+            for (PlannedPlacement plannedPlacement : plannedPlacements) {
+                if (plannedPlacement.nozzle == nozzle) {
+                    jobPlacement = plannedPlacement.jobPlacement;
+                }
+            }
+            solution.add(jobPlacement);
+        }
+        return solution;
+    }
+
+    /**
+     * The original planner from ReferencePnpJobProcessor.doPlan(), kept here as the reference
+     * for the expected results. The only difference is that solutions with more than one null are
+     * no longer filtered out as duplicates, which made the original fail when there were fewer
+     * placements left than nozzles minus one.
+     */
+    private static List<JobPlacement> planCartesianProduct(List<Nozzle> nozzles,
+            List<JobPlacement> jobPlacements) {
+        List<List<JobPlacement>> solutions = nozzles.stream().map(nozzle -> {
+            return Stream.concat(jobPlacements.stream().filter(jobPlacement -> {
+                return AbstractPnpJobProcessor.nozzleCanHandle(nozzle,
+                        jobPlacement.placement.getPart());
+            }), Stream.of((JobPlacement) null)).collect(Collectors.toList());
+        }).collect(Collectors.toList());
+
+        Comparator<List<JobPlacement>> byFewestNulls = (a, b) -> {
+            return Collections.frequency(a, null) - Collections.frequency(b, null);
+        };
+
+        Comparator<List<JobPlacement>> byFewestNozzleChanges = (a, b) -> {
+            int countA = 0, countB = 0;
+            for (int i = 0; i < nozzles.size(); i++) {
+                Nozzle nozzle = nozzles.get(i);
+                JobPlacement jpA = a.get(i);
+                JobPlacement jpB = b.get(i);
+                if (nozzle.getNozzleTip() == null) {
+                    countA++;
+                    countB++;
+                    continue;
+                }
+                if (jpA != null && !nozzle.getNozzleTip().canHandle(jpA.placement.getPart())) {
+                    countA++;
+                }
+                if (jpB != null && !nozzle.getNozzleTip().canHandle(jpB.placement.getPart())) {
+                    countB++;
+                }
+            }
+            return countA - countB;
+        };
+
+        return Collect.cartesianProduct(solutions).stream().filter(list -> {
+            List<JobPlacement> nonNull =
+                    list.stream().filter(jp -> jp != null).collect(Collectors.toList());
+            return new HashSet<JobPlacement>(nonNull).size() == nonNull.size();
+        }).sorted(byFewestNulls.thenComparing(byFewestNozzleChanges)).findFirst().orElse(null);
+    }
+}
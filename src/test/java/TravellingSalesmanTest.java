@@ -0,0 +1,63 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openpnp.model.LengthUnit;
+import org.openpnp.model.Location;
+import org.openpnp.util.TravellingSalesman;
+
+public class TravellingSalesmanTest {
+    /**
+     * Points along a line, given out of order, should be visited in order starting from the end
+     * nearest the start location.
+     */
+    @Test
+    public void testLine() throws Exception {
+        List<Location> locations = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            locations.add(new Location(LengthUnit.Millimeters, i * 10, 0, 0, 0));
+        }
+        List<Location> shuffled = new ArrayList<>(locations);
+        Collections.shuffle(shuffled, new Random(1));
+
+        TravellingSalesman<Location> tsp = new TravellingSalesman<>(shuffled, l -> l,
+                new Location(LengthUnit.Millimeters, -5, 0, 0, 0));
+        List<Location> path = tsp.solve(1000);
+        Assert.assertEquals(locations, path);
+        Assert.assertEquals(75, tsp.getDistance(path), 0.0001);
+    }
+
+    /**
+     * The solution must visit every item once and never be longer than the order it was given
+     * in.
+     */
+    @Test
+    public void testRandom() throws Exception {
+        Random random = new Random(2);
+        for (int i = 0; i < 200; i++) {
+            List<Location> locations = new ArrayList<>();
+            int count = 1 + random.nextInt(10);
+            for (int j = 0; j < count; j++) {
+                locations.add(new Location(LengthUnit.Millimeters, random.nextDouble() * 300,
+                        random.nextDouble() * 300, 0, 0));
+            }
+            TravellingSalesman<Location> tsp = new TravellingSalesman<>(locations, l -> l,
+                    new Location(LengthUnit.Millimeters, 0, 0, 0, 0));
+            List<Location> path = tsp.solve(1000);
+            Assert.assertEquals(locations.size(), path.size());
+            Assert.assertEquals(new HashSet<>(locations), new HashSet<>(path));
+            Assert.assertTrue(tsp.getDistance(path) <= tsp.getDistance(locations) + 0.0001);
+        }
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        TravellingSalesman<Location> tsp = new TravellingSalesman<>(new ArrayList<Location>(),
+                l -> l, new Location(LengthUnit.Millimeters, 0, 0, 0, 0));
+        Assert.assertEquals(0, tsp.solve(1000).size());
+    }
+}
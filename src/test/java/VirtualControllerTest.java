@@ -0,0 +1,160 @@
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openpnp.machine.reference.driver.LineAssembler;
+import org.openpnp.machine.reference.driver.VirtualController;
+import org.openpnp.machine.reference.driver.VirtualController.Dialect;
+
+public class VirtualControllerTest {
+    @Test
+    public void testMoveTime() throws Exception {
+        VirtualController controller = new VirtualController(Dialect.Gcode);
+        controller.setTimeScale(0);
+        Client client = new Client(controller);
+        // 100mm at 100mm/s with 2000mm/s^2 takes 1s plus 0.05s for accelerating and
+        // decelerating. 1mm is too short to reach full speed, so it's 2 * sqrt(1 / 2000).
+        Assert.assertEquals("ok", client.send("G1 X100 F6000"));
+        Assert.assertEquals("ok", client.send("G1 X101"));
+        Assert.assertEquals("ok", client.send("M400"));
+        Assert.assertEquals(1.05 + 2 * Math.sqrt(1 / 2000.), controller.getMachineTime(), 1e-9);
+        Assert.assertTrue(client.send("foo").startsWith("error: "));
+        controller.close();
+    }
+
+    /**
+     * The move that doesn't fit in the planner isn't confirmed until the first one completes.
+     */
+    @Test
+    public void testPlannerDepth() throws Exception {
+        VirtualController controller = new VirtualController(Dialect.Grbl);
+        controller.setPlannerDepth(2);
+        controller.setTimeScale(0.02);
+        Client client = new Client(controller);
+        Assert.assertTrue(client.receive().startsWith("Grbl"));
+        long t = System.nanoTime();
+        for (int i = 1; i <= 3; i++) {
+            client.write("G1 X" + (i * 100) + " F6000");
+        }
+        Assert.assertEquals("ok", client.receive());
+        Assert.assertEquals("ok", client.receive());
+        long twoMillis = (System.nanoTime() - t) / 1000000;
+        Assert.assertEquals("ok", client.receive());
+        long threeMillis = (System.nanoTime() - t) / 1000000;
+        // The first move takes 1.05s of machine time, which is 21ms here.
+        Assert.assertTrue(twoMillis < threeMillis);
+        Assert.assertTrue(threeMillis >= 20);
+        controller.close();
+    }
+
+    @Test
+    public void testDialects() throws Exception {
+        VirtualController controller = new VirtualController(Dialect.Grbl);
+        Client client = new Client(controller);
+        client.receive();
+        Assert.assertEquals("[0.9j.20160726:]", client.send("$I"));
+        Assert.assertEquals("ok", client.receive());
+        controller.close();
+
+        controller = new VirtualController(Dialect.Marlin);
+        client = new Client(controller);
+        client.receive();
+        Assert.assertTrue(client.send("M115").matches(".*Marlin.*"));
+        Assert.assertEquals("ok", client.receive());
+        Assert.assertTrue(client.send("M114").startsWith("X:0.00 Y:0.00 Z:0.00 E:0.00"));
+        controller.close();
+
+        controller = new VirtualController(Dialect.Tinyg);
+        controller.setTimeScale(0);
+        client = new Client(controller);
+        Assert.assertTrue(client.send("{\"fv\":\"\"}")
+                .startsWith("{\"r\":{\"fv\":0.970},\"f\":[1,0,"));
+        Assert.assertTrue(client.send("G1 X10 F1000").contains("\"f\":[1,0,"));
+        Assert.assertTrue(client.receive().contains("\"stat\":3"));
+        // No movement.
+        Assert.assertTrue(client.send("G1 X10").contains("\"f\":[1,60,"));
+        controller.close();
+    }
+
+    /**
+     * Not a real benchmark, but shows the round trip time of a command in process and over a
+     * local TCP socket.
+     */
+    @Test
+    public void testLatency() throws Exception {
+        VirtualController controller = new VirtualController(Dialect.Gcode);
+        controller.setTimeScale(0);
+        long inProcess = measureLatency(new Client(controller));
+        controller.close();
+
+        controller = new VirtualController(Dialect.Gcode);
+        controller.setTimeScale(0);
+        int port = controller.listen(0);
+        Socket socket = new Socket("localhost", port);
+        socket.setTcpNoDelay(true);
+        long tcp = measureLatency(new Client(socket));
+        socket.close();
+        controller.close();
+        System.out.println(String.format("Command round trip: in process %d ns, TCP %d ns",
+                inProcess, tcp));
+    }
+
+    private static long measureLatency(Client client) throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            client.send("G1 X" + (i % 2) + " F6000");
+        }
+        long t = System.nanoTime();
+        for (int i = 0; i < 5000; i++) {
+            client.send("G1 X" + (i % 2) + " F6000");
+        }
+        return (System.nanoTime() - t) / 5000;
+    }
+
+    private static class Client {
+        final LinkedBlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        final OutputStream output;
+
+        Client(VirtualController controller) {
+            output = controller.connect(lines::offer);
+        }
+
+        Client(Socket socket) throws Exception {
+            output = socket.getOutputStream();
+            InputStream input = socket.getInputStream();
+            Thread thread = new Thread(() -> {
+                LineAssembler lineAssembler = new LineAssembler(lines::offer);
+                byte[] buffer = new byte[4096];
+                try {
+                    int count;
+                    while ((count = input.read(buffer)) != -1) {
+                        lineAssembler.append(buffer, 0, count);
+                    }
+                }
+                catch (Exception e) {
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void write(String command) throws Exception {
+            output.write((command + "\n").getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        String send(String command) throws Exception {
+            write(command);
+            return receive();
+        }
+
+        String receive() throws Exception {
+            String line = lines.poll(5, TimeUnit.SECONDS);
+            Assert.assertNotNull(line);
+            return line;
+        }
+    }
+}
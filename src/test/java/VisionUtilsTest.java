@@ -6,6 +6,7 @@ import javax.swing.Icon;
 
 import org.junit.Assert;
 import org.junit.Test;
+import org.opencv.core.Mat;
 import org.openpnp.CameraListener;
 import org.openpnp.gui.support.Wizard;
 import org.openpnp.model.LengthUnit;
@@ -190,6 +191,20 @@ public class VisionUtilsTest {
             return null;
         }
 
+        @Override
+        public void settle() {
+        }
+
+        @Override
+        public Mat captureMat() {
+            return null;
+        }
+
+        @Override
+        public Mat settleAndCaptureMat() {
+            return null;
+        }
+
         @Override
         public long getSettleTimeMs() {
             // TODO Auto-generated method stub
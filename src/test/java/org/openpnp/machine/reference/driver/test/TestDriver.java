@@ -8,6 +8,7 @@ import javax.swing.Icon;
 import org.openpnp.gui.support.Wizard;
 import org.openpnp.machine.reference.ReferenceActuator;
 import org.openpnp.machine.reference.ReferenceDriver;
+import org.openpnp.machine.reference.PositionSnapshot;
 import org.openpnp.machine.reference.ReferenceHead;
 import org.openpnp.machine.reference.ReferenceHeadMountable;
 import org.openpnp.machine.reference.ReferenceNozzle;
@@ -78,6 +79,16 @@ public class TestDriver implements ReferenceDriver {
         return location;
     }
 
+    @Override
+    public void moveToSafeZ(ReferenceHead head, double speed) throws Exception {
+        head.moveEachToSafeZ(this, speed);
+    }
+
+    @Override
+    public PositionSnapshot getPosition(ReferenceHead head) {
+        return null;
+    }
+
     @Override
     public void pick(ReferenceNozzle nozzle) throws Exception {
         logger.debug("pick({} {})", nozzle, nozzle.getNozzleTip());
@@ -139,6 +150,18 @@ public class TestDriver implements ReferenceDriver {
             return null;
         }
 
+        @Override
+        public void moveToSafeZ(ReferenceHead head, double speed) throws Exception {
+            // TODO Auto-generated method stub
+
+        }
+
+        @Override
+        public PositionSnapshot getPosition(ReferenceHead head) {
+            // TODO Auto-generated method stub
+            return null;
+        }
+
         @Override
         public void pick(ReferenceNozzle nozzle) throws Exception {
             // TODO Auto-generated method stub